@@ -18,6 +18,7 @@ import android.util.Log;
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
@@ -66,6 +67,7 @@ public class ActivityHistory {
     private static final int KCAL_MULTIPLIER = 1000;
     private static final int ONGOING_ACTIVITY_MIN_TIME_FROM_END = 10 * 60000;
     private static final String CALORIES_FIELD_NAME = "calories";
+    private static final long SEGMENT_SHARD_MILLIS = TimeUnit.DAYS.toMillis(7);
 
     private static final String TAG = "RNGoogleFit";
 
@@ -74,19 +76,38 @@ public class ActivityHistory {
         this.googleFitManager = googleFitManager;
     }
 
-    public ReadableArray getActivitySamples(long startTime, long endTime) {
-        WritableArray results = Arguments.createArray();
-        DataReadRequest readRequest = new DataReadRequest.Builder()
-                .aggregate(DataType.TYPE_STEP_COUNT_DELTA, DataType.AGGREGATE_STEP_COUNT_DELTA)
-                .aggregate(DataType.TYPE_CALORIES_EXPENDED, DataType.AGGREGATE_CALORIES_EXPENDED)
-                .aggregate(DataType.TYPE_DISTANCE_DELTA, DataType.AGGREGATE_DISTANCE_DELTA)
-                .bucketByActivitySegment(1, TimeUnit.SECONDS)
-                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
-                .build();
+    public Object getActivitySamples(long startTime, long endTime, ReadableMap options) {
+        SampleWriter results = SampleWriter.create(options, "activity");
+        // Activity segments have no fixed size, so long ranges are read a week at a time
+        List<RangeSharder.Shard> shards = googleFitManager.getRangeSharder().read(startTime, endTime,
+                SEGMENT_SHARD_MILLIS,
+                new RangeSharder.RequestFactory() {
+                    @Override
+                    public DataReadRequest build(long shardStart, long shardEnd) {
+                        return new DataReadRequest.Builder()
+                                .aggregate(DataType.TYPE_STEP_COUNT_DELTA, DataType.AGGREGATE_STEP_COUNT_DELTA)
+                                .aggregate(DataType.TYPE_CALORIES_EXPENDED, DataType.AGGREGATE_CALORIES_EXPENDED)
+                                .aggregate(DataType.TYPE_DISTANCE_DELTA, DataType.AGGREGATE_DISTANCE_DELTA)
+                                .bucketByActivitySegment(1, TimeUnit.SECONDS)
+                                .setTimeRange(shardStart, shardEnd, TimeUnit.MILLISECONDS)
+                                .build();
+                    }
 
-        DataReadResult dataReadResult = Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(1, TimeUnit.MINUTES);
+                    @Override
+                    public String key(long shardStart, long shardEnd) {
+                        return DataReadCoalescer.key("activity", null, "segment", shardStart, shardEnd);
+                    }
+                });
+
+        List<Bucket> buckets = new ArrayList<>();
+        for (RangeSharder.Shard shard : shards) {
+            if (shard.result == null) {
+                results.addGap(shard.startTime, shard.endTime);
+            } else {
+                buckets.addAll(shard.result.getBuckets());
+            }
+        }
 
-        List<Bucket> buckets = dataReadResult.getBuckets();
         for (Bucket bucket : buckets) {
             String activityName = bucket.getActivity();
             int activityType = bucket.getBucketType();
@@ -95,7 +116,8 @@ public class ActivityHistory {
                 long end = bucket.getEndTime(TimeUnit.MILLISECONDS);
                 Date startDate = new Date(start);
                 Date endDate = new Date(end);
-                WritableMap map = Arguments.createMap();
+                SampleWriter map = results;
+                map.beginSample();
                 map.putDouble("start",start);
                 map.putDouble("end",end);
                 map.putString("activityName", activityName);
@@ -121,7 +143,7 @@ public class ActivityHistory {
                             String fieldName = field.getName();
                             switch (fieldName) {
                                 case STEPS_FIELD_NAME:
-                                    map.putInt("quantity", dataPoint.getValue(field).asInt());
+                                    map.putDouble("quantity", dataPoint.getValue(field).asInt());
                                     break;
                                 case DISTANCE_FIELD_NAME:
                                     map.putDouble(fieldName, dataPoint.getValue(field).asFloat());
@@ -138,10 +160,10 @@ public class ActivityHistory {
                 map.putString("sourceName", deviceName);
                 map.putString("sourceId", sourceId);
                 map.putBoolean("tracked", isTracked);
-                results.pushMap(map);
+                map.endSample();
             }
         }
         
-        return results;
+        return results.build();
     }
 }
@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.fitness.Fitness;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.request.DataDeleteRequest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes several data types over several time ranges with as few HistoryApi.deleteData calls
+ * as possible: overlapping or touching ranges are merged, and every merged range is deleted
+ * with one request that names all the types. The requests run in parallel.
+ */
+public class BatchDeleter {
+
+    private static final String TAG = "RNGoogleFit";
+
+    private static final long DELETE_TIMEOUT_SECONDS = 60;
+
+    private final GoogleFitManager googleFitManager;
+
+    /**
+     * One delete request, covering one or more of the requested ranges.
+     */
+    static class MergedRange {
+        long startTime;
+        long endTime;
+        // indexes of the requested ranges it covers
+        final List<Integer> ranges = new ArrayList<>();
+        Status status;
+
+        MergedRange(long startTime, long endTime) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+    }
+
+    public BatchDeleter(GoogleFitManager googleFitManager) {
+        this.googleFitManager = googleFitManager;
+    }
+
+    /**
+     * @param options ReadableMap { types: ['weight', ...], ranges: [{ startDate, endDate }, ...] }, dates in milliseconds
+     * @param promise Resolved with one { startDate, endDate, success, statusCode, statusMessage, merged }
+     *                per requested range, in the order of the ranges
+     */
+    public void delete(ReadableMap options, final Promise promise) {
+        final List<DataType> dataTypes = new ArrayList<>();
+        final long[][] ranges;
+        try {
+            ReadableArray types = options.getArray("types");
+            for (int i = 0; i < types.size(); i++) {
+                DataType dataType = WriteJournal.getDataType(types.getString(i));
+                if (dataType == null) {
+                    throw new IllegalArgumentException("Unknown data type " + types.getString(i));
+                }
+                if (!dataTypes.contains(dataType)) {
+                    dataTypes.add(dataType);
+                }
+            }
+            ReadableArray rangeArray = options.getArray("ranges");
+            ranges = new long[rangeArray.size()][];
+            for (int i = 0; i < rangeArray.size(); i++) {
+                ReadableMap range = rangeArray.getMap(i);
+                long startTime = (long) range.getDouble("startDate");
+                long endTime = (long) range.getDouble("endDate");
+                if (startTime <= 0 || endTime <= startTime) {
+                    throw new IllegalArgumentException("Range " + i + " must start after 0 and end after it starts");
+                }
+                ranges[i] = new long[] {startTime, endTime};
+            }
+            if (dataTypes.isEmpty() || ranges.length == 0) {
+                throw new IllegalArgumentException("Nothing to delete, types and ranges are required");
+            }
+        } catch (RuntimeException e) {
+            promise.reject("INVALID_OPTIONS", e.getMessage());
+            return;
+        }
+
+        final List<MergedRange> merged = merge(ranges);
+        Log.i(TAG, "Deleting " + dataTypes.size() + " types over " + ranges.length + " ranges in "
+                + merged.size() + " requests");
+
+        final int[] remaining = {merged.size()};
+        for (final MergedRange range : merged) {
+            ResultCallback<Status> callback = new ResultCallback<Status>() {
+                @Override
+                public void onResult(@NonNull Status status) {
+                    boolean done;
+                    synchronized (remaining) {
+                        range.status = status;
+                        done = --remaining[0] == 0;
+                    }
+                    if (status.isSuccess()) {
+                        for (DataType dataType : dataTypes) {
+                            onDeleted(dataType, range.startTime, range.endTime);
+                        }
+                    } else {
+                        Log.w(TAG, "Failed to delete " + range.startTime + "-" + range.endTime + ": " + status);
+                    }
+                    if (done) {
+                        promise.resolve(toResults(ranges, merged));
+                    }
+                }
+            };
+            try {
+                DataDeleteRequest.Builder builder = new DataDeleteRequest.Builder()
+                        .setTimeInterval(range.startTime, range.endTime, TimeUnit.MILLISECONDS);
+                for (DataType dataType : dataTypes) {
+                    builder.addDataType(dataType);
+                }
+                Fitness.HistoryApi.deleteData(googleFitManager.getGoogleApiClient(), builder.build())
+                        .setResultCallback(callback, DELETE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (RuntimeException e) {
+                // the client isn't connected, or the request couldn't be built
+                callback.onResult(new Status(CommonStatusCodes.ERROR, e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Drops what the caches know about the type in the range, after its samples were deleted.
+     */
+    public void onDeleted(DataType dataType, long startTime, long endTime) {
+        googleFitManager.getIntervalCache().invalidate(dataType.getName() + "|");
+        googleFitManager.getLatestValueIndex().forget(dataType, startTime, endTime);
+        if (dataType == DataType.TYPE_NUTRITION) {
+            googleFitManager.getAggregateStore().invalidate("nutrition", startTime, endTime);
+        }
+    }
+
+    /**
+     * Sorts the ranges by start and merges the ones that overlap or touch.
+     */
+    static List<MergedRange> merge(final long[][] ranges) {
+        Integer[] order = new Integer[ranges.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                long startA = ranges[a][0];
+                long startB = ranges[b][0];
+                return startA < startB ? -1 : (startA == startB ? 0 : 1);
+            }
+        });
+
+        List<MergedRange> merged = new ArrayList<>();
+        MergedRange current = null;
+        for (int index : order) {
+            long[] range = ranges[index];
+            if (current == null || range[0] > current.endTime) {
+                current = new MergedRange(range[0], range[1]);
+                merged.add(current);
+            } else {
+                current.endTime = Math.max(current.endTime, range[1]);
+            }
+            current.ranges.add(index);
+        }
+        return merged;
+    }
+
+    private static WritableArray toResults(long[][] ranges, List<MergedRange> merged) {
+        WritableMap[] results = new WritableMap[ranges.length];
+        for (MergedRange range : merged) {
+            for (int index : range.ranges) {
+                WritableMap result = FitExecutor.describe(range.status);
+                result.putDouble("startDate", ranges[index][0]);
+                result.putDouble("endDate", ranges[index][1]);
+                // the span actually deleted, wider than the range when it was merged with others
+                result.putDouble("deletedStartDate", range.startTime);
+                result.putDouble("deletedEndDate", range.endTime);
+                result.putBoolean("merged", range.ranges.size() > 1);
+                results[index] = result;
+            }
+        }
+        WritableArray array = Arguments.createArray();
+        for (WritableMap result : results) {
+            array.pushMap(result);
+        }
+        return array;
+    }
+}
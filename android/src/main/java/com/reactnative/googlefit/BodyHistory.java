@@ -9,15 +9,16 @@
 
 package com.reactnative.googlefit;
 
-import android.os.AsyncTask;
 import android.util.Log;
 
 import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
+import com.google.android.gms.common.api.Status;
 import com.google.android.gms.fitness.Fitness;
 import com.google.android.gms.fitness.data.Bucket;
 import com.google.android.gms.fitness.data.DataPoint;
@@ -34,6 +35,7 @@ import com.google.android.gms.fitness.data.HealthFields;
 import java.text.DateFormat;
 import java.text.Format;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -43,11 +45,15 @@ public class BodyHistory {
 
     private ReactContext mReactContext;
     private GoogleFitManager googleFitManager;
-    private DataSet Dataset;
     private DataType dataType;
 
     private static final String TAG = "Body History";
 
+    // adaptive weight reads probe with day sized buckets, when the range has at least a week of them
+    private static final long ADAPTIVE_PROBE_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final int ADAPTIVE_MIN_PROBES = 7;
+    private static final int ADAPTIVE_MAX_RUNS = 8;
+
     public BodyHistory(ReactContext reactContext, GoogleFitManager googleFitManager, DataType dataType){
         this.mReactContext = reactContext;
         this.googleFitManager = googleFitManager;
@@ -62,14 +68,18 @@ public class BodyHistory {
         this.dataType = dataType;
     }
 
-    public ReadableArray getHistory(long startTime, long endTime) {
-        DateFormat dateFormat = DateFormat.getDateInstance();
-        // for height we need to take time, since GoogleFit foundation - https://stackoverflow.com/questions/28482176/read-the-height-in-googlefit-in-android
-        startTime = this.dataType == DataType.TYPE_WEIGHT ? startTime : 1401926400;
-        DataReadRequest.Builder readRequestBuilder = new DataReadRequest.Builder()
-                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS);
+    public Object getHistory(long startTime, long endTime) {
+        return getHistory(startTime, endTime, this.dataType, null);
+    }
+
+    /**
+     * Reads body samples of the given type. Takes the data type explicitly so that
+     * concurrent reads of weight and height don't race on the shared instance.
+     */
+    public Object getHistory(long startTime, long endTime, DataType dataType, ReadableMap options) {
+        SampleWriter map = SampleWriter.create(options, dataType == DataType.TYPE_WEIGHT ? "weight" : "height");
 
-        if (this.dataType == DataType.TYPE_WEIGHT) {
+        if (dataType == DataType.TYPE_WEIGHT) {
             // In general here we want to set the bucket size to the smallest possible allowed, in case the 
             // user weighs themselves in a short interval (e.g. before and after a meal)
             //
@@ -77,134 +87,306 @@ public class BodyHistory {
             // can be returned in an aggregated query - anything more than this and the fitness API takes 
             // ages to respond and/or no response at all on both Galaxy S5 (6.0.1) and Huawei P9 Lite (7.0)
             //
-            // So, divide the time range by 2,000 to be on the safe side
+            // So, divide the time range by 2,000 and let the sharder split it into requests that stay
+            // well below the limit
             long bucketSizeMillis = (endTime - startTime) / 2000;
 
             // We don't need any finer granularity than 1 minute, so make buckets at least this size to keep 
-            // the number of buckets low if not much time has elapsed since the last query
-            bucketSizeMillis = Math.max(bucketSizeMillis, 60 * 1000);
-
-            readRequestBuilder
-                .aggregate(DataType.TYPE_WEIGHT, DataType.AGGREGATE_WEIGHT_SUMMARY)
-                .bucketByTime((int)bucketSizeMillis, TimeUnit.MILLISECONDS);
+            // the number of buckets low if not much time has elapsed since the last query. Rounding up to
+            // whole minutes also lets windows of the same width share the cached buckets when panning.
+            final long bucketMillis = Math.max((bucketSizeMillis + 59999) / 60000, 1) * 60 * 1000;
+
+            // buckets are laid on a fixed grid, so cached intervals line up with new ones
+            long gridStart = startTime - startTime % bucketMillis;
+            long gridEnd = endTime % bucketMillis == 0 ? endTime : endTime - endTime % bucketMillis + bucketMillis;
+
+            final boolean adaptive = options == null || !options.hasKey("adaptive")
+                    || options.isNull("adaptive") || options.getBoolean("adaptive");
+
+            IntervalCache.Result cached = googleFitManager.getIntervalCache().read(
+                    DataType.TYPE_WEIGHT.getName() + "|" + bucketMillis + "ms", gridStart, gridEnd, options,
+                    new IntervalCache.Loader() {
+                        @Override
+                        public List<DataPoint> load(long gapStart, long gapEnd, List<long[]> failed) {
+                            return readWeightBuckets(gapStart, gapEnd, bucketMillis, adaptive, failed);
+                        }
+                    });
+
+            List<DataPoint> points = new ArrayList<>();
+            for (DataPoint dp : cached.points) {
+                if (dp.getEndTime(TimeUnit.MILLISECONDS) >= startTime && dp.getStartTime(TimeUnit.MILLISECONDS) < endTime) {
+                    points.add(dp);
+                }
+            }
+            for (DataPoint dp : Downsampler.downsample(points, Field.FIELD_AVERAGE, options)) {
+                processDataPoint(dp, map, dataType);
+            }
+            for (long[] gap : cached.gaps) {
+                map.addGap(gap[0], gap[1]);
+            }
         } else {
-            readRequestBuilder.read(this.dataType);
-            readRequestBuilder.setLimit(1); // need only one height, since it's unchangable
+            // height barely changes, so it comes from the latest-value index instead of a search
+            // through the whole history. With { cache: false } the index is refreshed first.
+            LatestValueIndex latestValues = googleFitManager.getLatestValueIndex();
+            LatestValueIndex.Entry latest = DailyAggregateStore.isCacheEnabled(options)
+                    ? latestValues.get(dataType)
+                    : latestValues.refresh(dataType);
+            if (latest != null) {
+                writeLatest(latest, map);
+            }
         }
+        return map.build();
+    }
 
-        DataReadRequest readRequest = readRequestBuilder.build();
+    /**
+     * @return The latest known value of the type as a sample, null when there is none.
+     * With forceRefresh Google Fit is asked even when a value is stored.
+     */
+    public Object getLatest(DataType dataType, boolean forceRefresh) {
+        LatestValueIndex latestValues = googleFitManager.getLatestValueIndex();
+        LatestValueIndex.Entry latest = forceRefresh ? latestValues.refresh(dataType) : latestValues.get(dataType);
+        if (latest == null) {
+            return null;
+        }
+        WritableMap map = Arguments.createMap();
+        map.putDouble("value", latest.value);
+        map.putDouble("startDate", latest.time);
+        map.putDouble("endDate", latest.time);
+        map.putString("day", new SimpleDateFormat("EEE").format(latest.time));
+        return map;
+    }
 
-        DataReadResult dataReadResult = Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(1, TimeUnit.MINUTES);
+    private static void writeLatest(LatestValueIndex.Entry latest, SampleWriter map) {
+        map.beginSample();
+        map.putDay(latest.time);
+        map.putDouble("startDate", latest.time);
+        map.putDouble("endDate", latest.time);
+        map.putDouble("value", latest.value);
+        map.endSample();
+    }
 
-        WritableArray map = Arguments.createArray();
+    /**
+     * Reads weight buckets of bucketMillis on the grid of startTime. In adaptive mode a coarse
+     * pass with day sized buckets finds where the user weighed themselves first, and the fine
+     * buckets are only requested for those days instead of the whole, mostly empty, range.
+     */
+    private List<DataPoint> readWeightBuckets(long startTime, long endTime, long bucketMillis, boolean adaptive,
+                                              List<long[]> failed) {
+        // whole fine buckets, so the coarse buckets start on the fine grid
+        long probeMillis = (ADAPTIVE_PROBE_MILLIS + bucketMillis - 1) / bucketMillis * bucketMillis;
+        if (!adaptive || probeMillis == bucketMillis || endTime - startTime < probeMillis * ADAPTIVE_MIN_PROBES) {
+            return readWeightGrid(startTime, endTime, bucketMillis, failed);
+        }
 
-        //Used for aggregated data
-        if (dataReadResult.getBuckets().size() > 0) {
-            for (Bucket bucket : dataReadResult.getBuckets()) {
-                List<DataSet> dataSets = bucket.getDataSets();
-                for (DataSet dataSet : dataSets) {
-                    processDataSet(dataSet, map);
+        List<long[]> runs = findWeighIns(startTime, endTime, probeMillis);
+        Log.i(TAG, "Weight found in " + runs.size() + " runs of days");
+
+        List<DataPoint> points = new ArrayList<>();
+        for (long[] run : runs) {
+            points.addAll(readWeightGrid(run[0], run[1], bucketMillis, failed));
+        }
+        return points;
+    }
+
+    /**
+     * @return Ranges of consecutive coarse buckets that hold weight, at most ADAPTIVE_MAX_RUNS of them
+     */
+    private List<long[]> findWeighIns(long startTime, long endTime, final long probeMillis) {
+        List<RangeSharder.Shard> shards;
+        try {
+            shards = googleFitManager.getRangeSharder().read(startTime, endTime,
+                    RangeSharder.shardSizeForBuckets(probeMillis),
+                    new RangeSharder.RequestFactory() {
+                        @Override
+                        public DataReadRequest build(long shardStart, long shardEnd) {
+                            return new DataReadRequest.Builder()
+                                    .setTimeRange(shardStart, shardEnd, TimeUnit.MILLISECONDS)
+                                    .aggregate(DataType.TYPE_WEIGHT, DataType.AGGREGATE_WEIGHT_SUMMARY)
+                                    .bucketByTime((int) probeMillis, TimeUnit.MILLISECONDS)
+                                    .build();
+                        }
+
+                        @Override
+                        public String key(long shardStart, long shardEnd) {
+                            return DataReadCoalescer.key(DataType.TYPE_WEIGHT.getName(), DataType.AGGREGATE_WEIGHT_SUMMARY,
+                                    probeMillis + "ms", shardStart, shardEnd);
+                        }
+                    });
+        } catch (IllegalStateException e) {
+            // without the coarse pass everything is read in fine buckets
+            Log.w(TAG, "Weight probe failed", e);
+            List<long[]> all = new ArrayList<>();
+            all.add(new long[] {startTime, endTime});
+            return all;
+        }
+
+        List<long[]> runs = new ArrayList<>();
+        for (RangeSharder.Shard shard : shards) {
+            if (shard.result == null) {
+                // unknown, so read it in fine buckets
+                addRun(runs, shard.startTime, shard.endTime);
+                continue;
+            }
+            for (Bucket bucket : shard.result.getBuckets()) {
+                for (DataSet dataSet : bucket.getDataSets()) {
+                    if (!dataSet.getDataPoints().isEmpty()) {
+                        addRun(runs, Math.max(bucket.getStartTime(TimeUnit.MILLISECONDS), startTime),
+                                Math.min(bucket.getEndTime(TimeUnit.MILLISECONDS), endTime));
+                        break;
+                    }
                 }
             }
         }
-        //Used for non-aggregated data
-        else if (dataReadResult.getDataSets().size() > 0) {
-            for (DataSet dataSet : dataReadResult.getDataSets()) {
-                processDataSet(dataSet, map);
+
+        // every run is a request of its own, close the smallest holes until there are few enough
+        while (runs.size() > ADAPTIVE_MAX_RUNS) {
+            int smallest = 0;
+            for (int i = 1; i < runs.size() - 1; i++) {
+                if (runs.get(i + 1)[0] - runs.get(i)[1] < runs.get(smallest + 1)[0] - runs.get(smallest)[1]) {
+                    smallest = i;
+                }
             }
+            runs.get(smallest)[1] = runs.get(smallest + 1)[1];
+            runs.remove(smallest + 1);
         }
-        return map;
+        return runs;
+    }
+
+    private static void addRun(List<long[]> runs, long startTime, long endTime) {
+        if (!runs.isEmpty() && runs.get(runs.size() - 1)[1] >= startTime) {
+            long[] last = runs.get(runs.size() - 1);
+            last[1] = Math.max(last[1], endTime);
+        } else {
+            runs.add(new long[] {startTime, endTime});
+        }
+    }
+
+    private List<DataPoint> readWeightGrid(long startTime, long endTime, final long bucketMillis, List<long[]> failed) {
+        List<RangeSharder.Shard> shards = googleFitManager.getRangeSharder().read(startTime, endTime,
+                RangeSharder.shardSizeForBuckets(bucketMillis),
+                new RangeSharder.RequestFactory() {
+                    @Override
+                    public DataReadRequest build(long shardStart, long shardEnd) {
+                        return new DataReadRequest.Builder()
+                                .setTimeRange(shardStart, shardEnd, TimeUnit.MILLISECONDS)
+                                .aggregate(DataType.TYPE_WEIGHT, DataType.AGGREGATE_WEIGHT_SUMMARY)
+                                .bucketByTime((int) bucketMillis, TimeUnit.MILLISECONDS)
+                                .build();
+                    }
+
+                    @Override
+                    public String key(long shardStart, long shardEnd) {
+                        return DataReadCoalescer.key(DataType.TYPE_WEIGHT.getName(), DataType.AGGREGATE_WEIGHT_SUMMARY,
+                                bucketMillis + "ms", shardStart, shardEnd);
+                    }
+                });
+
+        List<DataPoint> points = new ArrayList<>();
+        for (RangeSharder.Shard shard : shards) {
+            if (shard.result == null) {
+                failed.add(new long[] {shard.startTime, shard.endTime});
+                continue;
+            }
+            for (Bucket bucket : shard.result.getBuckets()) {
+                for (DataSet dataSet : bucket.getDataSets()) {
+                    points.addAll(dataSet.getDataPoints());
+                }
+            }
+        }
+        return points;
     }
 
-    public boolean save(ReadableMap sample) {
-        this.Dataset = createDataForRequest(
-                this.dataType,    // for height, it would be DataType.TYPE_HEIGHT
+    /**
+     * Inserts one weight or height sample and waits for Google Fit, so it must not run on the main thread.
+     * @return Status of the insert, as described by FitExecutor.describe
+     */
+    public WritableMap save(DataType dataType, ReadableMap sample) {
+        DataSet dataSet = createDataForRequest(
+                dataType,    // for height, it would be DataType.TYPE_HEIGHT
                 DataSource.TYPE_RAW,
                 sample.getDouble("value"),                  // weight in kgs, height in metrs
                 (long)sample.getDouble("date"),              // start time
                 (long)sample.getDouble("date"),                // end time
                 TimeUnit.MILLISECONDS                // Time Unit, for example, TimeUnit.MILLISECONDS
         );
-        new InsertAndVerifyDataTask(this.Dataset).execute();
-
-        return true;
+        // Always include a timeout when calling await() to prevent hanging that can occur from
+        // the service being shutdown because of low memory or other conditions.
+        Status insertStatus = Fitness.HistoryApi.insertData(googleFitManager.getGoogleApiClient(), dataSet)
+                .await(1, TimeUnit.MINUTES);
+        googleFitManager.getIntervalCache().invalidate(dataType.getName() + "|");
+
+        if (insertStatus.isSuccess()) {
+            Field field = dataType.getFields().get(0);
+            for (DataPoint dp : dataSet.getDataPoints()) {
+                googleFitManager.getLatestValueIndex().put(dataType, dp.getValue(field).asFloat(),
+                        dp.getEndTime(TimeUnit.MILLISECONDS));
+            }
+        } else {
+            Log.w(TAG, "Failed to insert " + dataType.getName() + ": " + insertStatus);
+        }
+        return FitExecutor.describe(insertStatus);
     }
 
-    public boolean delete(ReadableMap sample) {
-        long endTime = (long) sample.getDouble("endTime");
-        long startTime = (long) sample.getDouble("startTime");
-        new DeleteDataTask(startTime, endTime, this.dataType).execute();
-        return true;
+    /**
+     * Inserts many weight or height samples ({value, date}) in as few requests as possible.
+     * Resolves {inserted, failed, errors} once every request finished.
+     */
+    public void saveAll(DataType dataType, ReadableArray samples, final Promise promise) {
+        saveAll(dataType, samples, new BulkInserter.Completion() {
+            @Override
+            public void onComplete(BulkInserter.Result result) {
+                promise.resolve(result.toMap());
+            }
+        });
     }
 
-    //Async fit data delete
-    private class DeleteDataTask extends AsyncTask<Void, Void, Void> {
-
-        long startTime;
-        long endTime;
-        DataType dataType;
-
-        DeleteDataTask(long startTime, long endTime, DataType dataType) {
-            this.startTime = startTime;
-            this.endTime = endTime;
-        }
-
-        @Override
-        protected Void doInBackground(Void... params) {
-
-            DataDeleteRequest request = new DataDeleteRequest.Builder()
-                    .setTimeInterval(startTime, endTime, TimeUnit.MILLISECONDS)
-                    .addDataType(this.dataType)
-                    .build();
-
-            com.google.android.gms.common.api.Status insertStatus =
-                    Fitness.HistoryApi.deleteData(googleFitManager.getGoogleApiClient(), request)
-                            .await(1, TimeUnit.MINUTES);
-
-            if (insertStatus.isSuccess()) {
-                Log.w("myLog", "+Successfully deleted data.");
-            } else {
-                Log.w("myLog", "+Failed to delete data.");
+    public void saveAll(final DataType dataType, ReadableArray samples, final BulkInserter.Completion completion) {
+        googleFitManager.getBulkInserter().insert(dataType, samples, new BulkInserter.PointWriter() {
+            @Override
+            public void write(DataPoint dataPoint, ReadableMap sample) {
+                long date = (long) sample.getDouble("date");
+                dataPoint.setTimeInterval(date, date, TimeUnit.MILLISECONDS);
+                dataPoint.setFloatValues((float) sample.getDouble("value"));
             }
-
-            return null;
-        }
+        }, new BulkInserter.Completion() {
+            @Override
+            public void onComplete(BulkInserter.Result result) {
+                googleFitManager.getIntervalCache().invalidate(dataType.getName() + "|");
+                Field field = dataType.getFields().get(0);
+                for (DataSet dataSet : result.dataSets) {
+                    for (DataPoint dp : dataSet.getDataPoints()) {
+                        googleFitManager.getLatestValueIndex().put(dataType, dp.getValue(field).asFloat(),
+                                dp.getEndTime(TimeUnit.MILLISECONDS));
+                    }
+                }
+                completion.onComplete(result);
+            }
+        });
     }
 
+    /**
+     * Deletes the samples of the type between startTime and endTime and waits for Google Fit.
+     * @return Status of the delete, as described by FitExecutor.describe
+     */
+    public WritableMap delete(DataType dataType, ReadableMap sample) {
+        long endTime = (long) sample.getDouble("endTime");
+        long startTime = (long) sample.getDouble("startTime");
 
-    //Async fit data insert
-    private class InsertAndVerifyDataTask extends AsyncTask<Void, Void, Void> {
-
-        private DataSet Dataset;
-
-        InsertAndVerifyDataTask(DataSet dataset) {
-            this.Dataset = dataset;
-        }
-
-        protected Void doInBackground(Void... params) {
-            // Create a new dataset and insertion request.
-            DataSet dataSet = this.Dataset;
-
-            // [START insert_dataset]
-            // Then, invoke the History API to insert the data and await the result, which is
-            // possible here because of the {@link AsyncTask}. Always include a timeout when calling
-            // await() to prevent hanging that can occur from the service being shutdown because
-            // of low memory or other conditions.
-            //Log.i(TAG, "Inserting the dataset in the History API.");
-            com.google.android.gms.common.api.Status insertStatus =
-                    Fitness.HistoryApi.insertData(googleFitManager.getGoogleApiClient(), dataSet)
-                            .await(1, TimeUnit.MINUTES);
-
-            // Before querying the data, check to see if the insertion succeeded.
-            if (!insertStatus.isSuccess()) {
-                //Log.i(TAG, "There was a problem inserting the dataset.");
-                return null;
-            }
+        DataDeleteRequest request = new DataDeleteRequest.Builder()
+                .setTimeInterval(startTime, endTime, TimeUnit.MILLISECONDS)
+                .addDataType(dataType)
+                .build();
 
-            //Log.i(TAG, "Data insert was successful!");
+        Status deleteStatus = Fitness.HistoryApi.deleteData(googleFitManager.getGoogleApiClient(), request)
+                .await(1, TimeUnit.MINUTES);
+        googleFitManager.getIntervalCache().invalidate(dataType.getName() + "|");
 
-            return null;
+        if (deleteStatus.isSuccess()) {
+            googleFitManager.getLatestValueIndex().forget(dataType, startTime, endTime);
+        } else {
+            Log.w(TAG, "Failed to delete " + dataType.getName() + ": " + deleteStatus);
         }
+        return FitExecutor.describe(deleteStatus);
     }
 
     /**
@@ -236,34 +418,26 @@ public class BodyHistory {
         return dataSet;
     }
 
-    private void processDataSet(DataSet dataSet, WritableArray map) {
-        //Log.i(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
-        Format formatter = new SimpleDateFormat("EEE");
-
-        WritableMap stepMap = Arguments.createMap();
-
-        for (DataPoint dp : dataSet.getDataPoints()) {
-            String day = formatter.format(new Date(dp.getStartTime(TimeUnit.MILLISECONDS)));
-
-            stepMap.putString("day", day);
-            stepMap.putDouble("startDate", dp.getStartTime(TimeUnit.MILLISECONDS));
-            stepMap.putDouble("endDate", dp.getEndTime(TimeUnit.MILLISECONDS));
-
-            // When there is a short interval between weight readings (< 1 hour or so), some phones e.g.
-            // Galaxy S5 use the average of the readings, whereas other phones e.g. Huawei P9 Lite use the
-            // most recent of the bunch (this might be related to Android versions - 6.0.1 vs 7.0 in this
-            // example for former and latter)
-            //
-            // For aggregated weight summary, only the min, max and average values are available (i.e. the
-            // most recent sample is not an option), so use average value to maximise the match between values
-            // returned here and values as reported by Google Fit app
-            if (this.dataType == DataType.TYPE_WEIGHT) {
-                stepMap.putDouble("value", dp.getValue(Field.FIELD_AVERAGE).asFloat());
-            } else {
-                stepMap.putDouble("value", dp.getValue(Field.FIELD_HEIGHT).asFloat());
-            }
+    private void processDataPoint(DataPoint dp, SampleWriter map, DataType dataType) {
+        map.beginSample();
+        map.putDay(dp.getStartTime(TimeUnit.MILLISECONDS));
+        map.putDouble("startDate", dp.getStartTime(TimeUnit.MILLISECONDS));
+        map.putDouble("endDate", dp.getEndTime(TimeUnit.MILLISECONDS));
+
+        // When there is a short interval between weight readings (< 1 hour or so), some phones e.g.
+        // Galaxy S5 use the average of the readings, whereas other phones e.g. Huawei P9 Lite use the
+        // most recent of the bunch (this might be related to Android versions - 6.0.1 vs 7.0 in this
+        // example for former and latter)
+        //
+        // For aggregated weight summary, only the min, max and average values are available (i.e. the
+        // most recent sample is not an option), so use average value to maximise the match between values
+        // returned here and values as reported by Google Fit app
+        if (dataType == DataType.TYPE_WEIGHT) {
+            map.putDouble("value", dp.getValue(Field.FIELD_AVERAGE).asFloat());
+        } else {
+            map.putDouble("value", dp.getValue(Field.FIELD_HEIGHT).asFloat());
         }
-        map.pushMap(stepMap);
+        map.endSample();
     }
 
 }
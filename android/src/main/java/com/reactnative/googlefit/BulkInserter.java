@@ -0,0 +1,221 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.google.android.gms.common.api.CommonStatusCodes;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.fitness.Fitness;
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.data.DataSource;
+import com.google.android.gms.fitness.data.DataType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inserts many samples of one data type with as few HistoryApi.insertData calls as possible.
+ * The samples go into DataSets of this app's raw data source, split at MAX_POINTS_PER_REQUEST
+ * points, and at most MAX_IN_FLIGHT of those chunks are inserted at a time.
+ */
+public class BulkInserter {
+
+    private static final String TAG = "RNGoogleFit";
+
+    static final int MAX_POINTS_PER_REQUEST = 1000;
+    private static final int MAX_IN_FLIGHT = 2;
+    private static final long INSERT_TIMEOUT_SECONDS = 60;
+    // enough to see what went wrong without sending an error per sample over the bridge
+    private static final int MAX_ERRORS = 50;
+
+    private final GoogleFitManager googleFitManager;
+
+    public interface PointWriter {
+        /**
+         * Sets the time and values of the data point from a sample sent by JS.
+         */
+        void write(DataPoint dataPoint, ReadableMap sample);
+    }
+
+    public interface Completion {
+        /**
+         * Runs on the thread the Fit client delivers results on, once every chunk finished.
+         */
+        void onComplete(Result result);
+    }
+
+    public static class Result {
+        public int inserted = 0;
+        public int failed = 0;
+        public final List<String> errors = new ArrayList<>();
+        // chunks that were inserted
+        public final List<DataSet> dataSets = new ArrayList<>();
+        // indexes of samples Google Fit won't accept, sending them again doesn't help
+        public final Map<Integer, String> rejectedSamples = new TreeMap<>();
+        // indexes of samples whose request failed, they can be sent again
+        public final Map<Integer, String> failedSamples = new TreeMap<>();
+
+        void addError(String error) {
+            if (errors.size() < MAX_ERRORS) {
+                errors.add(error);
+            }
+        }
+
+        public WritableMap toMap() {
+            WritableMap map = Arguments.createMap();
+            map.putInt("inserted", inserted);
+            map.putInt("failed", failed);
+            WritableArray list = Arguments.createArray();
+            for (String error : errors) {
+                list.pushString(error);
+            }
+            map.putArray("errors", list);
+            return map;
+        }
+    }
+
+    public BulkInserter(GoogleFitManager googleFitManager) {
+        this.googleFitManager = googleFitManager;
+    }
+
+    public void insert(DataType dataType, ReadableArray samples, PointWriter writer, Completion completion) {
+        DataSource dataSource = new DataSource.Builder()
+                .setAppPackageName(GoogleFitPackage.PACKAGE_NAME)
+                .setDataType(dataType)
+                .setType(DataSource.TYPE_RAW)
+                .build();
+
+        Result result = new Result();
+        List<DataSet> chunks = new ArrayList<>();
+        // sample index of every point of every chunk
+        List<List<Integer>> chunkIndexes = new ArrayList<>();
+        DataSet chunk = null;
+
+        for (int i = 0; i < samples.size(); i++) {
+            if (chunk == null || chunk.getDataPoints().size() >= MAX_POINTS_PER_REQUEST) {
+                chunk = DataSet.create(dataSource);
+                chunks.add(chunk);
+                chunkIndexes.add(new ArrayList<Integer>());
+            }
+            try {
+                DataPoint dataPoint = chunk.createDataPoint();
+                writer.write(dataPoint, samples.getMap(i));
+                chunk.add(dataPoint);
+                chunkIndexes.get(chunkIndexes.size() - 1).add(i);
+            } catch (RuntimeException e) {
+                // missing fields or values Google Fit doesn't accept, only this sample is lost
+                result.failed++;
+                result.rejectedSamples.put(i, e.getMessage());
+                result.addError("Sample " + i + ": " + e.getMessage());
+            }
+        }
+
+        Log.i(TAG, "Inserting " + samples.size() + " " + dataType.getName() + " samples in " + chunks.size() + " requests");
+        new Run(chunks, chunkIndexes, result, completion).start();
+    }
+
+    /**
+     * Chunks of one insert, MAX_IN_FLIGHT of them in flight at a time.
+     */
+    private class Run {
+
+        private final List<DataSet> chunks;
+        private final List<List<Integer>> chunkIndexes;
+        private final Result result;
+        private final Completion completion;
+        private int next = 0;
+        private int remaining;
+
+        Run(List<DataSet> chunks, List<List<Integer>> chunkIndexes, Result result, Completion completion) {
+            this.chunks = chunks;
+            this.chunkIndexes = chunkIndexes;
+            this.result = result;
+            this.completion = completion;
+            this.remaining = chunks.size();
+        }
+
+        void start() {
+            if (remaining == 0) {
+                completion.onComplete(result);
+                return;
+            }
+            for (int i = 0; i < MAX_IN_FLIGHT; i++) {
+                launchNext();
+            }
+        }
+
+        private void launchNext() {
+            final int index;
+            synchronized (this) {
+                if (next >= chunks.size()) {
+                    return;
+                }
+                index = next++;
+            }
+            final DataSet dataSet = chunks.get(index);
+            if (dataSet.isEmpty()) {
+                finish(index, null);
+                return;
+            }
+            try {
+                Fitness.HistoryApi.insertData(googleFitManager.getGoogleApiClient(), dataSet)
+                        .setResultCallback(new ResultCallback<Status>() {
+                            @Override
+                            public void onResult(@NonNull Status status) {
+                                finish(index, status);
+                            }
+                        }, INSERT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (RuntimeException e) {
+                // the client isn't connected
+                Log.w(TAG, "Insert of chunk " + index + " failed", e);
+                finish(index, new Status(CommonStatusCodes.ERROR, e.getMessage()));
+            }
+        }
+
+        private void finish(int index, Status status) {
+            boolean done;
+            synchronized (this) {
+                DataSet dataSet = chunks.get(index);
+                int points = dataSet.getDataPoints().size();
+                if (status == null || status.isSuccess()) {
+                    result.inserted += points;
+                    if (points > 0) {
+                        result.dataSets.add(dataSet);
+                    }
+                } else {
+                    result.failed += points;
+                    List<Integer> indexes = chunkIndexes.get(index);
+                    for (Integer sample : indexes) {
+                        result.failedSamples.put(sample, status.getStatusMessage());
+                    }
+                    result.addError("Samples from " + indexes.get(0) + ": " + status.getStatusMessage());
+                }
+                done = --remaining == 0;
+            }
+            if (done) {
+                completion.onComplete(result);
+            } else {
+                launchNext();
+            }
+        }
+    }
+}
@@ -0,0 +1,331 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sums fine-grained samples into local calendar periods: hours, days, ISO weeks (Monday to
+ * Sunday) or months, in the time zone of the device. Period boundaries come from the
+ * calendar, so days around DST changes are 23 or 25 hours long instead of shifting by an hour.
+ *
+ * Used as a SampleWriter in front of the format writer. A sample belongs to the period that
+ * contains the middle of its startDate to endDate span (its date for nutrition), its numeric
+ * values are added up and written once per period with startDate, endDate and a period label
+ * ("2019-06-29T13", "2019-06-29", "2019-W26" or "2019-06"). Series timed by date keep a date column with the period start.
+ * Only meaningful for totals such as steps, distance, calories and nutrition.
+ *
+ * Selected with the rollup read option. History reads switch to hourly Fit buckets when it is
+ * set, since Fit's own day buckets are fixed 24 hour steps from the start of the range. Fit
+ * anchors its buckets at the start of the request, so that start is moved back to the local
+ * hour (getSourceStart), and every bucket then falls in a single period. Periods the requested
+ * range doesn't fully cover, including the first one when the start was moved back, are written
+ * with partial: true.
+ */
+public class CalendarRollup extends SampleWriter {
+
+    public static final String HOUR = "hour";
+    public static final String DAY = "day";
+    public static final String WEEK = "week";
+    public static final String MONTH = "month";
+
+    public static final long SOURCE_BUCKET_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private final String period;
+    private final SampleWriter out;
+
+    // periods by start time
+    private final TreeMap<Long, Period> periods = new TreeMap<>();
+    // requested range, periods reaching outside of it are partial
+    private long rangeStart = Long.MIN_VALUE;
+    private long rangeEnd = Long.MAX_VALUE;
+
+    private Long startDate;
+    private Long endDate;
+    private boolean dated = false;
+    private final Map<String, Double> values = new LinkedHashMap<>();
+    private final Map<String, Map<String, Double>> groups = new LinkedHashMap<>();
+
+    private static class Period {
+        final long endTime;
+        final String label;
+        final Map<String, Double> values = new LinkedHashMap<>();
+        final Map<String, Map<String, Double>> groups = new LinkedHashMap<>();
+
+        Period(long endTime, String label) {
+            this.endTime = endTime;
+            this.label = label;
+        }
+    }
+
+    public CalendarRollup(String period, SampleWriter out) {
+        if (!HOUR.equals(period) && !DAY.equals(period) && !WEEK.equals(period) && !MONTH.equals(period)) {
+            throw new IllegalArgumentException("Unknown rollup " + period);
+        }
+        this.period = period;
+        this.out = out;
+    }
+
+    /**
+     * @return The rollup read option, null when the samples are returned as Fit buckets them
+     */
+    public static String getPeriod(ReadableMap options) {
+        if (options != null && options.hasKey("rollup") && !options.isNull("rollup")) {
+            return options.getString("rollup");
+        }
+        return null;
+    }
+
+    /**
+     * Puts a rollup in front of the writer when the read options ask for one.
+     * @param startTime long Start of the requested range in milliseconds
+     * @param endTime long End of the requested range in milliseconds
+     */
+    public static SampleWriter wrap(ReadableMap options, SampleWriter out, long startTime, long endTime) {
+        String period = getPeriod(options);
+        return period != null ? new CalendarRollup(period, out).setRange(startTime, endTime) : out;
+    }
+
+    /**
+     * Sets the requested range, periods it doesn't fully cover are marked partial.
+     */
+    public CalendarRollup setRange(long startTime, long endTime) {
+        this.rangeStart = startTime;
+        this.rangeEnd = endTime;
+        return this;
+    }
+
+    /**
+     * @return Start of the Fit request: the local hour of startTime when the samples are rolled up,
+     * so the hourly buckets line up with the periods, otherwise startTime itself
+     */
+    public static long getSourceStart(ReadableMap options, long startTime) {
+        return getPeriod(options) != null ? getHourStart(startTime) : startTime;
+    }
+
+    /**
+     * @return Start of the local hour containing the time
+     */
+    public static long getHourStart(long time) {
+        // from the zone offset, so the repeated hour of a DST change stays two hours
+        // and zones with half hour offsets get their own hour boundaries
+        long hour = TimeUnit.HOURS.toMillis(1);
+        long local = time + TimeZone.getDefault().getOffset(time);
+        return time - (((local % hour) + hour) % hour);
+    }
+
+    /**
+     * @return Whether the UTC offset of the local zone changes within the range, for example for DST,
+     * so that not every local day in it is 24 hours long
+     */
+    public static boolean hasOffsetChange(long startTime, long endTime) {
+        TimeZone timeZone = TimeZone.getDefault();
+        int offset = timeZone.getOffset(startTime);
+        // zones change their offset at most a few times a year, never twice in a day
+        for (long time = startTime; time < endTime; time += TimeUnit.DAYS.toMillis(1)) {
+            if (timeZone.getOffset(time) != offset) {
+                return true;
+            }
+        }
+        return endTime > startTime && timeZone.getOffset(endTime - 1) != offset;
+    }
+
+    /**
+     * @return Size of the Fit buckets to read, hourly when the samples are rolled up
+     */
+    public static long getSourceBucketMillis(ReadableMap options, long defaultMillis) {
+        return getPeriod(options) != null ? SOURCE_BUCKET_MILLIS : defaultMillis;
+    }
+
+    /**
+     * Key of a series in DailyAggregateStore, hourly buckets are stored apart from the default ones.
+     */
+    public static String getSourceKey(String source, ReadableMap options) {
+        return getPeriod(options) != null ? source + "|1h" : source;
+    }
+
+    @Override
+    public void beginSample() {
+        startDate = null;
+        endDate = null;
+        values.clear();
+        groups.clear();
+    }
+
+    @Override
+    public void putDouble(String key, double value) {
+        if ("startDate".equals(key)) {
+            startDate = (long) value;
+        } else if ("date".equals(key)) {
+            startDate = (long) value;
+            dated = true;
+        } else if ("endDate".equals(key)) {
+            endDate = (long) value;
+        } else {
+            values.put(key, value);
+        }
+    }
+
+    @Override
+    public void putString(String key, String value) {
+        // labels of a single bucket don't carry over to the period
+    }
+
+    @Override
+    public void putBoolean(String key, boolean value) {
+    }
+
+    @Override
+    public void putDoubles(String key, Map<String, Double> values) {
+        groups.put(key, new LinkedHashMap<>(values));
+    }
+
+    @Override
+    public void putDay(long startTime) {
+        // written again for the period start
+    }
+
+    @Override
+    public void endSample() {
+        if (startDate == null) {
+            return;
+        }
+        // by the middle of the bucket, so a 24 hour bucket starting an hour before midnight
+        // after a DST change still counts for the day it mostly covers
+        long time = endDate != null && !dated && endDate > startDate ? startDate + (endDate - startDate) / 2 : startDate;
+        long start = getPeriodStart(time);
+        Period current = periods.get(start);
+        if (current == null) {
+            current = new Period(getPeriodEnd(start), getLabel(start));
+            periods.put(start, current);
+        }
+        add(current.values, values);
+        for (Map.Entry<String, Map<String, Double>> group : groups.entrySet()) {
+            Map<String, Double> sums = current.groups.get(group.getKey());
+            if (sums == null) {
+                sums = new LinkedHashMap<>();
+                current.groups.put(group.getKey(), sums);
+            }
+            add(sums, group.getValue());
+        }
+    }
+
+    @Override
+    public void addGap(long startTime, long endTime) {
+        out.addGap(startTime, endTime);
+    }
+
+    @Override
+    public int size() {
+        return periods.size();
+    }
+
+    @Override
+    public Object build() {
+        for (Map.Entry<Long, Period> entry : periods.entrySet()) {
+            Period current = entry.getValue();
+            out.beginSample();
+            out.putDouble("startDate", entry.getKey());
+            out.putDouble("endDate", current.endTime);
+            out.putString("period", current.label);
+            if (entry.getKey() < rangeStart || current.endTime > rangeEnd) {
+                out.putBoolean("partial", true);
+            }
+            if (dated) {
+                out.putDouble("date", entry.getKey());
+            }
+            out.putDay(entry.getKey());
+            for (Map.Entry<String, Double> value : current.values.entrySet()) {
+                out.putDouble(value.getKey(), value.getValue());
+            }
+            for (Map.Entry<String, Map<String, Double>> group : current.groups.entrySet()) {
+                out.putDoubles(group.getKey(), group.getValue());
+            }
+            out.endSample();
+        }
+        periods.clear();
+        return out.build();
+    }
+
+    private static void add(Map<String, Double> sums, Map<String, Double> values) {
+        for (Map.Entry<String, Double> value : values.entrySet()) {
+            Double sum = sums.get(value.getKey());
+            sums.put(value.getKey(), sum != null ? sum + value.getValue() : value.getValue());
+        }
+    }
+
+    long getPeriodStart(long time) {
+        if (HOUR.equals(period)) {
+            return getHourStart(time);
+        }
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        if (WEEK.equals(period)) {
+            // back to Monday, Calendar.SUNDAY is 1 and Calendar.MONDAY is 2
+            int daysSinceMonday = (calendar.get(Calendar.DAY_OF_WEEK) + 5) % 7;
+            calendar.add(Calendar.DAY_OF_MONTH, -daysSinceMonday);
+        } else if (MONTH.equals(period)) {
+            calendar.set(Calendar.DAY_OF_MONTH, 1);
+        }
+        return calendar.getTimeInMillis();
+    }
+
+    long getPeriodEnd(long periodStart) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(periodStart);
+        switch (period) {
+            case HOUR:
+                return periodStart + TimeUnit.HOURS.toMillis(1);
+            case WEEK:
+                calendar.add(Calendar.DAY_OF_MONTH, 7);
+                break;
+            case MONTH:
+                calendar.add(Calendar.MONTH, 1);
+                break;
+            default:
+                calendar.add(Calendar.DAY_OF_MONTH, 1);
+                break;
+        }
+        // a DST change at midnight moves the first moment of the day
+        return getPeriodStart(calendar.getTimeInMillis());
+    }
+
+    private String getLabel(long periodStart) {
+        switch (period) {
+            case HOUR:
+                return new SimpleDateFormat("yyyy-MM-dd'T'HH", Locale.US).format(periodStart);
+            case WEEK:
+                // the ISO week belongs to the year of its Thursday
+                Calendar thursday = Calendar.getInstance();
+                thursday.setTimeInMillis(periodStart);
+                thursday.add(Calendar.DAY_OF_MONTH, 3);
+                int week = (thursday.get(Calendar.DAY_OF_YEAR) - 1) / 7 + 1;
+                return String.format(Locale.US, "%d-W%02d", thursday.get(Calendar.YEAR), week);
+            case MONTH:
+                return new SimpleDateFormat("yyyy-MM", Locale.US).format(periodStart);
+            default:
+                return new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(periodStart);
+        }
+    }
+}
@@ -10,17 +10,18 @@
 
 package com.reactnative.googlefit;
 
-import android.os.AsyncTask;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.google.android.gms.common.api.Status;
 import com.google.android.gms.fitness.Fitness;
 import com.google.android.gms.fitness.data.Bucket;
 import com.google.android.gms.fitness.data.DataPoint;
@@ -36,6 +37,7 @@ import org.json.JSONObject;
 import java.text.DateFormat;
 import java.text.Format;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
@@ -46,7 +48,6 @@ import java.util.concurrent.TimeUnit;
 public class CalorieHistory {
     private ReactContext mReactContext;
     private GoogleFitManager googleFitManager;
-    private DataSet FoodDataSet;
 
     private static final String TAG = "CalorieHistory";
 
@@ -55,31 +56,65 @@ public class CalorieHistory {
         this.googleFitManager = googleFitManager;
     }
 
-    public ReadableArray aggregateDataByDate(long startTime, long endTime, boolean basalCalculation) {
+    public Object aggregateDataByDate(long startTime, long endTime, final boolean basalCalculation, ReadableMap options) {
 
         DateFormat dateFormat = DateFormat.getDateInstance();
         Log.i(TAG, "Range Start: " + dateFormat.format(startTime));
         Log.i(TAG, "Range End: " + dateFormat.format(endTime));
 
         //Check how much calories were expended in specific days.
-        DataReadRequest readRequest = new DataReadRequest.Builder()
-                .aggregate(DataType.TYPE_CALORIES_EXPENDED, DataType.AGGREGATE_CALORIES_EXPENDED)
-                .bucketByTime(1, TimeUnit.DAYS)
-                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
-                .build();
+        final long bucketMillis = CalendarRollup.getSourceBucketMillis(options, TimeUnit.DAYS.toMillis(1));
+        return googleFitManager.getAggregateStore().read("calories",
+                CalendarRollup.getSourceKey(DataType.AGGREGATE_CALORIES_EXPENDED.getName() + (basalCalculation ? "+basal" : ""), options),
+                startTime, endTime, options, "calorie",
+                new DailyAggregateStore.Fetcher() {
+                    @Override
+                    public void fetch(long rangeStart, long rangeEnd, SampleWriter writer) {
+                        readRange(rangeStart, rangeEnd, bucketMillis, writer, basalCalculation);
+                    }
+                });
+    }
 
-        DataReadResult dataReadResult = Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(1, TimeUnit.MINUTES);
+    private void readRange(long startTime, long endTime, final long bucketMillis, SampleWriter map, boolean basalCalculation) {
+        // Long ranges are read in shards of at most RangeSharder.MAX_BUCKETS_PER_SHARD buckets
+        List<RangeSharder.Shard> shards = googleFitManager.getRangeSharder().read(startTime, endTime,
+                RangeSharder.shardSizeForBuckets(bucketMillis),
+                new RangeSharder.RequestFactory() {
+                    @Override
+                    public DataReadRequest build(long shardStart, long shardEnd) {
+                        return new DataReadRequest.Builder()
+                                .aggregate(DataType.TYPE_CALORIES_EXPENDED, DataType.AGGREGATE_CALORIES_EXPENDED)
+                                .bucketByTime((int) bucketMillis, TimeUnit.MILLISECONDS)
+                                .setTimeRange(shardStart, shardEnd, TimeUnit.MILLISECONDS)
+                                .build();
+                    }
 
+                    @Override
+                    public String key(long shardStart, long shardEnd) {
+                        return DataReadCoalescer.key(DataType.TYPE_CALORIES_EXPENDED.getName(), DataType.AGGREGATE_CALORIES_EXPENDED, bucketMillis + "ms", shardStart, shardEnd);
+                    }
+                });
 
-        WritableArray map = Arguments.createArray();
+        // one read for the basal metabolic rate of the whole range instead of one per data point
+        BasalWindow basal = basalCalculation ? readBasal(startTime, endTime) : null;
 
+        for (RangeSharder.Shard shard : shards) {
+            if (shard.result == null) {
+                map.addGap(shard.startTime, shard.endTime);
+            } else {
+                processDataReadResult(shard.result, map, basal);
+            }
+        }
+    }
+
+    private void processDataReadResult(DataReadResult dataReadResult, SampleWriter map, BasalWindow basal) {
         //Used for aggregated data
         if (dataReadResult.getBuckets().size() > 0) {
             Log.i(TAG, "Number of buckets: " + dataReadResult.getBuckets().size());
             for (Bucket bucket : dataReadResult.getBuckets()) {
                 List<DataSet> dataSets = bucket.getDataSets();
                 for (DataSet dataSet : dataSets) {
-                    processDataSet(dataSet, map, basalCalculation);
+                    processDataSet(dataSet, map, basal);
                 }
             }
         }
@@ -87,57 +122,126 @@ public class CalorieHistory {
         else if (dataReadResult.getDataSets().size() > 0) {
             Log.i(TAG, "Number of returned DataSets: " + dataReadResult.getDataSets().size());
             for (DataSet dataSet : dataReadResult.getDataSets()) {
-                processDataSet(dataSet, map, basalCalculation);
+                processDataSet(dataSet, map, basal);
             }
         }
-
-        return map;
     }
 
 
-    // utility function that gets the basal metabolic rate averaged over a week
-    private float getBasalAVG(long _et) throws Exception {
-        float basalAVG = 0;
-        Calendar cal = java.util.Calendar.getInstance();
-        cal.setTime(new Date(_et));
-        //set start time to a week before end time
-        cal.add(Calendar.WEEK_OF_YEAR, -1);
-        long nst = cal.getTimeInMillis();
-
-        DataReadRequest.Builder builder = new DataReadRequest.Builder();
-        builder.aggregate(DataType.TYPE_BASAL_METABOLIC_RATE, DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY);
-        builder.bucketByTime(1, TimeUnit.DAYS);
-        builder.setTimeRange(nst, _et, TimeUnit.MILLISECONDS);
-        DataReadRequest readRequest = builder.build();
-
-        DataReadResult dataReadResult = Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await();
+    /**
+     * Reads the daily basal metabolic rate of the range plus the week before it, which is what
+     * BasalWindow needs to average the week before every data point of the range.
+     */
+    private BasalWindow readBasal(long startTime, long endTime) {
+        // the buckets start a whole number of days before startTime, so they line up with the calorie buckets
+        long leadIn = startTime - TimeUnit.DAYS.toMillis(BasalWindow.DAYS);
+
+        List<RangeSharder.Shard> shards;
+        try {
+            shards = googleFitManager.getRangeSharder().read(leadIn, endTime,
+                    RangeSharder.shardSizeForBuckets(TimeUnit.DAYS.toMillis(1)),
+                    new RangeSharder.RequestFactory() {
+                        @Override
+                        public DataReadRequest build(long shardStart, long shardEnd) {
+                            return new DataReadRequest.Builder()
+                                    .aggregate(DataType.TYPE_BASAL_METABOLIC_RATE, DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY)
+                                    .bucketByTime(1, TimeUnit.DAYS)
+                                    .setTimeRange(shardStart, shardEnd, TimeUnit.MILLISECONDS)
+                                    .build();
+                        }
+
+                        @Override
+                        public String key(long shardStart, long shardEnd) {
+                            return DataReadCoalescer.key(DataType.TYPE_BASAL_METABOLIC_RATE.getName(),
+                                    DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY, "1d", shardStart, shardEnd);
+                        }
+                    });
+        } catch (IllegalStateException e) {
+            // same as before: without a basal rate the calories are reported as they are
+            Log.w(TAG, "Failed to read the basal metabolic rate", e);
+            shards = new ArrayList<>();
+        }
 
-        if (dataReadResult.getStatus().isSuccess()) {
-            JSONObject obj = new JSONObject();
-            int avgsN = 0;
-            for (Bucket bucket : dataReadResult.getBuckets()) {
+        List<Long> starts = new ArrayList<>();
+        List<Float> averages = new ArrayList<>();
+        for (RangeSharder.Shard shard : shards) {
+            if (shard.result == null) {
+                continue;
+            }
+            for (Bucket bucket : shard.result.getBuckets()) {
                 // in the com.google.bmr.summary data type, each data point represents
                 // the average, maximum and minimum basal metabolic rate, in kcal per day, over the time interval of the data point.
                 DataSet ds = bucket.getDataSet(DataType.AGGREGATE_BASAL_METABOLIC_RATE_SUMMARY);
+                if (ds == null) {
+                    continue;
+                }
                 for (DataPoint dp : ds.getDataPoints()) {
-                    float avg = dp.getValue(Field.FIELD_AVERAGE).asFloat();
-                    basalAVG += avg;
-                    avgsN++;
+                    starts.add(bucket.getStartTime(TimeUnit.MILLISECONDS));
+                    averages.add(dp.getValue(Field.FIELD_AVERAGE).asFloat());
                 }
             }
+        }
+        return new BasalWindow(starts, averages);
+    }
+
+    /**
+     * Daily basal metabolic rates with prefix sums, so the average over the week before any
+     * point in time is a binary search and a subtraction.
+     */
+    static class BasalWindow {
+
+        static final int DAYS = 7;
+
+        private final long[] starts;
+        private final double[] sums;
+
+        BasalWindow(List<Long> starts, List<Float> averages) {
+            this.starts = new long[starts.size()];
+            this.sums = new double[starts.size() + 1];
+            for (int i = 0; i < starts.size(); i++) {
+                this.starts[i] = starts.get(i);
+                this.sums[i + 1] = this.sums[i] + averages.get(i);
+            }
+        }
+
+        /**
+         * @return Average of the daily averages in the week before endTime, 0 without data
+         */
+        float averageBefore(long endTime) {
+            int from = lowerBound(endTime - TimeUnit.DAYS.toMillis(DAYS));
+            int to = lowerBound(endTime);
+            if (to <= from) {
+                return 0;
+            }
             // do the average of the averages
-            if (avgsN != 0) basalAVG /= avgsN; // this a daily average
-            return basalAVG;
-        } else throw new Exception(dataReadResult.getStatus().getStatusMessage());
+            return (float) ((sums[to] - sums[from]) / (to - from)); // this a daily average
+        }
+
+        // index of the first day starting at or after time
+        private int lowerBound(long time) {
+            int low = 0;
+            int high = starts.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] < time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
     }
 
 
-    private void processDataSet(DataSet dataSet, WritableArray map, boolean basalCalculation) {
+    /**
+     * @param basal BasalWindow Basal metabolic rate to subtract, null to report the calories as they are
+     */
+    void processDataSet(DataSet dataSet, SampleWriter map, BasalWindow basal) {
         Log.i(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
         DateFormat dateFormat = DateFormat.getDateInstance();
         DateFormat timeFormat = DateFormat.getTimeInstance();
         Format formatter = new SimpleDateFormat("EEE");
-        WritableMap stepMap = Arguments.createMap();
 
 
         for (DataPoint dp : dataSet.getDataPoints()) {
@@ -153,25 +257,29 @@ public class CalorieHistory {
                 Log.i("History", "\tField: " + field.getName() +
                         " Value: " + dp.getValue(field));
 
-                stepMap.putString("day", day);
-                stepMap.putDouble("startDate", dp.getStartTime(TimeUnit.MILLISECONDS));
-                stepMap.putDouble("endDate", dp.getEndTime(TimeUnit.MILLISECONDS));
-                float basal = 0;
-                if (basalCalculation) {
-                    try {
-                        basal = getBasalAVG(dp.getEndTime(TimeUnit.MILLISECONDS));
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+                map.beginSample();
+                map.putDay(dp.getStartTime(TimeUnit.MILLISECONDS));
+                map.putDouble("startDate", dp.getStartTime(TimeUnit.MILLISECONDS));
+                map.putDouble("endDate", dp.getEndTime(TimeUnit.MILLISECONDS));
+                float basalAVG = 0;
+                if (basal != null) {
+                    // the rate is per day, buckets shorter than a day only lose their share of it
+                    long duration = dp.getEndTime(TimeUnit.MILLISECONDS) - dp.getStartTime(TimeUnit.MILLISECONDS);
+                    basalAVG = basal.averageBefore(dp.getEndTime(TimeUnit.MILLISECONDS))
+                            * Math.min(1f, (float) duration / TimeUnit.DAYS.toMillis(1));
                 }
-                stepMap.putDouble("calorie", dp.getValue(field).asFloat() - basal);
-                map.pushMap(stepMap);
+                map.putDouble("calorie", dp.getValue(field).asFloat() - basalAVG);
+                map.endSample();
             }
         }
     }
 
-    public boolean saveFood(ReadableMap foodSample) {
-        this.FoodDataSet = createDataForRequest(
+    /**
+     * Inserts one food sample and waits for Google Fit, so it must not run on the main thread.
+     * @return Status of the insert, as described by FitExecutor.describe
+     */
+    public WritableMap saveFood(ReadableMap foodSample) {
+        DataSet dataSet = createDataForRequest(
                 DataType.TYPE_NUTRITION,    // for height, it would be DataType.TYPE_HEIGHT
                 DataSource.TYPE_RAW,
                 foodSample.getMap("nutrients").toHashMap(),
@@ -181,44 +289,68 @@ public class CalorieHistory {
                 (long)foodSample.getDouble("date"),             // end time
                 TimeUnit.MILLISECONDS                // Time Unit, for example, TimeUnit.MILLISECONDS
         );
-        new CalorieHistory.InsertAndVerifyDataTask(this.FoodDataSet).execute();
-
-        return true;
-    }
-
-    //Async fit data insert
-    private class InsertAndVerifyDataTask extends AsyncTask<Void, Void, Void> {
-
-        private DataSet FoodDataset;
-
-        InsertAndVerifyDataTask(DataSet dataset) {
-            this.FoodDataset = dataset;
+        // Always include a timeout when calling await() to prevent hanging that can occur from
+        // the service being shutdown because of low memory or other conditions.
+        Status insertStatus = Fitness.HistoryApi.insertData(googleFitManager.getGoogleApiClient(), dataSet)
+                .await(1, TimeUnit.MINUTES);
+
+        if (insertStatus.isSuccess()) {
+            // a stored nutrition day would otherwise hide the new meal
+            long date = (long) foodSample.getDouble("date");
+            googleFitManager.getAggregateStore().invalidate("nutrition", date, date);
+        } else {
+            Log.w(TAG, "Failed to insert food: " + insertStatus);
         }
+        return FitExecutor.describe(insertStatus);
+    }
 
-        protected Void doInBackground(Void... params) {
-            // Create a new dataset and insertion request.
-            DataSet dataSet = this.FoodDataset;
-
-            // [START insert_dataset]
-            // Then, invoke the History API to insert the data and await the result, which is
-            // possible here because of the {@link AsyncTask}. Always include a timeout when calling
-            // await() to prevent hanging that can occur from the service being shutdown because
-            // of low memory or other conditions.
-            //Log.i(TAG, "Inserting the dataset in the History API.");
-            com.google.android.gms.common.api.Status insertStatus =
-                    Fitness.HistoryApi.insertData(googleFitManager.getGoogleApiClient(), dataSet)
-                            .await(1, TimeUnit.MINUTES);
-
-            // Before querying the data, check to see if the insertion succeeded.
-            if (!insertStatus.isSuccess()) {
-                //Log.i(TAG, "There was a problem inserting the dataset.");
-                return null;
+    /**
+     * Inserts many food samples (same shape as saveFood) in as few requests as possible.
+     * Resolves {inserted, failed, errors} once every request finished.
+     */
+    public void saveFoods(ReadableArray foodSamples, final Promise promise) {
+        saveFoods(foodSamples, new BulkInserter.Completion() {
+            @Override
+            public void onComplete(BulkInserter.Result result) {
+                promise.resolve(result.toMap());
             }
+        });
+    }
 
-            //Log.i(TAG, "Data insert was successful!");
-
-            return null;
-        }
+    public void saveFoods(ReadableArray foodSamples, final BulkInserter.Completion completion) {
+        googleFitManager.getBulkInserter().insert(DataType.TYPE_NUTRITION, foodSamples, new BulkInserter.PointWriter() {
+            @Override
+            public void write(DataPoint dataPoint, ReadableMap foodSample) {
+                long date = (long) foodSample.getDouble("date");
+                dataPoint.setTimeInterval(date, date, TimeUnit.MILLISECONDS);
+                dataPoint.getValue(Field.FIELD_FOOD_ITEM).setString(foodSample.getString("foodName"));
+                dataPoint.getValue(Field.FIELD_MEAL_TYPE).setInt(foodSample.getInt("mealType"));
+                HashMap<String, Object> nutrients = foodSample.getMap("nutrients").toHashMap();
+                for (String key : nutrients.keySet()) {
+                    Float value = Float.valueOf(nutrients.get(key).toString());
+                    if (value > 0) {
+                        dataPoint.getValue(Field.FIELD_NUTRIENTS).setKeyValue(key, value);
+                    }
+                }
+            }
+        }, new BulkInserter.Completion() {
+            @Override
+            public void onComplete(BulkInserter.Result result) {
+                // stored nutrition days would otherwise hide the new meals
+                long first = Long.MAX_VALUE;
+                long last = Long.MIN_VALUE;
+                for (DataSet dataSet : result.dataSets) {
+                    for (DataPoint dp : dataSet.getDataPoints()) {
+                        first = Math.min(first, dp.getStartTime(TimeUnit.MILLISECONDS));
+                        last = Math.max(last, dp.getStartTime(TimeUnit.MILLISECONDS));
+                    }
+                }
+                if (first <= last) {
+                    googleFitManager.getAggregateStore().invalidate("nutrition", first, last);
+                }
+                completion.onComplete(result);
+            }
+        });
     }
 
     /**
@@ -0,0 +1,444 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-device store of daily aggregates keyed by (metric, local day, source).
+ *
+ * Daily reads go through read(): days that are already stored come from disk, the
+ * trailing refreshDays days and any missing days are fetched from Google Fit. A day is
+ * only stored once it ended more than refreshDays days ago, so late syncs from other
+ * apps and devices are still picked up while they are likely to happen.
+ *
+ * The store is only used when the range starts at local midnight, since otherwise the
+ * buckets Google Fit returns don't line up with local days. Read options:
+ * cache: false bypasses the store, refreshDays (default 7) sets the trailing window.
+ */
+public class DailyAggregateStore extends SQLiteOpenHelper {
+
+    private static final String TAG = "RNGoogleFit";
+
+    private static final String DATABASE_NAME = "RNGoogleFitAggregates.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final String TABLE = "daily_aggregates";
+
+    private static final int DEFAULT_REFRESH_DAYS = 7;
+    private static final String DAY_KEY = "@day";
+
+    public interface Fetcher {
+        /**
+         * Reads the range from Google Fit and writes its samples, and the ranges that
+         * could not be read as gaps, into the writer.
+         */
+        void fetch(long startTime, long endTime, SampleWriter writer);
+    }
+
+    public DailyAggregateStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + "metric TEXT NOT NULL, "
+                + "day TEXT NOT NULL, "
+                + "source TEXT NOT NULL, "
+                + "samples TEXT NOT NULL, "
+                + "fetched_at INTEGER NOT NULL, "
+                + "PRIMARY KEY (metric, day, source))");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    /**
+     * Reads daily samples of a metric, from disk where possible.
+     * @param metric String Name of the metric, for example "steps"
+     * @param source String Identifies the data source or variant of the metric
+     * @param startTime long Start of the range in milliseconds
+     * @param endTime long End of the range in milliseconds
+     * @param options ReadableMap Read options from JS, may be null
+     * @param type String Series name passed to SampleWriter.create
+     * @param fetcher Fetcher Reads a range from Google Fit
+     * @return Payload built by the SampleWriter
+     */
+    public Object read(String metric, String source, long startTime, long endTime,
+                       ReadableMap options, String type, Fetcher fetcher) {
+        SampleWriter out = CalendarRollup.wrap(options, SampleWriter.create(options, type), startTime, endTime);
+        read(metric, source, startTime, endTime, options, out, fetcher);
+        return out.build();
+    }
+
+    /**
+     * Same as above, but writes the samples into the given writer instead of building a payload.
+     */
+    public void read(String metric, String source, long startTime, long endTime,
+                     ReadableMap options, SampleWriter out, Fetcher fetcher) {
+        if (!isCacheEnabled(options) || endTime <= startTime || startOfDay(startTime) != startTime) {
+            // stored runs start at midnight, only this start may need aligning for a rollup
+            fetcher.fetch(CalendarRollup.getSourceStart(options, startTime), endTime, out);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long settleMillis = TimeUnit.DAYS.toMillis(getRefreshDays(options));
+
+        Map<String, Long> dayStarts = new LinkedHashMap<>();
+        for (long day = startTime; day < endTime; day = nextDay(day)) {
+            dayStarts.put(formatDay(day), day);
+        }
+        List<String> days = new ArrayList<>(dayStarts.keySet());
+
+        Map<String, JSONArray> stored = load(metric, source, dayStarts, settleMillis);
+
+        // fetch every run of consecutive days that isn't stored yet
+        Map<String, List<JSONObject>> fetched = new HashMap<>();
+        List<long[]> gaps = new ArrayList<>();
+        int i = 0;
+        while (i < days.size()) {
+            if (stored.containsKey(days.get(i))) {
+                i++;
+                continue;
+            }
+            int j = i;
+            while (j + 1 < days.size() && !stored.containsKey(days.get(j + 1))) {
+                j++;
+            }
+            // Fit buckets are fixed steps from the start of the request, so a day that isn't 24 hours
+            // long is read on its own and the days after it start a new request at their midnight
+            while (i <= j) {
+                int last = i;
+                if (!isShifted(dayStarts.get(days.get(i)))) {
+                    while (last < j && !isShifted(dayStarts.get(days.get(last + 1)))) {
+                        last++;
+                    }
+                }
+                long runStart = dayStarts.get(days.get(i));
+                long runEnd = Math.min(nextDay(dayStarts.get(days.get(last))), endTime);
+
+                Recorder recorder = new Recorder();
+                fetcher.fetch(runStart, runEnd, recorder);
+                recorder.groupByDay(fetched);
+                gaps.addAll(recorder.gaps);
+                i = last + 1;
+            }
+        }
+
+        if (stored.size() < days.size()) {
+            save(metric, source, dayStarts, stored, endTime, fetched, gaps, now, settleMillis);
+        }
+        Log.i(TAG, metric + " - " + stored.size() + " of " + days.size() + " days read from disk");
+
+        for (String day : days) {
+            try {
+                JSONArray samples = stored.get(day);
+                if (samples != null) {
+                    for (int k = 0; k < samples.length(); k++) {
+                        replay(samples.getJSONObject(k), out);
+                    }
+                } else if (fetched.containsKey(day)) {
+                    for (JSONObject sample : fetched.get(day)) {
+                        replay(sample, out);
+                    }
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, "Failed to read stored " + metric + " for " + day, e);
+            }
+        }
+        for (long[] gap : gaps) {
+            out.addGap(gap[0], gap[1]);
+        }
+    }
+
+    /**
+     * Drops every stored day, for example after the user signed out.
+     */
+    public void clear() {
+        getWritableDatabase().delete(TABLE, null, null);
+    }
+
+    /**
+     * Drops the stored days of a metric that overlap the range, after data was written to it.
+     */
+    public void invalidate(String metric, long startTime, long endTime) {
+        getWritableDatabase().delete(TABLE, "metric = ? AND day >= ? AND day <= ?",
+                new String[] {metric, formatDay(startTime), formatDay(endTime)});
+    }
+
+    private Map<String, JSONArray> load(String metric, String source, Map<String, Long> dayStarts, long settleMillis) {
+        Map<String, JSONArray> stored = new HashMap<>();
+        List<String> days = new ArrayList<>(dayStarts.keySet());
+        Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT day, samples, fetched_at FROM " + TABLE
+                        + " WHERE metric = ? AND source = ? AND day >= ? AND day <= ?",
+                new String[] {metric, source, days.get(0), days.get(days.size() - 1)});
+        try {
+            while (cursor.moveToNext()) {
+                String day = cursor.getString(0);
+                Long dayStart = dayStarts.get(day);
+                // a row stored under a shorter refreshDays than this read asks for is refetched
+                if (dayStart == null || cursor.getLong(2) < nextDay(dayStart) + settleMillis) {
+                    continue;
+                }
+                try {
+                    stored.put(day, new JSONArray(cursor.getString(1)));
+                } catch (JSONException e) {
+                    Log.w(TAG, "Dropping unreadable stored " + metric + " for " + day);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return stored;
+    }
+
+    private void save(String metric, String source, Map<String, Long> dayStarts, Map<String, JSONArray> stored,
+                      long endTime, Map<String, List<JSONObject>> fetched, List<long[]> gaps,
+                      long now, long settleMillis) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, Long> entry : dayStarts.entrySet()) {
+                String day = entry.getKey();
+                long dayStart = entry.getValue();
+                long dayEnd = nextDay(dayStart);
+                // only whole, settled days that were just read without errors are stored
+                if (stored.containsKey(day) || dayEnd > endTime || dayEnd + settleMillis > now
+                        || overlapsGap(dayStart, dayEnd, gaps)) {
+                    continue;
+                }
+                JSONArray array = new JSONArray();
+                List<JSONObject> samples = fetched.get(day);
+                if (samples != null) {
+                    for (JSONObject sample : samples) {
+                        array.put(sample);
+                    }
+                }
+                ContentValues values = new ContentValues();
+                values.put("metric", metric);
+                values.put("day", day);
+                values.put("source", source);
+                values.put("samples", array.toString());
+                values.put("fetched_at", now);
+                db.insertWithOnConflict(TABLE, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static boolean overlapsGap(long dayStart, long dayEnd, List<long[]> gaps) {
+        for (long[] gap : gaps) {
+            if (gap[0] < dayEnd && gap[1] > dayStart) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the read options allow cached data, { cache: false } asks for a fresh read.
+     */
+    static boolean isCacheEnabled(ReadableMap options) {
+        return options == null
+                || !options.hasKey("cache")
+                || options.isNull("cache")
+                || options.getBoolean("cache");
+    }
+
+    private static int getRefreshDays(ReadableMap options) {
+        if (options != null && options.hasKey("refreshDays") && !options.isNull("refreshDays")) {
+            return Math.max(0, options.getInt("refreshDays"));
+        }
+        return DEFAULT_REFRESH_DAYS;
+    }
+
+    private static long startOfDay(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    // days are 23 or 25 hours long around DST changes, so step with the calendar
+    private static long nextDay(long dayStart) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(dayStart);
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        return startOfDay(calendar.getTimeInMillis());
+    }
+
+    /**
+     * Whether the local day is 23 or 25 hours long, because of a DST change.
+     */
+    private static boolean isShifted(long dayStart) {
+        return nextDay(dayStart) - dayStart != TimeUnit.DAYS.toMillis(1);
+    }
+
+    private static String formatDay(long time) {
+        return new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(time);
+    }
+
+    private static void replay(JSONObject sample, SampleWriter out) throws JSONException {
+        out.beginSample();
+        Iterator<String> keys = sample.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = sample.get(key);
+            if (DAY_KEY.equals(key)) {
+                out.putDay(((Number) value).longValue());
+            } else if (value instanceof Number) {
+                out.putDouble(key, ((Number) value).doubleValue());
+            } else if (value instanceof Boolean) {
+                out.putBoolean(key, (Boolean) value);
+            } else if (value instanceof JSONObject) {
+                JSONObject nested = (JSONObject) value;
+                Map<String, Double> values = new LinkedHashMap<>();
+                Iterator<String> nestedKeys = nested.keys();
+                while (nestedKeys.hasNext()) {
+                    String nestedKey = nestedKeys.next();
+                    values.put(nestedKey, nested.getDouble(nestedKey));
+                }
+                out.putDoubles(key, values);
+            } else if (value instanceof String) {
+                out.putString(key, (String) value);
+            }
+        }
+        out.endSample();
+    }
+
+    /**
+     * Records samples as JSON so that they can be stored per day and replayed later.
+     */
+    private static class Recorder extends SampleWriter {
+
+        private final List<JSONObject> samples = new ArrayList<>();
+        private final List<long[]> gaps = new ArrayList<>();
+        private JSONObject current;
+
+        @Override
+        public void beginSample() {
+            current = new JSONObject();
+        }
+
+        @Override
+        public void putDouble(String key, double value) {
+            put(key, value);
+        }
+
+        @Override
+        public void putString(String key, String value) {
+            put(key, value);
+        }
+
+        @Override
+        public void putBoolean(String key, boolean value) {
+            put(key, value);
+        }
+
+        @Override
+        public void putDoubles(String key, Map<String, Double> values) {
+            JSONObject nested = new JSONObject();
+            try {
+                for (Map.Entry<String, Double> entry : values.entrySet()) {
+                    nested.put(entry.getKey(), entry.getValue().doubleValue());
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, "Skipping value of " + key, e);
+            }
+            put(key, nested);
+        }
+
+        @Override
+        public void putDay(long startTime) {
+            put(DAY_KEY, startTime);
+        }
+
+        @Override
+        public void endSample() {
+            samples.add(current);
+            current = null;
+        }
+
+        @Override
+        public void addGap(long startTime, long endTime) {
+            gaps.add(new long[] {startTime, endTime});
+        }
+
+        @Override
+        public int size() {
+            return samples.size();
+        }
+
+        @Override
+        public Object build() {
+            return samples;
+        }
+
+        private void put(String key, Object value) {
+            try {
+                current.put(key, value);
+            } catch (JSONException e) {
+                // NaN and infinite values can't be stored, leave the cell empty
+                Log.w(TAG, "Skipping value of " + key, e);
+            }
+        }
+
+        /**
+         * Samples belong to the local day that contains the middle of their interval, which
+         * keeps a bucket on its day when DST shifts it by an hour.
+         */
+        void groupByDay(Map<String, List<JSONObject>> days) {
+            for (JSONObject sample : samples) {
+                // nutrition samples are timed by date
+                long start = (long) sample.optDouble("startDate", sample.optDouble("date", 0));
+                long end = (long) sample.optDouble("endDate", start);
+                String day = formatDay(start + (end - start) / 2);
+                List<JSONObject> list = days.get(day);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    days.put(day, list);
+                }
+                list.add(sample);
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.fitness.Fitness;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.request.DataReadRequest;
+import com.google.android.gms.fitness.result.DataReadResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-flight layer in front of HistoryApi.readData. Identical requests issued while
+ * one is still in flight are not sent to the Fit service again - every caller waiting
+ * on the same key receives the one DataReadResult.
+ */
+public class DataReadCoalescer {
+
+    private static final String TAG = "RNGoogleFit";
+
+    private static final long READ_TIMEOUT_MINUTES = 1;
+
+    private final GoogleFitManager googleFitManager;
+    private final ConcurrentHashMap<String, Flight> inFlight = new ConcurrentHashMap<>();
+
+    public DataReadCoalescer(GoogleFitManager googleFitManager) {
+        this.googleFitManager = googleFitManager;
+    }
+
+    /**
+     * Builds the key identifying a read. Two reads with the same key must produce the same result.
+     * @param input String Name of the input data type or stream identifier of the data source
+     * @param aggregate DataType Aggregate data type, null for raw reads
+     * @param bucketSpec String Bucketing of the request, for example "1d" or "12h"
+     * @param startTime long Start of the range in milliseconds
+     * @param endTime long End of the range in milliseconds
+     * @return
+     */
+    public static String key(String input, DataType aggregate, String bucketSpec, long startTime, long endTime) {
+        return input + "|" + (aggregate != null ? aggregate.getName() : "raw") + "|" + bucketSpec
+                + "|" + startTime + "|" + endTime;
+    }
+
+    /**
+     * Reads asynchronously. The callback runs on the thread the Fit client delivers results on.
+     */
+    public void read(String key, DataReadRequest request, ResultCallback<DataReadResult> callback) {
+        while (true) {
+            Flight flight = inFlight.get(key);
+            if (flight == null) {
+                Flight created = new Flight(key);
+                flight = inFlight.putIfAbsent(key, created);
+                if (flight == null) {
+                    created.addWaiter(callback);
+                    Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), request)
+                            .setResultCallback(created, READ_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+                    return;
+                }
+            }
+            if (flight.addWaiter(callback)) {
+                Log.i(TAG, "Joined in-flight read " + key);
+                return;
+            }
+            // the flight completed between get() and addWaiter(), start over
+        }
+    }
+
+    /**
+     * Reads and blocks the calling thread until the shared result arrives. Must not be
+     * called on the main thread.
+     */
+    public DataReadResult await(String key, DataReadRequest request) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final DataReadResult[] holder = new DataReadResult[1];
+
+        read(key, request, new ResultCallback<DataReadResult>() {
+            @Override
+            public void onResult(@NonNull DataReadResult dataReadResult) {
+                holder[0] = dataReadResult;
+                latch.countDown();
+            }
+        });
+
+        try {
+            // give the Fit client a little longer than its own timeout to report back
+            if (!latch.await(READ_TIMEOUT_MINUTES * 60 + 5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Timed out waiting for Google Fit read " + key);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for Google Fit read " + key);
+        }
+        return holder[0];
+    }
+
+    private class Flight implements ResultCallback<DataReadResult> {
+
+        private final String key;
+        private final List<ResultCallback<DataReadResult>> waiters = new ArrayList<>();
+        private boolean done = false;
+
+        Flight(String key) {
+            this.key = key;
+        }
+
+        synchronized boolean addWaiter(ResultCallback<DataReadResult> callback) {
+            if (done) {
+                return false;
+            }
+            waiters.add(callback);
+            return true;
+        }
+
+        @Override
+        public void onResult(@NonNull DataReadResult dataReadResult) {
+            // unpublish first so that late callers start a fresh read instead of spinning on this one
+            inFlight.remove(key, this);
+
+            List<ResultCallback<DataReadResult>> callbacks;
+            synchronized (this) {
+                done = true;
+                callbacks = new ArrayList<>(waiters);
+                waiters.clear();
+            }
+
+            if (callbacks.size() > 1) {
+                Log.i(TAG, "Shared read " + key + " with " + callbacks.size() + " callers");
+            }
+            for (ResultCallback<DataReadResult> callback : callbacks) {
+                try {
+                    callback.onResult(dataReadResult);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Read callback for " + key + " failed", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.fitness.Fitness;
+import com.google.android.gms.fitness.data.DataSource;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.request.DataSourcesRequest;
+import com.google.android.gms.fitness.result.DataSourcesResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Step data sources discovered with SensorsApi.findDataSources. Discovery runs once per
+ * connection (and again after MAX_AGE_MILLIS), callers asking while it runs are queued
+ * and get the result as soon as it arrives.
+ */
+public class DataSourceCatalogue {
+
+    private static final String TAG = "RNGoogleFit";
+
+    private static final long MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(12);
+    private static final long DISCOVERY_TIMEOUT_SECONDS = 30;
+
+    private final GoogleFitManager googleFitManager;
+
+    private List<DataSource> sources;
+    private long discoveredAt;
+    private boolean discovering = false;
+    private final List<Listener> pending = new ArrayList<>();
+
+    public interface Listener {
+        /**
+         * @param sources Discovered step sources, step count deltas and cumulative counts
+         */
+        void onSources(List<DataSource> sources);
+    }
+
+    public DataSourceCatalogue(GoogleFitManager googleFitManager) {
+        this.googleFitManager = googleFitManager;
+    }
+
+    /**
+     * The sources the step history always reads, whether discovery found them or not.
+     */
+    public static List<DataSource> getDefaultStepSources() {
+        List<DataSource> dataSources = new ArrayList<>();
+
+        // GoogleFit Apps
+        dataSources.add(
+            new DataSource.Builder()
+                .setAppPackageName("com.google.android.gms")
+                .setDataType(DataType.TYPE_STEP_COUNT_DELTA)
+                .setType(DataSource.TYPE_DERIVED)
+                .setStreamName("estimated_steps")
+                .build()
+        );
+
+        // GoogleFit Apps
+        dataSources.add(
+            new DataSource.Builder()
+                .setAppPackageName("com.google.android.gms")
+                .setDataType(DataType.TYPE_STEP_COUNT_DELTA)
+                .setType(DataSource.TYPE_DERIVED)
+                .setStreamName("merge_step_deltas")
+                .build()
+        );
+
+        // Mi Fit
+        dataSources.add(
+            new DataSource.Builder()
+                .setAppPackageName("com.xiaomi.hm.health")
+                .setDataType(DataType.TYPE_STEP_COUNT_DELTA)
+                .setType(DataSource.TYPE_RAW)
+                .setStreamName("")
+                .build()
+        );
+        return dataSources;
+    }
+
+    /**
+     * Step count delta sources to read history from: the defaults followed by every
+     * discovered delta source that isn't one of them.
+     */
+    public static List<DataSource> getStepDeltaSources(List<DataSource> discovered) {
+        List<DataSource> dataSources = getDefaultStepSources();
+        Set<String> streams = new HashSet<>();
+        for (DataSource dataSource : dataSources) {
+            streams.add(dataSource.getStreamIdentifier());
+        }
+        for (DataSource dataSource : discovered) {
+            if (DataType.TYPE_STEP_COUNT_DELTA.equals(dataSource.getDataType())
+                    && streams.add(dataSource.getStreamIdentifier())) {
+                dataSources.add(dataSource);
+            }
+        }
+        return dataSources;
+    }
+
+    /**
+     * Starts discovery in the background unless a fresh catalogue is already there.
+     */
+    public void refresh() {
+        getStepSources(null);
+    }
+
+    /**
+     * Hands the step sources to the listener, right away when they are known, otherwise
+     * once discovery finished. Listeners run on the thread the Fit client delivers results on.
+     */
+    public void getStepSources(Listener listener) {
+        List<DataSource> known = null;
+        boolean start = false;
+        synchronized (this) {
+            if (sources != null && SystemClock.elapsedRealtime() - discoveredAt < MAX_AGE_MILLIS) {
+                known = sources;
+            } else {
+                if (listener != null) {
+                    pending.add(listener);
+                }
+                if (!discovering) {
+                    discovering = true;
+                    start = true;
+                }
+            }
+        }
+
+        if (known != null) {
+            if (listener != null) {
+                listener.onSources(known);
+            }
+        } else if (start) {
+            discover();
+        }
+    }
+
+    /**
+     * Forgets the catalogue, the next caller runs discovery again.
+     */
+    public synchronized void invalidate() {
+        sources = null;
+    }
+
+    private void discover() {
+        DataSourcesRequest dataSourceRequest = new DataSourcesRequest.Builder()
+                .setDataTypes(DataType.TYPE_STEP_COUNT_DELTA, DataType.TYPE_STEP_COUNT_CUMULATIVE)
+                .setDataSourceTypes(DataSource.TYPE_RAW, DataSource.TYPE_DERIVED)
+                .build();
+
+        try {
+            Fitness.SensorsApi.findDataSources(googleFitManager.getGoogleApiClient(), dataSourceRequest)
+                    .setResultCallback(new ResultCallback<DataSourcesResult>() {
+                        @Override
+                        public void onResult(@NonNull DataSourcesResult dataSourcesResult) {
+                            if (dataSourcesResult.getStatus().isSuccess()) {
+                                Log.i(TAG, "Discovered " + dataSourcesResult.getDataSources().size() + " step data sources");
+                                finish(dataSourcesResult.getDataSources(), true);
+                            } else {
+                                Log.w(TAG, "Step data source discovery failed: " + dataSourcesResult.getStatus());
+                                finish(Collections.<DataSource>emptyList(), false);
+                            }
+                        }
+                    }, DISCOVERY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (RuntimeException e) {
+            // the client isn't connected yet
+            Log.w(TAG, "Step data source discovery failed", e);
+            finish(Collections.<DataSource>emptyList(), false);
+        }
+    }
+
+    private void finish(List<DataSource> discovered, boolean keep) {
+        List<Listener> listeners;
+        List<DataSource> result = Collections.unmodifiableList(new ArrayList<>(discovered));
+        synchronized (this) {
+            discovering = false;
+            if (keep) {
+                sources = result;
+                discoveredAt = SystemClock.elapsedRealtime();
+            }
+            listeners = new ArrayList<>(pending);
+            pending.clear();
+        }
+        for (Listener listener : listeners) {
+            try {
+                listener.onSources(result);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Data source listener failed", e);
+            }
+        }
+    }
+}
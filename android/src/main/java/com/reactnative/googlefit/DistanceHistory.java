@@ -17,6 +17,7 @@ import android.util.Log;
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
@@ -49,24 +50,55 @@ public class DistanceHistory {
         this.googleFitManager = googleFitManager;
     }
 
-    public ReadableArray aggregateDataByDate(long startTime, long endTime) {
+    public Object aggregateDataByDate(long startTime, long endTime, ReadableMap options) {
 
         DateFormat dateFormat = DateFormat.getDateInstance();
         Log.i(TAG, "Range Start: " + dateFormat.format(startTime));
         Log.i(TAG, "Range End: " + dateFormat.format(endTime));
 
         //Check how much distance were walked and recorded in specified days
-        DataReadRequest readRequest = new DataReadRequest.Builder()
-                .aggregate(DataType.TYPE_DISTANCE_DELTA, DataType.AGGREGATE_DISTANCE_DELTA)
-                .bucketByTime(1, TimeUnit.DAYS)
-                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
-                .build();
-
-        DataReadResult dataReadResult = Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(1, TimeUnit.MINUTES);
+        final long bucketMillis = CalendarRollup.getSourceBucketMillis(options, TimeUnit.DAYS.toMillis(1));
+        return googleFitManager.getAggregateStore().read("distance",
+                CalendarRollup.getSourceKey(DataType.AGGREGATE_DISTANCE_DELTA.getName(), options), startTime, endTime, options, "distance",
+                new DailyAggregateStore.Fetcher() {
+                    @Override
+                    public void fetch(long rangeStart, long rangeEnd, SampleWriter writer) {
+                        readRange(rangeStart, rangeEnd, bucketMillis, writer);
+                    }
+                });
+    }
 
+    private void readRange(long startTime, long endTime, final long bucketMillis, SampleWriter map) {
+        // Long ranges are read in shards of at most RangeSharder.MAX_BUCKETS_PER_SHARD buckets
+        List<RangeSharder.Shard> shards = googleFitManager.getRangeSharder().read(startTime, endTime,
+                RangeSharder.shardSizeForBuckets(bucketMillis),
+                new RangeSharder.RequestFactory() {
+                    @Override
+                    public DataReadRequest build(long shardStart, long shardEnd) {
+                        return new DataReadRequest.Builder()
+                                .aggregate(DataType.TYPE_DISTANCE_DELTA, DataType.AGGREGATE_DISTANCE_DELTA)
+                                .bucketByTime((int) bucketMillis, TimeUnit.MILLISECONDS)
+                                .setTimeRange(shardStart, shardEnd, TimeUnit.MILLISECONDS)
+                                .build();
+                    }
+
+                    @Override
+                    public String key(long shardStart, long shardEnd) {
+                        return DataReadCoalescer.key(DataType.TYPE_DISTANCE_DELTA.getName(), DataType.AGGREGATE_DISTANCE_DELTA, bucketMillis + "ms", shardStart, shardEnd);
+                    }
+                });
+
+        for (RangeSharder.Shard shard : shards) {
+            if (shard.result == null) {
+                map.addGap(shard.startTime, shard.endTime);
+            } else {
+                processDataReadResult(shard.result, map);
+            }
+        }
 
-        WritableArray map = Arguments.createArray();
+    }
 
+    private void processDataReadResult(DataReadResult dataReadResult, SampleWriter map) {
         //Used for aggregated data
         if (dataReadResult.getBuckets().size() > 0) {
             Log.i(TAG, "Number of buckets: " + dataReadResult.getBuckets().size());
@@ -84,19 +116,15 @@ public class DistanceHistory {
                 processDataSet(dataSet, map);
             }
         }
-
-        return map;
     }
 
 
-    private void processDataSet(DataSet dataSet, WritableArray map) {
+    void processDataSet(DataSet dataSet, SampleWriter map) {
         Log.i(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
         DateFormat dateFormat = DateFormat.getDateInstance();
         DateFormat timeFormat = DateFormat.getTimeInstance();
         Format formatter = new SimpleDateFormat("EEE");
 
-        WritableMap stepMap = Arguments.createMap();
-
 
         for (DataPoint dp : dataSet.getDataPoints()) {
             Log.i(TAG, "Data point:");
@@ -111,11 +139,12 @@ public class DistanceHistory {
                 Log.i("History", "\tField: " + field.getName() +
                         " Value: " + dp.getValue(field));
 
-                stepMap.putString("day", day);
-                stepMap.putDouble("startDate", dp.getStartTime(TimeUnit.MILLISECONDS));
-                stepMap.putDouble("endDate", dp.getEndTime(TimeUnit.MILLISECONDS));
-                stepMap.putDouble("distance", dp.getValue(field).asFloat());
-                map.pushMap(stepMap);
+                map.beginSample();
+                map.putDay(dp.getStartTime(TimeUnit.MILLISECONDS));
+                map.putDouble("startDate", dp.getStartTime(TimeUnit.MILLISECONDS));
+                map.putDouble("endDate", dp.getEndTime(TimeUnit.MILLISECONDS));
+                map.putDouble("distance", dp.getValue(field).asFloat());
+                map.endSample();
             }
         }
     }
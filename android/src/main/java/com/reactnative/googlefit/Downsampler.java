@@ -0,0 +1,184 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.util.Log;
+
+import com.facebook.react.bridge.ReadableMap;
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.Field;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thins out dense series before they are turned into samples, so that what crosses the bridge
+ * depends on the size of the chart and not on how much data was recorded.
+ *
+ * Selected with the maxPoints read option, downsample picks the method:
+ * "lttb" (default) keeps the points that best preserve the shape of the line
+ * (Largest-Triangle-Three-Buckets), "minmax" keeps the lowest and highest point of every bucket.
+ * Both keep original data points, the first and the last one always included.
+ */
+public class Downsampler {
+
+    private static final String TAG = "RNGoogleFit";
+
+    public static final String LTTB = "lttb";
+    public static final String MIN_MAX = "minmax";
+
+    // fewer points than this can't form the first, last and one middle bucket
+    private static final int MIN_POINTS = 3;
+
+    /**
+     * @return The maxPoints read option, 0 when the series isn't downsampled
+     */
+    public static int getMaxPoints(ReadableMap options) {
+        if (options != null && options.hasKey("maxPoints") && !options.isNull("maxPoints")) {
+            return Math.max(0, options.getInt("maxPoints"));
+        }
+        return 0;
+    }
+
+    /**
+     * @param points List of data points in time order
+     * @param field Field Value the shape is measured on
+     * @param options ReadableMap Read options from JS, may be null
+     * @return The points to report, the same list when no downsampling is asked for or needed
+     */
+    public static List<DataPoint> downsample(List<DataPoint> points, Field field, ReadableMap options) {
+        int maxPoints = getMaxPoints(options);
+        if (maxPoints == 0 || points.size() <= maxPoints) {
+            return points;
+        }
+        maxPoints = Math.max(maxPoints, MIN_POINTS);
+
+        int size = points.size();
+        long[] times = new long[size];
+        double[] values = new double[size];
+        for (int i = 0; i < size; i++) {
+            DataPoint dp = points.get(i);
+            times[i] = dp.getStartTime(TimeUnit.MILLISECONDS);
+            values[i] = dp.getValue(field).asFloat();
+        }
+
+        String method = options != null && options.hasKey("downsample") && !options.isNull("downsample")
+                ? options.getString("downsample") : LTTB;
+        int[] kept;
+        if (LTTB.equals(method)) {
+            kept = lttb(times, values, maxPoints);
+        } else if (MIN_MAX.equals(method)) {
+            kept = minMax(values, maxPoints);
+        } else {
+            throw new IllegalArgumentException("Unknown downsample method " + method);
+        }
+        Log.i(TAG, "Downsampled " + size + " points to " + kept.length);
+
+        List<DataPoint> result = new ArrayList<>(kept.length);
+        for (int index : kept) {
+            result.add(points.get(index));
+        }
+        return result;
+    }
+
+    /**
+     * Largest-Triangle-Three-Buckets: the points between the first and the last are split in
+     * threshold - 2 buckets, and each bucket keeps the point that forms the largest triangle with
+     * the point kept before it and the average of the next bucket.
+     */
+    static int[] lttb(long[] times, double[] values, int threshold) {
+        int size = times.length;
+        int[] kept = new int[threshold];
+        double every = (double) (size - 2) / (threshold - 2);
+
+        int a = 0;
+        kept[0] = 0;
+        for (int i = 0; i < threshold - 2; i++) {
+            // average of the next bucket, the last point for the last bucket
+            int nextStart = (int) Math.floor((i + 1) * every) + 1;
+            int nextEnd = Math.min((int) Math.floor((i + 2) * every) + 1, size);
+            double averageTime = 0;
+            double averageValue = 0;
+            for (int j = nextStart; j < nextEnd; j++) {
+                averageTime += times[j];
+                averageValue += values[j];
+            }
+            int count = nextEnd - nextStart;
+            if (count > 0) {
+                averageTime /= count;
+                averageValue /= count;
+            } else {
+                averageTime = times[size - 1];
+                averageValue = values[size - 1];
+            }
+
+            int start = (int) Math.floor(i * every) + 1;
+            int end = (int) Math.floor((i + 1) * every) + 1;
+            // relative to point a, so epoch milliseconds don't eat the precision of the area
+            double pointTime = times[a];
+            double pointValue = values[a];
+            double maxArea = -1;
+            int chosen = start;
+            for (int j = start; j < end; j++) {
+                double area = Math.abs((pointTime - averageTime) * (values[j] - pointValue)
+                        - (pointTime - times[j]) * (averageValue - pointValue));
+                if (area > maxArea) {
+                    maxArea = area;
+                    chosen = j;
+                }
+            }
+            kept[i + 1] = chosen;
+            a = chosen;
+        }
+        kept[threshold - 1] = size - 1;
+        return kept;
+    }
+
+    /**
+     * Keeps the lowest and the highest point of each of (threshold - 2) / 2 buckets, in time order.
+     */
+    static int[] minMax(double[] values, int threshold) {
+        int size = values.length;
+        int buckets = Math.max(1, (threshold - 2) / 2);
+        double every = (double) (size - 2) / buckets;
+
+        List<Integer> kept = new ArrayList<>(threshold);
+        kept.add(0);
+        for (int i = 0; i < buckets; i++) {
+            int start = (int) Math.floor(i * every) + 1;
+            int end = (int) Math.floor((i + 1) * every) + 1;
+            if (start >= end) {
+                continue;
+            }
+            int min = start;
+            int max = start;
+            for (int j = start + 1; j < end; j++) {
+                if (values[j] < values[min]) {
+                    min = j;
+                }
+                if (values[j] > values[max]) {
+                    max = j;
+                }
+            }
+            kept.add(Math.min(min, max));
+            if (min != max) {
+                kept.add(Math.max(min, max));
+            }
+        }
+        kept.add(size - 1);
+
+        int[] result = new int[kept.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = kept.get(i);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.WritableMap;
+import com.google.android.gms.common.api.Status;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded executor used to run blocking Google Fit calls off the React Native
+ * native-modules thread. Every task is timed and the result (or failure) is
+ * delivered to the given Promise.
+ */
+public class FitExecutor {
+
+    private static final String TAG = "RNGoogleFit";
+
+    // reads slower than this are logged as warnings
+    private static final long SLOW_TASK_MILLIS = 5000;
+
+    private final String name;
+    private final String errorCode;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalRunMillis = new AtomicLong();
+
+    public FitExecutor(final String name, int threads, int queueCapacity, String errorCode) {
+        this.name = name;
+        this.errorCode = errorCode;
+
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueCapacity), threadFactory);
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the task on a worker thread and settles the promise with its result.
+     * @param label String Name of the operation, used for logging
+     * @param task Callable Blocking work to execute, usually a HistoryApi read
+     * @param promise Promise Resolved with the task result or rejected with its error
+     * @return false when the queue is full and the task was rejected
+     */
+    public boolean submit(final String label, final Callable<?> task, @Nullable final Promise promise) {
+        final long queuedAt = SystemClock.elapsedRealtime();
+        submitted.incrementAndGet();
+
+        try {
+            executor.execute(new Task(promise) {
+                @Override
+                public void run() {
+                    long startedAt = SystemClock.elapsedRealtime();
+                    try {
+                        Object result = task.call();
+                        completed.incrementAndGet();
+                        if (promise != null) {
+                            promise.resolve(result);
+                        }
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        Log.w(TAG, name + " - " + label + " failed", e);
+                        if (promise != null) {
+                            promise.reject(errorCode, e.getMessage(), e);
+                        }
+                    } finally {
+                        long finishedAt = SystemClock.elapsedRealtime();
+                        long runMillis = finishedAt - startedAt;
+                        totalRunMillis.addAndGet(runMillis);
+                        String timing = name + " - " + label + " waited " + (startedAt - queuedAt)
+                                + "ms, ran " + runMillis + "ms";
+                        if (runMillis > SLOW_TASK_MILLIS) {
+                            Log.w(TAG, timing);
+                        } else {
+                            Log.i(TAG, timing);
+                        }
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            Log.w(TAG, name + " - " + label + " rejected, " + executor.getQueue().size() + " tasks queued");
+            if (promise != null) {
+                promise.reject(errorCode, executor.isShutdown()
+                        ? "Google Fit was shut down" : "Too many pending Google Fit requests", e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Runs the task on a worker thread without reporting a result.
+     * @return false when the queue is full and the task was rejected
+     */
+    public boolean execute(final String label, final Runnable task) {
+        return submit(label, new Callable<Object>() {
+            @Override
+            public Object call() {
+                task.run();
+                return null;
+            }
+        }, null);
+    }
+
+    /**
+     * Status of a write, as resolved to JS: { success, statusCode, statusMessage }.
+     */
+    public static WritableMap describe(Status status) {
+        WritableMap map = Arguments.createMap();
+        map.putBoolean("success", status.isSuccess());
+        map.putInt("statusCode", status.getStatusCode());
+        if (status.getStatusMessage() != null) {
+            map.putString("statusMessage", status.getStatusMessage());
+        }
+        return map;
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    @Override
+    public String toString() {
+        long done = completed.get() + failed.get();
+        return name + "{submitted=" + submitted.get()
+                + ", completed=" + completed.get()
+                + ", failed=" + failed.get()
+                + ", rejected=" + rejected.get()
+                + ", active=" + executor.getActiveCount()
+                + ", queued=" + executor.getQueue().size()
+                + ", avgRunMs=" + (done > 0 ? totalRunMillis.get() / done : 0)
+                + "}";
+    }
+
+    /**
+     * Stops the workers. Tasks that were still queued are dropped and their promises rejected.
+     */
+    public void shutdown() {
+        for (Runnable runnable : executor.shutdownNow()) {
+            Promise promise = ((Task) runnable).promise;
+            if (promise != null) {
+                promise.reject(errorCode, "Google Fit was shut down");
+            }
+        }
+    }
+
+    /**
+     * A queued task, keeping its promise so it can be rejected when the task is dropped.
+     */
+    private abstract static class Task implements Runnable {
+        @Nullable
+        final Promise promise;
+
+        Task(@Nullable Promise promise) {
+            this.promise = promise;
+        }
+    }
+}
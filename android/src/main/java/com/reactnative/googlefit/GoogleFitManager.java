@@ -56,12 +56,40 @@ public class GoogleFitManager implements
     private NutritionHistory nutritionHistory;
     private StepCounter mStepCounter;
     private StepSensor stepSensor;
+    private StepJournal stepJournal;
     private RecordingApi recordingApi;
     private ActivityHistory activityHistory;
+    private SummaryHistory summaryHistory;
+    private FitExecutor readExecutor;
+    private FitExecutor writeExecutor;
+    private DataReadCoalescer readCoalescer;
+    private RangeSharder rangeSharder;
+    private DailyAggregateStore aggregateStore;
+    private IntervalCache intervalCache;
+    private DataSourceCatalogue dataSourceCatalogue;
+    private SourceFanOut sourceFanOut;
+    private LatestValueIndex latestValueIndex;
+    private BulkInserter bulkInserter;
+    private WriteJournal writeJournal;
+    private BatchDeleter batchDeleter;
+    private ReadCursors readCursors;
+    private HeartRateObserver heartRateObserver;
 
     private static final String TAG = "RNGoogleFit";
-
-    public GoogleFitManager(ReactContext reactContext, Activity activity) {
+    private static final int READ_THREADS = 4;
+    private static final int READ_QUEUE_CAPACITY = 64;
+    // writes have their own threads, so they don't wait behind long reads or the app's AsyncTasks
+    private static final int WRITE_THREADS = 2;
+    private static final int WRITE_QUEUE_CAPACITY = 64;
+    // leave a read thread free for other requests while steps fan out over their sources
+    private static final int MAX_CONCURRENT_SOURCES = 3;
+    private static final long SOURCE_DEADLINE_MILLIS = 30 * 1000;
+
+    /**
+     * @param stepSensor StepSensor Owned by the module, it works without Google Fit
+     * @param stepJournal StepJournal Owned by the module, it works without Google Fit
+     */
+    public GoogleFitManager(ReactContext reactContext, Activity activity, StepSensor stepSensor, StepJournal stepJournal) {
 
         //Log.i(TAG, "Initializing GoogleFitManager" + mAuthInProgress);
         this.mReactContext = reactContext;
@@ -78,13 +106,85 @@ public class GoogleFitManager implements
         this.nutritionHistory = new NutritionHistory(mReactContext, this);
         this.recordingApi = new RecordingApi(mReactContext, this);
         this.activityHistory = new ActivityHistory(mReactContext, this);
-        //        this.stepSensor = new StepSensor(mReactContext, activity);
+        this.summaryHistory = new SummaryHistory(mReactContext, this);
+        this.readCoalescer = new DataReadCoalescer(this);
+        this.rangeSharder = new RangeSharder(readCoalescer);
+        this.aggregateStore = new DailyAggregateStore(mReactContext.getApplicationContext());
+        this.intervalCache = new IntervalCache();
+        this.dataSourceCatalogue = new DataSourceCatalogue(this);
+        this.readExecutor = new FitExecutor("RNGoogleFit-read", READ_THREADS, READ_QUEUE_CAPACITY, "READ_ERROR");
+        this.writeExecutor = new FitExecutor("RNGoogleFit-write", WRITE_THREADS, WRITE_QUEUE_CAPACITY, "WRITE_ERROR");
+        this.sourceFanOut = new SourceFanOut(readExecutor, MAX_CONCURRENT_SOURCES, SOURCE_DEADLINE_MILLIS);
+        this.latestValueIndex = new LatestValueIndex(mReactContext.getApplicationContext(), this);
+        this.bulkInserter = new BulkInserter(this);
+        this.writeJournal = new WriteJournal(mReactContext, this);
+        this.batchDeleter = new BatchDeleter(this);
+        this.readCursors = new ReadCursors(this);
+        this.heartRateObserver = new HeartRateObserver(mReactContext, this);
+        this.stepJournal = stepJournal;
+        this.stepSensor = stepSensor;
     }
 
     public GoogleApiClient getGoogleApiClient() {
         return mApiClient;
     }
 
+    public FitExecutor getReadExecutor() {
+        return readExecutor;
+    }
+
+    public FitExecutor getWriteExecutor() {
+        return writeExecutor;
+    }
+
+    public DataReadCoalescer getReadCoalescer() {
+        return readCoalescer;
+    }
+
+    public RangeSharder getRangeSharder() {
+        return rangeSharder;
+    }
+
+    public DailyAggregateStore getAggregateStore() {
+        return aggregateStore;
+    }
+
+    public IntervalCache getIntervalCache() {
+        return intervalCache;
+    }
+
+    public DataSourceCatalogue getDataSourceCatalogue() {
+        return dataSourceCatalogue;
+    }
+
+    public SourceFanOut getSourceFanOut() {
+        return sourceFanOut;
+    }
+
+    public LatestValueIndex getLatestValueIndex() {
+        return latestValueIndex;
+    }
+
+    public BulkInserter getBulkInserter() {
+        return bulkInserter;
+    }
+
+    public WriteJournal getWriteJournal() {
+        return writeJournal;
+    }
+
+    public BatchDeleter getBatchDeleter() {
+        return batchDeleter;
+    }
+
+    public ReadCursors getReadCursors() {
+        return readCursors;
+    }
+
+    public HeartRateObserver getHeartRateObserver() {
+        return heartRateObserver;
+    }
+
     public RecordingApi getRecordingApi() {
         return recordingApi;
     }
@@ -93,6 +193,14 @@ public class GoogleFitManager implements
         return mStepCounter;
     }
 
+    public StepSensor getStepSensor() {
+        return stepSensor;
+    }
+
+    public StepJournal getStepJournal() {
+        return stepJournal;
+    }
+
     public StepHistory getStepHistory() {
         return stepHistory;
     }
@@ -120,6 +228,8 @@ public class GoogleFitManager implements
 
     public NutritionHistory getNutritionHistory() { return nutritionHistory; }
 
+    public SummaryHistory getSummaryHistory() { return summaryHistory; }
+
     public void authorize(ArrayList<String> userScopes) {
         final ReactContext mReactContext = this.mReactContext;
 
@@ -138,6 +248,10 @@ public class GoogleFitManager implements
                             @Override
                             public void onConnected(@Nullable Bundle bundle) {
                                 Log.i(TAG, "Authorization - Connected");
+                                // discover step sources once per session, before the first read needs them
+                                dataSourceCatalogue.invalidate();
+                                dataSourceCatalogue.refresh();
+                                writeJournal.onConnected();
                                 sendEvent(mReactContext, "GoogleFitAuthorizeSuccess", null);
                             }
 
@@ -182,9 +296,19 @@ public class GoogleFitManager implements
     }
 
     public void  disconnect() {
+        // listeners are removed through the client, so before it disconnects
+        heartRateObserver.stop();
+        mStepCounter.stop();
         GoogleSignInAccount gsa = GoogleSignIn.getAccountForScopes(mReactContext, new Scope(Scopes.FITNESS_ACTIVITY_READ));
         Fitness.getConfigClient(mReactContext, gsa).disableFit();
         mApiClient.disconnect();
+        // stored days belong to the account that just signed out
+        aggregateStore.clear();
+        intervalCache.clear();
+        dataSourceCatalogue.invalidate();
+        latestValueIndex.clear();
+        writeJournal.clear();
+        readCursors.clear();
     }
 
     public boolean isAuthorized() {
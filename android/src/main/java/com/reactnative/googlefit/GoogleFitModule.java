@@ -14,6 +14,7 @@ import android.app.Activity;
 import android.content.pm.PackageManager;
 import android.util.Log;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
 import android.content.Intent;
 
 import com.facebook.react.bridge.Arguments;
@@ -38,11 +39,16 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
     private static final String REACT_MODULE = "RNGoogleFit";
     private ReactContext mReactContext;
     private GoogleFitManager mGoogleFitManager = null;
+    // the hardware step counter doesn't need Google Fit, so it is there before authorize
+    private final StepJournal mStepJournal;
+    private final StepSensor mStepSensor;
     private String GOOGLE_FIT_APP_URI = "com.google.android.apps.fitness";
 
     public GoogleFitModule(ReactApplicationContext reactContext) {
         super(reactContext);
         this.mReactContext = reactContext;
+        this.mStepJournal = new StepJournal(reactContext.getApplicationContext());
+        this.mStepSensor = new StepSensor(reactContext, mStepJournal);
     }
 
 
@@ -58,6 +64,24 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
         getReactApplicationContext().addLifecycleEventListener(this);
     }
 
+    @Override
+    public void onCatalystInstanceDestroy() {
+        super.onCatalystInstanceDestroy();
+
+        if (mGoogleFitManager != null) {
+            mGoogleFitManager.getReadExecutor().shutdown();
+            mGoogleFitManager.getWriteExecutor().shutdown();
+            mGoogleFitManager.getSourceFanOut().shutdown();
+            mGoogleFitManager.getWriteJournal().shutdown();
+            // their handlers would keep emitting into the destroyed context
+            mGoogleFitManager.getHeartRateObserver().stop();
+            mGoogleFitManager.getStepCounter().stop();
+            mGoogleFitManager.getReadCursors().clear();
+        }
+        mStepSensor.stop();
+        mStepJournal.close();
+    }
+
     @Override
     public void onHostResume() {
         if (mGoogleFitManager != null) {
@@ -79,7 +103,7 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
         final Activity activity = getCurrentActivity();
 
         if (mGoogleFitManager == null) {
-            mGoogleFitManager = new GoogleFitManager(mReactContext, activity);
+            mGoogleFitManager = new GoogleFitManager(mReactContext, activity, mStepSensor, mStepJournal);
         }
 
         if (mGoogleFitManager.isAuthorized()) {
@@ -120,175 +144,419 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
     }
 
     @ReactMethod
-    public void observeSteps() {
-        mGoogleFitManager.getStepCounter().findFitnessDataSources();
+    public void observeSteps(ReadableMap options) {
+        mGoogleFitManager.getStepCounter().observe(options);
+    }
+
+    @ReactMethod
+    public void unobserveSteps() {
+        mGoogleFitManager.getStepCounter().unobserve();
+    }
+
+    @ReactMethod
+    public void startStepSensor(ReadableMap options, Promise promise) {
+        promise.resolve(mStepSensor.start(options));
+    }
+
+    @ReactMethod
+    public void stopStepSensor() {
+        mStepSensor.stop();
+    }
+
+    @ReactMethod
+    public void flushStepSensor() {
+        mStepSensor.flush();
     }
 
     @ReactMethod
-    public void getDailySteps(double startDay, double endDay) {
-        mGoogleFitManager.getStepHistory().displayLastWeeksData((long) startDay, (long) endDay);
+    public void getLocalDailySteps(double date, Promise promise) {
+        promise.resolve(mStepJournal.getDailyTotals((long) date));
     }
 
     @ReactMethod
-    public void getWeeklySteps(double startDate, double endDate) {
-        mGoogleFitManager.getStepHistory().displayLastWeeksData((long) startDate, (long) endDate);
+    public void observeHeartRate(ReadableMap options, Promise promise) {
+        mGoogleFitManager.getHeartRateObserver().observe(options, promise);
+    }
+
+    @ReactMethod
+    public void stopObservingHeartRate() {
+        mGoogleFitManager.getHeartRateObserver().stop();
+    }
+
+    @ReactMethod
+    public void getDailySteps(final double startDay, final double endDay) {
+        mGoogleFitManager.getReadExecutor().execute("getDailySteps", new Runnable() {
+            @Override
+            public void run() {
+                mGoogleFitManager.getStepHistory().displayLastWeeksData((long) startDay, (long) endDay);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void getWeeklySteps(final double startDate, final double endDate) {
+        mGoogleFitManager.getReadExecutor().execute("getWeeklySteps", new Runnable() {
+            @Override
+            public void run() {
+                mGoogleFitManager.getStepHistory().displayLastWeeksData((long) startDate, (long) endDate);
+            }
+        });
     }
 
     @ReactMethod
     public void getDailyStepCountSamples(double startDate,
                                          double endDate,
-                                         Callback errorCallback,
-                                         Callback successCallback) {
+                                         final ReadableMap options,
+                                         Promise promise) {
 
-        try {
-            mGoogleFitManager.getStepHistory().aggregateDataByDate((long) startDate, (long) endDate, successCallback);
-        } catch (IllegalViewOperationException e) {
-            errorCallback.invoke(e.getMessage());
-        }
+        mGoogleFitManager.getStepHistory().aggregateDataByDate((long) startDate, (long) endDate, options, promise);
     }
 
     @ReactMethod
-    public void getActivitySamples(double startDate,
-                                   double endDate,
-                                   Callback errorCallback,
-                                   Callback successCallback) {
+    public void getMergedDailyStepCount(double startDate,
+                                        double endDate,
+                                        final ReadableMap options,
+                                        Promise promise) {
 
-        try {
-            successCallback.invoke(mGoogleFitManager.getActivityHistory().getActivitySamples((long)startDate, (long)endDate));
-        } catch (IllegalViewOperationException e) {
-            errorCallback.invoke(e.getMessage());
-        }
+        mGoogleFitManager.getStepHistory().aggregateMergedByDate((long) startDate, (long) endDate, options, promise);
     }
 
     @ReactMethod
-    public void getDailyDistanceSamples(double startDate,
-                                        double endDate,
-                                        Callback errorCallback,
-                                        Callback successCallback) {
+    public void getActivitySamples(final double startDate,
+                                   final double endDate,
+                                   final ReadableMap options,
+                                   Promise promise) {
 
-        try {
-            successCallback.invoke(mGoogleFitManager.getDistanceHistory().aggregateDataByDate((long) startDate, (long) endDate));
-        } catch (IllegalViewOperationException e) {
-            errorCallback.invoke(e.getMessage());
-        }
+        mGoogleFitManager.getReadExecutor().submit("getActivitySamples", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return mGoogleFitManager.getActivityHistory().getActivitySamples((long) startDate, (long) endDate, options);
+            }
+        }, promise);
     }
 
     @ReactMethod
-    public void getWeightSamples(double startDate,
-                                 double endDate,
-                                 Callback errorCallback,
-                                 Callback successCallback) {
+    public void getDailyDistanceSamples(final double startDate,
+                                        final double endDate,
+                                        final ReadableMap options,
+                                        Promise promise) {
 
-        try {
-            BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory();
-            bodyHistory.setDataType(DataType.TYPE_WEIGHT);
-            successCallback.invoke(bodyHistory.getHistory((long)startDate, (long)endDate));
-        } catch (IllegalViewOperationException e) {
-            errorCallback.invoke(e.getMessage());
-        }
+        mGoogleFitManager.getReadExecutor().submit("getDailyDistanceSamples", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return mGoogleFitManager.getDistanceHistory().aggregateDataByDate((long) startDate, (long) endDate, options);
+            }
+        }, promise);
     }
 
     @ReactMethod
-    public void getHeightSamples(double startDate,
-                                 double endDate,
-                                 Callback errorCallback,
-                                 Callback successCallback) {
+    public void getWeightSamples(final double startDate,
+                                 final double endDate,
+                                 final ReadableMap options,
+                                 Promise promise) {
 
-        try {
-            BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory();
-            bodyHistory.setDataType(DataType.TYPE_HEIGHT);
-            successCallback.invoke(bodyHistory.getHistory((long)startDate, (long)endDate));
-        } catch (IllegalViewOperationException e) {
-            errorCallback.invoke(e.getMessage());
+        mGoogleFitManager.getReadExecutor().submit("getWeightSamples", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return mGoogleFitManager.getBodyHistory().getHistory((long) startDate, (long) endDate, DataType.TYPE_WEIGHT, options);
+            }
+        }, promise);
+    }
+
+    @ReactMethod
+    public void getHeightSamples(final double startDate,
+                                 final double endDate,
+                                 final ReadableMap options,
+                                 Promise promise) {
+
+        mGoogleFitManager.getReadExecutor().submit("getHeightSamples", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return mGoogleFitManager.getBodyHistory().getHistory((long) startDate, (long) endDate, DataType.TYPE_HEIGHT, options);
+            }
+        }, promise);
+    }
+
+    /**
+     * Resolves the latest "weight" or "height" sample from the on-device index, or null.
+     */
+    @ReactMethod
+    public void getLatestBodySample(final String type, Promise promise) {
+        final DataType dataType = getBodyDataType(type, promise);
+        if (dataType == null) {
+            return;
         }
+        mGoogleFitManager.getReadExecutor().submit("getLatestBodySample", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return mGoogleFitManager.getBodyHistory().getLatest(dataType, false);
+            }
+        }, promise);
     }
 
+    /**
+     * Same as getLatestBodySample, but reads the latest sample from Google Fit first.
+     */
     @ReactMethod
-    public void saveHeight(ReadableMap heightSample,
-                           Callback errorCallback,
-                           Callback successCallback) {
+    public void refreshLatestBodySample(final String type, Promise promise) {
+        final DataType dataType = getBodyDataType(type, promise);
+        if (dataType == null) {
+            return;
+        }
+        mGoogleFitManager.getReadExecutor().submit("refreshLatestBodySample", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return mGoogleFitManager.getBodyHistory().getLatest(dataType, true);
+            }
+        }, promise);
+    }
 
-        try {
-            BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory();
-            bodyHistory.setDataType(DataType.TYPE_HEIGHT);
-            successCallback.invoke(bodyHistory.save(heightSample));
-        } catch (IllegalViewOperationException e) {
-            errorCallback.invoke(e.getMessage());
+    private static DataType getBodyDataType(String type, Promise promise) {
+        if ("weight".equals(type)) {
+            return DataType.TYPE_WEIGHT;
         }
+        if ("height".equals(type)) {
+            return DataType.TYPE_HEIGHT;
+        }
+        promise.reject("INVALID_OPTIONS", "Unknown body sample type " + type);
+        return null;
+    }
+
+    @ReactMethod
+    public void saveHeight(final ReadableMap heightSample, Promise promise) {
+        mGoogleFitManager.getWriteExecutor().submit("saveHeight", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return mGoogleFitManager.getBodyHistory().save(DataType.TYPE_HEIGHT, heightSample);
+            }
+        }, promise);
     }
 
 
     @ReactMethod
-    public void getDailyCalorieSamples(double startDate,
-                                       double endDate,
-                                       boolean basalCalculation,
-                                       Callback errorCallback,
-                                       Callback successCallback) {
+    public void getDailyCalorieSamples(final double startDate,
+                                       final double endDate,
+                                       final boolean basalCalculation,
+                                       final ReadableMap options,
+                                       Promise promise) {
 
-        try {
-            successCallback.invoke(mGoogleFitManager.getCalorieHistory().aggregateDataByDate((long) startDate, (long) endDate, basalCalculation));
-        } catch (IllegalViewOperationException e) {
-            errorCallback.invoke(e.getMessage());
-        }
+        mGoogleFitManager.getReadExecutor().submit("getDailyCalorieSamples", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return mGoogleFitManager.getCalorieHistory().aggregateDataByDate((long) startDate, (long) endDate, basalCalculation, options);
+            }
+        }, promise);
     }
 
     @ReactMethod
-    public void saveFood(ReadableMap foodSample,
-                         Callback errorCallback,
-                         Callback successCallback) {
-        try {
-            successCallback.invoke(mGoogleFitManager.getCalorieHistory().saveFood(foodSample));
-        } catch (IllegalViewOperationException e) {
-            errorCallback.invoke(e.getMessage());
+    public void getDailySummary(final ReadableArray types,
+                                final double startDate,
+                                final double endDate,
+                                final String bucket,
+                                final ReadableMap options,
+                                Promise promise) {
+
+        mGoogleFitManager.getReadExecutor().submit("getDailySummary", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return mGoogleFitManager.getSummaryHistory().getDailySummary(types, (long) startDate, (long) endDate, bucket, options);
+            }
+        }, promise);
+    }
+
+    @ReactMethod
+    public void saveFood(final ReadableMap foodSample, Promise promise) {
+        mGoogleFitManager.getWriteExecutor().submit("saveFood", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return mGoogleFitManager.getCalorieHistory().saveFood(foodSample);
+            }
+        }, promise);
+    }
+
+    @ReactMethod
+    public void getDailyNutritionSamples(final double startDate,
+                                         final double endDate,
+                                         final ReadableMap options,
+                                         Promise promise) {
+
+        mGoogleFitManager.getReadExecutor().submit("getDailyNutritionSamples", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return mGoogleFitManager.getNutritionHistory().aggregateDataByDate((long) startDate, (long) endDate, options);
+            }
+        }, promise);
+    }
+
+    @ReactMethod
+    public void saveWeight(final ReadableMap weightSample, Promise promise) {
+        mGoogleFitManager.getWriteExecutor().submit("saveWeight", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return mGoogleFitManager.getBodyHistory().save(DataType.TYPE_WEIGHT, weightSample);
+            }
+        }, promise);
+    }
+
+    @ReactMethod
+    public void saveWeights(ReadableArray weightSamples, Promise promise) {
+        mGoogleFitManager.getBodyHistory().saveAll(DataType.TYPE_WEIGHT, weightSamples, promise);
+    }
+
+    @ReactMethod
+    public void saveHeights(ReadableArray heightSamples, Promise promise) {
+        mGoogleFitManager.getBodyHistory().saveAll(DataType.TYPE_HEIGHT, heightSamples, promise);
+    }
+
+    @ReactMethod
+    public void saveHeartRates(ReadableArray heartRateSamples, Promise promise) {
+        mGoogleFitManager.getHeartrateHistory().saveAll(DataType.TYPE_HEART_RATE_BPM, heartRateSamples, promise);
+    }
+
+    @ReactMethod
+    public void saveBloodPressures(ReadableArray bloodPressureSamples, Promise promise) {
+        mGoogleFitManager.getHeartrateHistory().saveAll(HealthDataTypes.TYPE_BLOOD_PRESSURE, bloodPressureSamples, promise);
+    }
+
+    @ReactMethod
+    public void saveFoods(ReadableArray foodSamples, Promise promise) {
+        mGoogleFitManager.getCalorieHistory().saveFoods(foodSamples, promise);
+    }
+
+    @ReactMethod
+    public void queueSamples(final String type, final ReadableArray samples, final Promise promise) {
+        final WriteJournal writeJournal = mGoogleFitManager.getWriteJournal();
+        boolean posted = writeJournal.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    WritableArray ids = Arguments.createArray();
+                    for (Long id : writeJournal.enqueueInserts(type, samples)) {
+                        ids.pushDouble(id);
+                    }
+                    promise.resolve(ids);
+                } catch (IllegalArgumentException e) {
+                    promise.reject("INVALID_OPTIONS", e.getMessage());
+                } catch (RuntimeException e) {
+                    promise.reject("WRITE_ERROR", e.getMessage(), e);
+                }
+            }
+        });
+        if (!posted) {
+            promise.reject("WRITE_ERROR", "The write journal was shut down");
         }
     }
 
     @ReactMethod
-    public void getDailyNutritionSamples(double startDate,
-                                         double endDate,
-                                         Callback errorCallback,
-                                         Callback successCallback) {
-        try {
-            successCallback.invoke(mGoogleFitManager.getNutritionHistory().aggregateDataByDate((long) startDate, (long) endDate));
-        } catch (IllegalViewOperationException e) {
-            errorCallback.invoke(e.getMessage());
+    public void queueDelete(final String type, final double startDate, final double endDate, final Promise promise) {
+        final WriteJournal writeJournal = mGoogleFitManager.getWriteJournal();
+        boolean posted = writeJournal.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    promise.resolve((double) writeJournal.enqueueDelete(type, (long) startDate, (long) endDate));
+                } catch (IllegalArgumentException e) {
+                    promise.reject("INVALID_OPTIONS", e.getMessage());
+                } catch (RuntimeException e) {
+                    promise.reject("WRITE_ERROR", e.getMessage(), e);
+                }
+            }
+        });
+        if (!posted) {
+            promise.reject("WRITE_ERROR", "The write journal was shut down");
         }
     }
 
     @ReactMethod
-    public void saveWeight(ReadableMap weightSample,
-                           Callback errorCallback,
-                           Callback successCallback) {
+    public void flushWrites(final Promise promise) {
+        final WriteJournal writeJournal = mGoogleFitManager.getWriteJournal();
+        boolean posted = writeJournal.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeJournal.flushNow();
+                    promise.resolve(writeJournal.getPendingCount());
+                } catch (RuntimeException e) {
+                    promise.reject("WRITE_ERROR", e.getMessage(), e);
+                }
+            }
+        });
+        if (!posted) {
+            promise.reject("WRITE_ERROR", "The write journal was shut down");
+        }
+    }
 
-        try {
-            BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory();
-            bodyHistory.setDataType(DataType.TYPE_WEIGHT);
-            successCallback.invoke(bodyHistory.save(weightSample));
-        } catch (IllegalViewOperationException e) {
-            errorCallback.invoke(e.getMessage());
+    @ReactMethod
+    public void getPendingWriteCount(final Promise promise) {
+        final WriteJournal writeJournal = mGoogleFitManager.getWriteJournal();
+        boolean posted = writeJournal.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    promise.resolve(writeJournal.getPendingCount());
+                } catch (RuntimeException e) {
+                    promise.reject("WRITE_ERROR", e.getMessage(), e);
+                }
+            }
+        });
+        if (!posted) {
+            promise.reject("WRITE_ERROR", "The write journal was shut down");
         }
     }
 
     @ReactMethod
-    public void deleteWeight(ReadableMap options, Callback errorCallback, Callback successCallback) {
+    public void deleteData(ReadableMap options, Promise promise) {
+        mGoogleFitManager.getBatchDeleter().delete(options, promise);
+    }
+
+    @ReactMethod
+    public void openCursor(String type, double startDate, double endDate, int pageSize, ReadableMap options, Promise promise) {
         try {
-            BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory();
-            bodyHistory.setDataType(DataType.TYPE_WEIGHT);
-            successCallback.invoke(bodyHistory.delete(options));
-        } catch (IllegalViewOperationException e) {
-            errorCallback.invoke(e.getMessage());
+            promise.resolve(mGoogleFitManager.getReadCursors().open(type, (long) startDate, (long) endDate, pageSize, options));
+        } catch (IllegalArgumentException e) {
+            promise.reject("INVALID_OPTIONS", e.getMessage());
         }
     }
 
     @ReactMethod
-    public void deleteHeight(ReadableMap options, Callback errorCallback, Callback successCallback) {
-        try {
-            BodyHistory bodyHistory = mGoogleFitManager.getBodyHistory();
-            bodyHistory.setDataType(DataType.TYPE_HEIGHT);
-            successCallback.invoke(bodyHistory.delete(options));
-        } catch (IllegalViewOperationException e) {
-            errorCallback.invoke(e.getMessage());
+    public void readNext(int cursorId, Promise promise) {
+        final ReadCursors readCursors = mGoogleFitManager.getReadCursors();
+        final ReadCursors.Cursor cursor = readCursors.get(cursorId);
+        if (cursor == null) {
+            promise.reject("CURSOR_EXPIRED", "Cursor " + cursorId + " was closed or expired");
+            return;
         }
+        mGoogleFitManager.getReadExecutor().submit("readNext", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return readCursors.readNext(cursor);
+            }
+        }, promise);
+    }
+
+    @ReactMethod
+    public void closeCursor(int cursorId) {
+        mGoogleFitManager.getReadCursors().close(cursorId);
+    }
+
+    @ReactMethod
+    public void deleteWeight(final ReadableMap options, Promise promise) {
+        mGoogleFitManager.getWriteExecutor().submit("deleteWeight", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return mGoogleFitManager.getBodyHistory().delete(DataType.TYPE_WEIGHT, options);
+            }
+        }, promise);
+    }
+
+    @ReactMethod
+    public void deleteHeight(final ReadableMap options, Promise promise) {
+        mGoogleFitManager.getWriteExecutor().submit("deleteHeight", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return mGoogleFitManager.getBodyHistory().delete(DataType.TYPE_HEIGHT, options);
+            }
+        }, promise);
     }
 
     @ReactMethod
@@ -333,37 +601,36 @@ public class GoogleFitModule extends ReactContextBaseJavaModule implements Lifec
 
     private boolean isEnabledCheck() {
         if (mGoogleFitManager == null) {
-            mGoogleFitManager = new GoogleFitManager(mReactContext, getCurrentActivity());
+            mGoogleFitManager = new GoogleFitManager(mReactContext, getCurrentActivity(), mStepSensor, mStepJournal);
         }
         return mGoogleFitManager.isAuthorized();
     }
 
     @ReactMethod
-    public void getBloodPressureSamples(double startDate,
-                                        double endDate,
-                                        Callback errorCallback,
-                                        Callback successCallback) {
-        try {
-            HeartrateHistory heartrateHistory = mGoogleFitManager.getHeartrateHistory();
-            heartrateHistory.setDataType(HealthDataTypes.TYPE_BLOOD_PRESSURE);
-            successCallback.invoke(heartrateHistory.getHistory((long)startDate, (long)endDate));
-        } catch (IllegalViewOperationException e) {
-            errorCallback.invoke(e.getMessage());
-        }
+    public void getBloodPressureSamples(final double startDate,
+                                        final double endDate,
+                                        final ReadableMap options,
+                                        Promise promise) {
+
+        mGoogleFitManager.getReadExecutor().submit("getBloodPressureSamples", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return mGoogleFitManager.getHeartrateHistory().getHistory((long) startDate, (long) endDate, HealthDataTypes.TYPE_BLOOD_PRESSURE, options);
+            }
+        }, promise);
     }
 
     @ReactMethod
-    public void getHeartRateSamples(double startDate,
-                                    double endDate,
-                                    Callback errorCallback,
-                                    Callback successCallback) {
-
-        try {
-            HeartrateHistory heartrateHistory = mGoogleFitManager.getHeartrateHistory();
-            heartrateHistory.setDataType(DataType.TYPE_HEART_RATE_BPM);
-            successCallback.invoke(heartrateHistory.getHistory((long)startDate, (long)endDate));
-        } catch (IllegalViewOperationException e) {
-            errorCallback.invoke(e.getMessage());
-        }
+    public void getHeartRateSamples(final double startDate,
+                                    final double endDate,
+                                    final ReadableMap options,
+                                    Promise promise) {
+
+        mGoogleFitManager.getReadExecutor().submit("getHeartRateSamples", new Callable<Object>() {
+            @Override
+            public Object call() {
+                return mGoogleFitManager.getHeartrateHistory().getHistory((long) startDate, (long) endDate, DataType.TYPE_HEART_RATE_BPM, options);
+            }
+        }, promise);
     }
 }
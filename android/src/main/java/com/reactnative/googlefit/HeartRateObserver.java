@@ -0,0 +1,262 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.fitness.Fitness;
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.Field;
+import com.google.android.gms.fitness.request.OnDataPointListener;
+import com.google.android.gms.fitness.request.SensorRequest;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live heart rate from the SensorsApi. Beats are kept in a ring buffer and sent to JS as one
+ * HeartRateBatchEvent every flushInterval milliseconds, or sooner once maxBatchSize beats are
+ * waiting, instead of one bridge event per beat. When JS falls behind, the oldest beats are
+ * overwritten and counted in the dropped field of the next batch.
+ */
+public class HeartRateObserver implements OnDataPointListener {
+
+    private static final String TAG = "RNGoogleFit";
+
+    public static final String EVENT_NAME = "HeartRateBatchEvent";
+
+    private static final long DEFAULT_SAMPLING_MILLIS = 1000;
+    private static final long DEFAULT_FLUSH_MILLIS = 1000;
+    private static final int DEFAULT_MAX_BATCH_SIZE = 50;
+    private static final int DEFAULT_BUFFER_SIZE = 512;
+
+    private final ReactContext mReactContext;
+    private final GoogleFitManager googleFitManager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private RingBuffer buffer;
+    private ReadableMap options;
+    private long flushMillis = DEFAULT_FLUSH_MILLIS;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    // set by observe and cleared by stop, the registration may still be pending in between
+    private boolean requested;
+    private boolean observing;
+    private boolean flushScheduled;
+
+    /**
+     * Fixed size buffer of beats, overwriting the oldest once full.
+     */
+    static class RingBuffer {
+        private final long[] startTimes;
+        private final long[] endTimes;
+        private final float[] values;
+        private int head;
+        private int size;
+        private int dropped;
+
+        RingBuffer(int capacity) {
+            startTimes = new long[capacity];
+            endTimes = new long[capacity];
+            values = new float[capacity];
+        }
+
+        void add(long startTime, long endTime, float value) {
+            int index = (head + size) % values.length;
+            if (size == values.length) {
+                // full, the oldest beat makes room
+                head = (head + 1) % values.length;
+                dropped++;
+            } else {
+                size++;
+            }
+            startTimes[index] = startTime;
+            endTimes[index] = endTime;
+            values[index] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Writes the buffered beats, oldest first, and empties the buffer.
+         * @return The number of beats overwritten since the last drain
+         */
+        int drainTo(SampleWriter writer) {
+            for (int i = 0; i < size; i++) {
+                int index = (head + i) % values.length;
+                writer.beginSample();
+                writer.putDouble("startDate", startTimes[index]);
+                writer.putDouble("endDate", endTimes[index]);
+                writer.putDouble("value", values[index]);
+                writer.endSample();
+            }
+            int drained = dropped;
+            head = 0;
+            size = 0;
+            dropped = 0;
+            return drained;
+        }
+    }
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (HeartRateObserver.this) {
+                flushScheduled = false;
+            }
+            flush();
+        }
+    };
+
+    public HeartRateObserver(ReactContext reactContext, GoogleFitManager googleFitManager) {
+        this.mReactContext = reactContext;
+        this.googleFitManager = googleFitManager;
+    }
+
+    /**
+     * Starts listening, or applies new options when already listening.
+     * @param options ReadableMap { samplingRate, flushInterval, maxBatchSize, bufferSize, format }, may be null.
+     *                Rates and intervals are in milliseconds.
+     * @param promise Resolved with true once the listener is registered, false when stop was called first
+     */
+    public void observe(ReadableMap options, final Promise promise) {
+        long samplingMillis = getLong(options, "samplingRate", DEFAULT_SAMPLING_MILLIS);
+        // beats buffered with the old options go out with them
+        flush();
+        synchronized (this) {
+            requested = true;
+            this.options = options;
+            flushMillis = getLong(options, "flushInterval", DEFAULT_FLUSH_MILLIS);
+            maxBatchSize = Math.max(1, (int) getLong(options, "maxBatchSize", DEFAULT_MAX_BATCH_SIZE));
+            int capacity = Math.max(maxBatchSize, (int) getLong(options, "bufferSize", DEFAULT_BUFFER_SIZE));
+            if (buffer == null || buffer.values.length != capacity) {
+                buffer = new RingBuffer(capacity);
+            }
+        }
+
+        final SensorRequest request = new SensorRequest.Builder()
+                .setDataType(DataType.TYPE_HEART_RATE_BPM)
+                .setSamplingRate(samplingMillis, TimeUnit.MILLISECONDS)
+                .build();
+        // replaces the previous registration, so options can change while observing
+        Fitness.SensorsApi.remove(googleFitManager.getGoogleApiClient(), this);
+        Fitness.SensorsApi.add(googleFitManager.getGoogleApiClient(), request, this)
+                .setResultCallback(new ResultCallback<Status>() {
+                    @Override
+                    public void onResult(@NonNull Status status) {
+                        if (status.isSuccess()) {
+                            boolean stopped;
+                            synchronized (HeartRateObserver.this) {
+                                stopped = !requested;
+                                observing = !stopped;
+                            }
+                            if (stopped) {
+                                // stop was called while the registration was pending
+                                removeListener();
+                                promise.resolve(false);
+                            } else {
+                                promise.resolve(true);
+                            }
+                        } else {
+                            Log.w(TAG, "Failed to observe heart rate: " + status);
+                            promise.reject("SENSOR_ERROR", "Failed to observe heart rate: " + status.getStatusMessage());
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Stops listening and sends the beats still buffered. A registration still pending is
+     * removed once it completes.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (!requested && !observing) {
+                return;
+            }
+            requested = false;
+            observing = false;
+        }
+        removeListener();
+        handler.removeCallbacks(flushRunnable);
+        flush();
+    }
+
+    private void removeListener() {
+        GoogleApiClient client = googleFitManager.getGoogleApiClient();
+        if (client != null && client.isConnected()) {
+            Fitness.SensorsApi.remove(client, this);
+        }
+    }
+
+    @Override
+    public void onDataPoint(DataPoint dataPoint) {
+        boolean flushNow;
+        synchronized (this) {
+            if (buffer == null) {
+                return;
+            }
+            long startTime = dataPoint.getStartTime(TimeUnit.MILLISECONDS);
+            long endTime = dataPoint.getEndTime(TimeUnit.MILLISECONDS);
+            buffer.add(startTime, endTime == 0 ? startTime : endTime, dataPoint.getValue(Field.FIELD_BPM).asFloat());
+            flushNow = buffer.size() >= maxBatchSize;
+            if (!flushNow && !flushScheduled) {
+                flushScheduled = true;
+                handler.postDelayed(flushRunnable, flushMillis);
+            }
+        }
+        if (flushNow) {
+            handler.removeCallbacks(flushRunnable);
+            synchronized (this) {
+                flushScheduled = false;
+            }
+            flush();
+        }
+    }
+
+    private void flush() {
+        WritableMap event = Arguments.createMap();
+        synchronized (this) {
+            if (buffer == null || buffer.size() == 0) {
+                return;
+            }
+            SampleWriter writer = SampleWriter.create(options, "heartRate");
+            int dropped = buffer.drainTo(writer);
+            writer.writeTo(event, "samples");
+            event.putInt("dropped", dropped);
+        }
+        // nobody to send it to once the bridge is torn down
+        if (mReactContext.hasActiveCatalystInstance()) {
+            mReactContext
+                    .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                    .emit(EVENT_NAME, event);
+        }
+    }
+
+    private static long getLong(ReadableMap options, String key, long defaultValue) {
+        if (options == null || !options.hasKey(key) || options.isNull(key)) {
+            return defaultValue;
+        }
+        return (long) options.getDouble(key);
+    }
+}
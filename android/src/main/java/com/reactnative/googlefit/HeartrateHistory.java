@@ -9,15 +9,16 @@
 
 package com.reactnative.googlefit;
 
-import android.os.AsyncTask;
 import android.util.Log;
 
 import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
+import com.google.android.gms.common.api.Status;
 import com.google.android.gms.fitness.Fitness;
 import com.google.android.gms.fitness.data.Bucket;
 import com.google.android.gms.fitness.data.DataPoint;
@@ -34,8 +35,10 @@ import com.google.android.gms.fitness.data.HealthFields;
 import java.text.DateFormat;
 import java.text.Format;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
 
 
@@ -43,11 +46,14 @@ public class HeartrateHistory {
 
     private ReactContext mReactContext;
     private GoogleFitManager googleFitManager;
-    private DataSet Dataset;
     private DataType dataType;
 
     private static final String TAG = "Weights History";
 
+    public static final String SUMMARY_MINUTE = "minute";
+    public static final String SUMMARY_HOUR = "hour";
+    public static final String SUMMARY_DAY = "day";
+
     public HeartrateHistory(ReactContext reactContext, GoogleFitManager googleFitManager, DataType dataType){
         this.mReactContext = reactContext;
         this.googleFitManager = googleFitManager;
@@ -62,132 +68,292 @@ public class HeartrateHistory {
         this.dataType = dataType;
     }
 
-    public ReadableArray getHistory(long startTime, long endTime) {
-        DateFormat dateFormat = DateFormat.getDateInstance();
-        // for height we need to take time, since GoogleFit foundation - https://stackoverflow.com/questions/28482176/read-the-height-in-googlefit-in-android
+    public Object getHistory(long startTime, long endTime) {
+        return getHistory(startTime, endTime, this.dataType, null);
+    }
 
-        DataReadRequest.Builder readRequestBuilder = new DataReadRequest.Builder()
-                .read(this.dataType)
-                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS);
-        if (this.dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE) {
-            readRequestBuilder.bucketByTime(1, TimeUnit.DAYS);
-        } else {
-            readRequestBuilder.setLimit(5); // need only one height, since it's unchangable
+    /**
+     * Reads samples of the given type. Takes the data type explicitly so that
+     * concurrent heart rate and blood pressure reads don't race on the shared instance.
+     */
+    public Object getHistory(long startTime, long endTime, final DataType dataType, ReadableMap options) {
+        long bucketMillis = getSummaryBucketMillis(options);
+        if (bucketMillis > 0) {
+            return getSummary(startTime, endTime, dataType, bucketMillis, options);
         }
 
-        DataReadRequest readRequest = readRequestBuilder.build();
+        SampleWriter map = SampleWriter.create(options, dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE ? "bloodPressure" : "heartRate");
+
+        IntervalCache.Result cached = googleFitManager.getIntervalCache().read(
+                dataType.getName() + "|raw", startTime, endTime, options,
+                new IntervalCache.Loader() {
+                    @Override
+                    public List<DataPoint> load(long gapStart, long gapEnd, List<long[]> failed) {
+                        return readPoints(gapStart, gapEnd, dataType, failed);
+                    }
+                });
+
+        // systolic pressure shapes the blood pressure line
+        Field field = dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE
+                ? HealthFields.FIELD_BLOOD_PRESSURE_SYSTOLIC
+                : dataType.getFields().get(0);
+        for (DataPoint dp : Downsampler.downsample(cached.points, field, options)) {
+            processDataPoint(dp, map, dataType);
+        }
+        for (long[] gap : cached.gaps) {
+            map.addGap(gap[0], gap[1]);
+        }
+        return map.build();
+    }
 
-        DataReadResult dataReadResult = Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(1, TimeUnit.MINUTES);
+    /**
+     * @return Bucket size of a summary read from the bucket read option (minute, hour or day),
+     * 0 when raw samples are read
+     */
+    static long getSummaryBucketMillis(ReadableMap options) {
+        if (options == null || !options.hasKey("bucket") || options.isNull("bucket")) {
+            return 0;
+        }
+        String bucket = options.getString("bucket");
+        switch (bucket) {
+            case SUMMARY_MINUTE:
+                return TimeUnit.MINUTES.toMillis(1);
+            case SUMMARY_HOUR:
+                return TimeUnit.HOURS.toMillis(1);
+            case SUMMARY_DAY:
+                return TimeUnit.DAYS.toMillis(1);
+            default:
+                throw new IllegalArgumentException("Unknown bucket " + bucket);
+        }
+    }
 
-        WritableArray map = Arguments.createArray();
+    /**
+     * Reads min, max and average per bucket, aggregated by Google Fit, so months of data
+     * come back as a few hundred samples. Heart rate samples have value (average), min and max,
+     * blood pressure samples have the same for systolic and value2, min2 and max2 for diastolic.
+     */
+    private Object getSummary(long startTime, long endTime, final DataType dataType, final long bucketMillis,
+                              ReadableMap options) {
+        SampleWriter map = SampleWriter.create(options, dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE ? "bloodPressure" : "heartRate");
+
+        // buckets are laid on a grid of local time, so day buckets start at midnight and cached
+        // buckets line up with the ones of later reads
+        long offset = TimeZone.getDefault().getOffset(startTime);
+        long gridStart = startTime - (((startTime + offset) % bucketMillis) + bucketMillis) % bucketMillis;
+        long buckets = (endTime - gridStart + bucketMillis - 1) / bucketMillis;
+        long gridEnd = gridStart + Math.max(buckets, 1) * bucketMillis;
+
+        IntervalCache.Result cached = googleFitManager.getIntervalCache().read(
+                dataType.getName() + "|summary" + bucketMillis + "ms+" + Math.abs(gridStart % bucketMillis),
+                gridStart, gridEnd, options,
+                new IntervalCache.Loader() {
+                    @Override
+                    public List<DataPoint> load(long gapStart, long gapEnd, List<long[]> failed) {
+                        return readSummaryBuckets(gapStart, gapEnd, dataType, bucketMillis, failed);
+                    }
+                });
+
+        for (DataPoint dp : cached.points) {
+            if (dp.getEndTime(TimeUnit.MILLISECONDS) > startTime && dp.getStartTime(TimeUnit.MILLISECONDS) < endTime) {
+                processSummaryPoint(dp, map, dataType);
+            }
+        }
+        for (long[] gap : cached.gaps) {
+            map.addGap(gap[0], gap[1]);
+        }
+        return map.build();
+    }
 
-        //Used for aggregated data
-        if (dataReadResult.getBuckets().size() > 0) {
-            for (Bucket bucket : dataReadResult.getBuckets()) {
-                List<DataSet> dataSets = bucket.getDataSets();
-                for (DataSet dataSet : dataSets) {
-                    processDataSet(dataSet, map);
+    private List<DataPoint> readSummaryBuckets(long startTime, long endTime, final DataType dataType,
+                                               final long bucketMillis, List<long[]> failed) {
+        final DataType aggregateType = dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE
+                ? HealthDataTypes.AGGREGATE_BLOOD_PRESSURE_SUMMARY
+                : DataType.AGGREGATE_HEART_RATE_SUMMARY;
+
+        List<RangeSharder.Shard> shards = googleFitManager.getRangeSharder().read(startTime, endTime,
+                RangeSharder.shardSizeForBuckets(bucketMillis),
+                new RangeSharder.RequestFactory() {
+                    @Override
+                    public DataReadRequest build(long shardStart, long shardEnd) {
+                        return new DataReadRequest.Builder()
+                                .aggregate(dataType, aggregateType)
+                                .bucketByTime((int) bucketMillis, TimeUnit.MILLISECONDS)
+                                .setTimeRange(shardStart, shardEnd, TimeUnit.MILLISECONDS)
+                                .build();
+                    }
+
+                    @Override
+                    public String key(long shardStart, long shardEnd) {
+                        return DataReadCoalescer.key(dataType.getName(), aggregateType, bucketMillis + "ms", shardStart, shardEnd);
+                    }
+                });
+
+        List<DataPoint> points = new ArrayList<>();
+        for (RangeSharder.Shard shard : shards) {
+            if (shard.result == null) {
+                failed.add(new long[] {shard.startTime, shard.endTime});
+                continue;
+            }
+            for (Bucket bucket : shard.result.getBuckets()) {
+                for (DataSet dataSet : bucket.getDataSets()) {
+                    points.addAll(dataSet.getDataPoints());
                 }
             }
         }
-        //Used for non-aggregated data
-        else if (dataReadResult.getDataSets().size() > 0) {
-            for (DataSet dataSet : dataReadResult.getDataSets()) {
-                processDataSet(dataSet, map);
+        return points;
+    }
+
+    private void processSummaryPoint(DataPoint dp, SampleWriter map, DataType dataType) {
+        map.beginSample();
+        map.putDay(dp.getStartTime(TimeUnit.MILLISECONDS));
+        map.putDouble("startDate", dp.getStartTime(TimeUnit.MILLISECONDS));
+        map.putDouble("endDate", dp.getEndTime(TimeUnit.MILLISECONDS));
+        if (dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE) {
+            map.putDouble("value", dp.getValue(HealthFields.FIELD_BLOOD_PRESSURE_SYSTOLIC_AVERAGE).asFloat());
+            map.putDouble("min", dp.getValue(HealthFields.FIELD_BLOOD_PRESSURE_SYSTOLIC_MIN).asFloat());
+            map.putDouble("max", dp.getValue(HealthFields.FIELD_BLOOD_PRESSURE_SYSTOLIC_MAX).asFloat());
+            map.putDouble("value2", dp.getValue(HealthFields.FIELD_BLOOD_PRESSURE_DIASTOLIC_AVERAGE).asFloat());
+            map.putDouble("min2", dp.getValue(HealthFields.FIELD_BLOOD_PRESSURE_DIASTOLIC_MIN).asFloat());
+            map.putDouble("max2", dp.getValue(HealthFields.FIELD_BLOOD_PRESSURE_DIASTOLIC_MAX).asFloat());
+        } else {
+            map.putDouble("value", dp.getValue(Field.FIELD_AVERAGE).asFloat());
+            map.putDouble("min", dp.getValue(Field.FIELD_MIN).asFloat());
+            map.putDouble("max", dp.getValue(Field.FIELD_MAX).asFloat());
+        }
+        map.endSample();
+    }
+
+    private List<DataPoint> readPoints(long startTime, long endTime, final DataType dataType, List<long[]> failed) {
+        // heart rate is dense when a watch records it, so read it a day at a time
+        long shardMillis = dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE
+                ? RangeSharder.shardSizeForBuckets(TimeUnit.DAYS.toMillis(1))
+                : TimeUnit.DAYS.toMillis(1);
+
+        List<RangeSharder.Shard> shards = googleFitManager.getRangeSharder().read(startTime, endTime, shardMillis,
+                new RangeSharder.RequestFactory() {
+                    @Override
+                    public DataReadRequest build(long shardStart, long shardEnd) {
+                        DataReadRequest.Builder readRequestBuilder = new DataReadRequest.Builder()
+                                .read(dataType)
+                                .setTimeRange(shardStart, shardEnd, TimeUnit.MILLISECONDS);
+                        if (dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE) {
+                            readRequestBuilder.bucketByTime(1, TimeUnit.DAYS);
+                        }
+                        return readRequestBuilder.build();
+                    }
+
+                    @Override
+                    public String key(long shardStart, long shardEnd) {
+                        return DataReadCoalescer.key(dataType.getName(), null,
+                                dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE ? "1d" : "none", shardStart, shardEnd);
+                    }
+                });
+
+        List<DataPoint> points = new ArrayList<>();
+        for (RangeSharder.Shard shard : shards) {
+            if (shard.result == null) {
+                failed.add(new long[] {shard.startTime, shard.endTime});
+                continue;
+            }
+            //Used for aggregated data
+            if (shard.result.getBuckets().size() > 0) {
+                for (Bucket bucket : shard.result.getBuckets()) {
+                    for (DataSet dataSet : bucket.getDataSets()) {
+                        points.addAll(dataSet.getDataPoints());
+                    }
+                }
+            }
+            //Used for non-aggregated data
+            else {
+                for (DataSet dataSet : shard.result.getDataSets()) {
+                    points.addAll(dataSet.getDataPoints());
+                }
             }
         }
-        return map;
+        return points;
     }
 
-    public boolean save(ReadableMap sample) {
-        this.Dataset = createDataForRequest(
-                this.dataType,    // for height, it would be DataType.TYPE_HEIGHT
+    /**
+     * Inserts one heart rate sample and waits for Google Fit, so it must not run on the main thread.
+     * @return Status of the insert, as described by FitExecutor.describe
+     */
+    public WritableMap save(DataType dataType, ReadableMap sample) {
+        DataSet dataSet = createDataForRequest(
+                dataType,
                 DataSource.TYPE_RAW,
-                sample.getDouble("value"),                  // weight in kgs, height in metrs
+                sample.getDouble("value"),                  // beats per minute
                 (long)sample.getDouble("date"),              // start time
                 (long)sample.getDouble("date"),                // end time
                 TimeUnit.MILLISECONDS                // Time Unit, for example, TimeUnit.MILLISECONDS
         );
-        new InsertAndVerifyDataTask(this.Dataset).execute();
-
-        return true;
+        // Always include a timeout when calling await() to prevent hanging that can occur from
+        // the service being shutdown because of low memory or other conditions.
+        Status insertStatus = Fitness.HistoryApi.insertData(googleFitManager.getGoogleApiClient(), dataSet)
+                .await(1, TimeUnit.MINUTES);
+        googleFitManager.getIntervalCache().invalidate(dataType.getName() + "|");
+
+        if (!insertStatus.isSuccess()) {
+            Log.w(TAG, "Failed to insert " + dataType.getName() + ": " + insertStatus);
+        }
+        return FitExecutor.describe(insertStatus);
     }
 
-    public boolean delete(ReadableMap sample) {
-        long endTime = (long) sample.getDouble("endTime");
-        long startTime = (long) sample.getDouble("startTime");
-        new DeleteDataTask(startTime, endTime, this.dataType).execute();
-        return true;
+    /**
+     * Inserts many heart rate ({value, date}) or blood pressure ({value: systolic, value2: diastolic, date})
+     * samples in as few requests as possible. Resolves {inserted, failed, errors} once every request finished.
+     */
+    public void saveAll(DataType dataType, ReadableArray samples, final Promise promise) {
+        saveAll(dataType, samples, new BulkInserter.Completion() {
+            @Override
+            public void onComplete(BulkInserter.Result result) {
+                promise.resolve(result.toMap());
+            }
+        });
     }
 
-    //Async fit data delete
-    private class DeleteDataTask extends AsyncTask<Void, Void, Void> {
-
-        long startTime;
-        long endTime;
-        DataType dataType;
-
-        DeleteDataTask(long startTime, long endTime, DataType dataType) {
-            this.startTime = startTime;
-            this.endTime = endTime;
-        }
-
-        @Override
-        protected Void doInBackground(Void... params) {
-
-            DataDeleteRequest request = new DataDeleteRequest.Builder()
-                    .setTimeInterval(startTime, endTime, TimeUnit.MILLISECONDS)
-                    .addDataType(this.dataType)
-                    .build();
-
-            com.google.android.gms.common.api.Status insertStatus =
-                    Fitness.HistoryApi.deleteData(googleFitManager.getGoogleApiClient(), request)
-                            .await(1, TimeUnit.MINUTES);
-
-            if (insertStatus.isSuccess()) {
-                Log.w("myLog", "+Successfully deleted data.");
-            } else {
-                Log.w("myLog", "+Failed to delete data.");
+    public void saveAll(final DataType dataType, ReadableArray samples, final BulkInserter.Completion completion) {
+        googleFitManager.getBulkInserter().insert(dataType, samples, new BulkInserter.PointWriter() {
+            @Override
+            public void write(DataPoint dataPoint, ReadableMap sample) {
+                long date = (long) sample.getDouble("date");
+                dataPoint.setTimeInterval(date, date, TimeUnit.MILLISECONDS);
+                if (dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE) {
+                    dataPoint.getValue(HealthFields.FIELD_BLOOD_PRESSURE_SYSTOLIC).setFloat((float) sample.getDouble("value"));
+                    dataPoint.getValue(HealthFields.FIELD_BLOOD_PRESSURE_DIASTOLIC).setFloat((float) sample.getDouble("value2"));
+                } else {
+                    dataPoint.setFloatValues((float) sample.getDouble("value"));
+                }
             }
-
-            return null;
-        }
+        }, new BulkInserter.Completion() {
+            @Override
+            public void onComplete(BulkInserter.Result result) {
+                googleFitManager.getIntervalCache().invalidate(dataType.getName() + "|");
+                completion.onComplete(result);
+            }
+        });
     }
 
+    /**
+     * Deletes the samples of the type between startTime and endTime and waits for Google Fit.
+     * @return Status of the delete, as described by FitExecutor.describe
+     */
+    public WritableMap delete(DataType dataType, ReadableMap sample) {
+        long endTime = (long) sample.getDouble("endTime");
+        long startTime = (long) sample.getDouble("startTime");
 
-    //Async fit data insert
-    private class InsertAndVerifyDataTask extends AsyncTask<Void, Void, Void> {
-
-        private DataSet Dataset;
-
-        InsertAndVerifyDataTask(DataSet dataset) {
-            this.Dataset = dataset;
-        }
-
-        protected Void doInBackground(Void... params) {
-            // Create a new dataset and insertion request.
-            DataSet dataSet = this.Dataset;
-
-            // [START insert_dataset]
-            // Then, invoke the History API to insert the data and await the result, which is
-            // possible here because of the {@link AsyncTask}. Always include a timeout when calling
-            // await() to prevent hanging that can occur from the service being shutdown because
-            // of low memory or other conditions.
-            //Log.i(TAG, "Inserting the dataset in the History API.");
-            com.google.android.gms.common.api.Status insertStatus =
-                    Fitness.HistoryApi.insertData(googleFitManager.getGoogleApiClient(), dataSet)
-                            .await(1, TimeUnit.MINUTES);
-
-            // Before querying the data, check to see if the insertion succeeded.
-            if (!insertStatus.isSuccess()) {
-                //Log.i(TAG, "There was a problem inserting the dataset.");
-                return null;
-            }
+        DataDeleteRequest request = new DataDeleteRequest.Builder()
+                .setTimeInterval(startTime, endTime, TimeUnit.MILLISECONDS)
+                .addDataType(dataType)
+                .build();
 
-            //Log.i(TAG, "Data insert was successful!");
+        Status deleteStatus = Fitness.HistoryApi.deleteData(googleFitManager.getGoogleApiClient(), request)
+                .await(1, TimeUnit.MINUTES);
+        googleFitManager.getIntervalCache().invalidate(dataType.getName() + "|");
 
-            return null;
+        if (!deleteStatus.isSuccess()) {
+            Log.w(TAG, "Failed to delete " + dataType.getName() + ": " + deleteStatus);
         }
+        return FitExecutor.describe(deleteStatus);
     }
 
     /**
@@ -219,34 +385,20 @@ public class HeartrateHistory {
         return dataSet;
     }
 
-    private void processDataSet(DataSet dataSet, WritableArray map) {
-
-        //Log.i(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
-        Format formatter = new SimpleDateFormat("EEE");
-//        WritableMap stepMap = Arguments.createMap();
-
-        for (DataPoint dp : dataSet.getDataPoints()) {
-            WritableMap stepMap = Arguments.createMap();
-            String day = formatter.format(new Date(dp.getStartTime(TimeUnit.MILLISECONDS)));
-            int i = 0;
-
-            for(Field field : dp.getDataType().getFields()) {
-                i++;
-                if (i > 1) continue;
-                stepMap.putString("day", day);
-                stepMap.putDouble("startDate", dp.getStartTime(TimeUnit.MILLISECONDS));
-                stepMap.putDouble("endDate", dp.getEndTime(TimeUnit.MILLISECONDS));
-                if (this.dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE) {
-                    stepMap.putDouble("value2", dp.getValue(HealthFields.FIELD_BLOOD_PRESSURE_DIASTOLIC).asFloat());
-                    stepMap.putDouble("value", dp.getValue(HealthFields.FIELD_BLOOD_PRESSURE_SYSTOLIC).asFloat());
-                } else {
-                  stepMap.putDouble("value", dp.getValue(field).asFloat());
-                }
-
-
-                map.pushMap(stepMap);
-            }
+    private void processDataPoint(DataPoint dp, SampleWriter map, DataType dataType) {
+        // only the first field is reported, blood pressure reports both of its values
+        Field field = dp.getDataType().getFields().get(0);
+        map.beginSample();
+        map.putDay(dp.getStartTime(TimeUnit.MILLISECONDS));
+        map.putDouble("startDate", dp.getStartTime(TimeUnit.MILLISECONDS));
+        map.putDouble("endDate", dp.getEndTime(TimeUnit.MILLISECONDS));
+        if (dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE) {
+            map.putDouble("value2", dp.getValue(HealthFields.FIELD_BLOOD_PRESSURE_DIASTOLIC).asFloat());
+            map.putDouble("value", dp.getValue(HealthFields.FIELD_BLOOD_PRESSURE_SYSTOLIC).asFloat());
+        } else {
+            map.putDouble("value", dp.getValue(field).asFloat());
         }
+        map.endSample();
     }
 
 }
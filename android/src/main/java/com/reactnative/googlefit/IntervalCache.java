@@ -0,0 +1,320 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.facebook.react.bridge.ReadableMap;
+import com.google.android.gms.fitness.data.DataPoint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory cache of data points per series (data type plus bucketing), remembering which
+ * time intervals were already fetched. A read only fetches the gaps between the cached
+ * intervals, so panning a chart over overlapping windows mostly hits memory.
+ *
+ * Intervals expire after TTL_MILLIS, series are evicted least recently used first when
+ * there are more than MAX_SERIES of them or more than MAX_POINTS points in total. A read
+ * returns what it fetched even when its series was evicted meanwhile. Every key has a
+ * generation that invalidate bumps, so a load that was running during a write doesn't put
+ * the points from before the write back into the cache.
+ */
+public class IntervalCache {
+
+    private static final String TAG = "RNGoogleFit";
+
+    private static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final int MAX_SERIES = 16;
+    private static final int MAX_POINTS = 20000;
+
+    private static final Comparator<DataPoint> BY_START_TIME = new Comparator<DataPoint>() {
+        @Override
+        public int compare(DataPoint a, DataPoint b) {
+            long first = a.getStartTime(TimeUnit.MILLISECONDS);
+            long second = b.getStartTime(TimeUnit.MILLISECONDS);
+            return first < second ? -1 : (first == second ? 0 : 1);
+        }
+    };
+
+    public interface Loader {
+        /**
+         * Fetches the data points of a gap. Ranges that could not be read are added to failed.
+         */
+        List<DataPoint> load(long startTime, long endTime, List<long[]> failed);
+    }
+
+    public static class Result {
+        // data points in start time order
+        public final List<DataPoint> points;
+        // ranges that could not be read
+        public final List<long[]> gaps;
+
+        Result(List<DataPoint> points, List<long[]> gaps) {
+            this.points = points;
+            this.gaps = gaps;
+        }
+    }
+
+    private static class Interval {
+        final long startTime;
+        final long endTime;
+        final long fetchedAt;
+
+        Interval(long startTime, long endTime, long fetchedAt) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    private static class Series {
+        // fetched intervals, sorted by start and not overlapping
+        final List<Interval> intervals = new ArrayList<>();
+        // points by start time
+        final TreeMap<Long, List<DataPoint>> points = new TreeMap<>();
+        int size = 0;
+    }
+
+    // access order, so iteration starts with the least recently used series
+    private final LinkedHashMap<String, Series> series = new LinkedHashMap<>(16, 0.75f, true);
+    // bumped by invalidate, for every key that was read
+    private final Map<String, Integer> generations = new HashMap<>();
+    private int totalPoints = 0;
+
+    /**
+     * Reads the points of [startTime, endTime) from the cache, fetching the uncovered gaps
+     * with the loader. With { cache: false } in the read options the cache is skipped.
+     * Must not be called on the main thread.
+     */
+    public Result read(String key, long startTime, long endTime, ReadableMap options, Loader loader) {
+        if (!DailyAggregateStore.isCacheEnabled(options)) {
+            List<long[]> failed = new ArrayList<>();
+            List<DataPoint> points = new ArrayList<>(loader.load(startTime, endTime, failed));
+            Collections.sort(points, BY_START_TIME);
+            return new Result(points, failed);
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        List<long[]> missing;
+        List<DataPoint> points = new ArrayList<>();
+        int generation;
+        synchronized (this) {
+            Series cached = getSeries(key);
+            missing = plan(cached, startTime, endTime, now);
+            // the covered parts come from memory now, the series may be evicted while the gaps load
+            for (Map.Entry<Long, List<DataPoint>> entry : cached.points.subMap(startTime, endTime).entrySet()) {
+                if (!isIn(missing, entry.getKey())) {
+                    points.addAll(entry.getValue());
+                }
+            }
+            generation = getGeneration(key);
+        }
+        if (!missing.isEmpty()) {
+            Log.i(TAG, key + " - fetching " + missing.size() + " uncovered intervals");
+        }
+
+        List<long[]> failed = new ArrayList<>();
+        List<List<DataPoint>> fetched = new ArrayList<>();
+        List<List<long[]>> fetchFailures = new ArrayList<>();
+        for (long[] gap : missing) {
+            List<long[]> gapFailures = new ArrayList<>();
+            fetched.add(loader.load(gap[0], gap[1], gapFailures));
+            fetchFailures.add(gapFailures);
+            failed.addAll(gapFailures);
+        }
+
+        synchronized (this) {
+            // invalidated during the load, what was fetched may predate a write
+            boolean current = generation == getGeneration(key);
+            for (int i = 0; i < missing.size(); i++) {
+                long[] gap = missing.get(i);
+                for (DataPoint dp : fetched.get(i)) {
+                    long time = dp.getStartTime(TimeUnit.MILLISECONDS);
+                    if (time >= gap[0] && time < gap[1]) {
+                        points.add(dp);
+                    }
+                }
+                if (current) {
+                    store(key, gap[0], gap[1], fetched.get(i), fetchFailures.get(i), now);
+                }
+            }
+        }
+        Collections.sort(points, BY_START_TIME);
+        return new Result(points, failed);
+    }
+
+    /**
+     * Drops every series whose key starts with the prefix, for example after a write.
+     */
+    public synchronized void invalidate(String prefix) {
+        Iterator<Map.Entry<String, Series>> iterator = series.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Series> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                totalPoints -= entry.getValue().size;
+                iterator.remove();
+            }
+        }
+        for (Map.Entry<String, Integer> entry : generations.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                entry.setValue(entry.getValue() + 1);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        series.clear();
+        totalPoints = 0;
+        for (Map.Entry<String, Integer> entry : generations.entrySet()) {
+            entry.setValue(entry.getValue() + 1);
+        }
+    }
+
+    private int getGeneration(String key) {
+        Integer generation = generations.get(key);
+        if (generation == null) {
+            generation = 0;
+            generations.put(key, generation);
+        }
+        return generation;
+    }
+
+    private static boolean isIn(List<long[]> ranges, long time) {
+        for (long[] range : ranges) {
+            if (time >= range[0] && time < range[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Series getSeries(String key) {
+        Series cached = series.get(key);
+        if (cached == null) {
+            cached = new Series();
+            series.put(key, cached);
+        }
+        return cached;
+    }
+
+    /**
+     * @return Parts of [startTime, endTime) that aren't covered by a live interval
+     */
+    private static List<long[]> plan(Series cached, long startTime, long endTime, long now) {
+        List<long[]> missing = new ArrayList<>();
+        long cursor = startTime;
+        for (Interval interval : cached.intervals) {
+            if (interval.endTime <= cursor || now - interval.fetchedAt > TTL_MILLIS) {
+                continue;
+            }
+            if (interval.startTime >= endTime) {
+                break;
+            }
+            if (interval.startTime > cursor) {
+                missing.add(new long[] {cursor, interval.startTime});
+            }
+            cursor = Math.max(cursor, interval.endTime);
+        }
+        if (cursor < endTime) {
+            missing.add(new long[] {cursor, endTime});
+        }
+        return missing;
+    }
+
+    private void store(String key, long startTime, long endTime, List<DataPoint> fetched,
+                       List<long[]> failed, long now) {
+        Series cached = getSeries(key);
+
+        // replace whatever was cached for the gap, stale intervals included
+        Map<Long, List<DataPoint>> replaced = cached.points.subMap(startTime, endTime);
+        for (List<DataPoint> atTime : replaced.values()) {
+            cached.size -= atTime.size();
+            totalPoints -= atTime.size();
+        }
+        replaced.clear();
+
+        for (DataPoint dp : fetched) {
+            long time = dp.getStartTime(TimeUnit.MILLISECONDS);
+            if (time < startTime || time >= endTime) {
+                continue;
+            }
+            List<DataPoint> atTime = cached.points.get(time);
+            if (atTime == null) {
+                atTime = new ArrayList<>(1);
+                cached.points.put(time, atTime);
+            }
+            atTime.add(dp);
+            cached.size++;
+            totalPoints++;
+        }
+
+        List<Interval> covered = new ArrayList<>();
+        covered.add(new Interval(startTime, endTime, now));
+        for (long[] range : failed) {
+            covered = subtract(covered, range[0], range[1]);
+        }
+        for (Interval interval : covered) {
+            addInterval(cached, interval);
+        }
+
+        evict(key);
+    }
+
+    private static List<Interval> subtract(List<Interval> intervals, long startTime, long endTime) {
+        List<Interval> result = new ArrayList<>();
+        for (Interval interval : intervals) {
+            if (interval.endTime <= startTime || interval.startTime >= endTime) {
+                result.add(interval);
+                continue;
+            }
+            if (interval.startTime < startTime) {
+                result.add(new Interval(interval.startTime, startTime, interval.fetchedAt));
+            }
+            if (interval.endTime > endTime) {
+                result.add(new Interval(endTime, interval.endTime, interval.fetchedAt));
+            }
+        }
+        return result;
+    }
+
+    private static void addInterval(Series cached, Interval added) {
+        List<Interval> intervals = subtract(cached.intervals, added.startTime, added.endTime);
+        int index = 0;
+        while (index < intervals.size() && intervals.get(index).startTime < added.startTime) {
+            index++;
+        }
+        intervals.add(index, added);
+        cached.intervals.clear();
+        cached.intervals.addAll(intervals);
+    }
+
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Series>> iterator = series.entrySet().iterator();
+        while (iterator.hasNext() && (series.size() > MAX_SERIES || totalPoints > MAX_POINTS)) {
+            Map.Entry<String, Series> entry = iterator.next();
+            if (entry.getKey().equals(keep)) {
+                continue;
+            }
+            totalPoints -= entry.getValue().size;
+            iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.Field;
+import com.google.android.gms.fitness.request.DataReadRequest;
+import com.google.android.gms.fitness.result.DataReadResult;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latest known value of slowly changing body metrics (height, weight), kept in
+ * SharedPreferences so it can be served without asking Google Fit.
+ *
+ * Saves made through this module update the index right away. Reads older than MAX_AGE_MILLIS
+ * return the stored value and refresh it in the background; refresh() asks Google Fit directly.
+ */
+public class LatestValueIndex {
+
+    private static final String TAG = "RNGoogleFit";
+
+    private static final String PREFERENCES = "RNGoogleFitLatest";
+    private static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    // Google Fit launched in June 2014, there is no data before that
+    static final long FIT_EPOCH_MILLIS = 1401926400000L;
+    // the search goes back from now in windows that double in size
+    private static final long FIRST_WINDOW_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    private final SharedPreferences preferences;
+    private final GoogleFitManager googleFitManager;
+    private final Set<String> refreshing = new HashSet<>();
+
+    public static class Entry {
+        public final float value;
+        // time of the sample
+        public final long time;
+        // when the value was last confirmed with Google Fit
+        public final long refreshedAt;
+
+        Entry(float value, long time, long refreshedAt) {
+            this.value = value;
+            this.time = time;
+            this.refreshedAt = refreshedAt;
+        }
+    }
+
+    public LatestValueIndex(Context context, GoogleFitManager googleFitManager) {
+        this.preferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        this.googleFitManager = googleFitManager;
+    }
+
+    /**
+     * @return The stored value, read from Google Fit when there is none yet. Null when Google Fit has none either.
+     * Must not be called on the main thread.
+     */
+    public Entry get(DataType dataType) {
+        Entry entry = load(dataType);
+        if (entry == null) {
+            return refresh(dataType);
+        }
+        if (System.currentTimeMillis() - entry.refreshedAt > MAX_AGE_MILLIS) {
+            refreshInBackground(dataType);
+        }
+        return entry;
+    }
+
+    /**
+     * Reads the latest value from Google Fit and stores it. Must not be called on the main thread.
+     */
+    public Entry refresh(DataType dataType) {
+        long started = System.currentTimeMillis();
+        DataPoint latest = null;
+        long end = started;
+        long window = FIRST_WINDOW_MILLIS;
+        while (latest == null && end > FIT_EPOCH_MILLIS) {
+            long start = Math.max(FIT_EPOCH_MILLIS, end - window);
+            DataReadRequest readRequest = new DataReadRequest.Builder()
+                    .read(dataType)
+                    .setTimeRange(start, end, TimeUnit.MILLISECONDS)
+                    .build();
+            DataReadResult result = googleFitManager.getReadCoalescer().await(
+                    DataReadCoalescer.key(dataType.getName(), null, "latest", start, end), readRequest);
+            if (!result.getStatus().isSuccess()) {
+                throw new IllegalStateException("Failed to read the latest " + dataType.getName() + ": " + result.getStatus());
+            }
+            for (DataSet dataSet : result.getDataSets()) {
+                for (DataPoint dp : dataSet.getDataPoints()) {
+                    if (latest == null || dp.getEndTime(TimeUnit.MILLISECONDS) > latest.getEndTime(TimeUnit.MILLISECONDS)) {
+                        latest = dp;
+                    }
+                }
+            }
+            end = start;
+            window *= 2;
+        }
+
+        synchronized (this) {
+            // a value saved while the search ran may not be visible in Google Fit yet
+            Entry saved = load(dataType);
+            if (saved != null && saved.refreshedAt >= started
+                    && (latest == null || saved.time > latest.getEndTime(TimeUnit.MILLISECONDS))) {
+                return saved;
+            }
+            if (latest == null) {
+                remove(dataType);
+                return null;
+            }
+            Field field = dataType.getFields().get(0);
+            Entry entry = new Entry(latest.getValue(field).asFloat(), latest.getEndTime(TimeUnit.MILLISECONDS),
+                    System.currentTimeMillis());
+            store(dataType, entry);
+            return entry;
+        }
+    }
+
+    /**
+     * Records a value that was just written, unless a later one is known.
+     */
+    public synchronized void put(DataType dataType, float value, long time) {
+        Entry entry = load(dataType);
+        if (entry == null || time >= entry.time) {
+            // our own write is as good as a confirmation from Google Fit
+            store(dataType, new Entry(value, time, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Forgets the value when it was deleted, the next read asks Google Fit again.
+     */
+    public synchronized void forget(DataType dataType, long startTime, long endTime) {
+        Entry entry = load(dataType);
+        if (entry != null && entry.time >= startTime && entry.time <= endTime) {
+            remove(dataType);
+        }
+    }
+
+    public synchronized void clear() {
+        preferences.edit().clear().apply();
+    }
+
+    private void refreshInBackground(final DataType dataType) {
+        synchronized (refreshing) {
+            if (!refreshing.add(dataType.getName())) {
+                return;
+            }
+        }
+        boolean accepted = googleFitManager.getReadExecutor().execute("refresh " + dataType.getName(), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh(dataType);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Failed to refresh the latest " + dataType.getName(), e);
+                } finally {
+                    synchronized (refreshing) {
+                        refreshing.remove(dataType.getName());
+                    }
+                }
+            }
+        });
+        if (!accepted) {
+            synchronized (refreshing) {
+                refreshing.remove(dataType.getName());
+            }
+        }
+    }
+
+    private synchronized Entry load(DataType dataType) {
+        String key = dataType.getName();
+        if (!preferences.contains(key + ".time")) {
+            return null;
+        }
+        return new Entry(preferences.getFloat(key + ".value", 0),
+                preferences.getLong(key + ".time", 0),
+                preferences.getLong(key + ".refreshedAt", 0));
+    }
+
+    private synchronized void store(DataType dataType, Entry entry) {
+        String key = dataType.getName();
+        preferences.edit()
+                .putFloat(key + ".value", entry.value)
+                .putLong(key + ".time", entry.time)
+                .putLong(key + ".refreshedAt", entry.refreshedAt)
+                .apply();
+    }
+
+    private synchronized void remove(DataType dataType) {
+        String key = dataType.getName();
+        preferences.edit()
+                .remove(key + ".value")
+                .remove(key + ".time")
+                .remove(key + ".refreshedAt")
+                .apply();
+    }
+}
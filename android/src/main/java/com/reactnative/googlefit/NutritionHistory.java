@@ -5,6 +5,7 @@ import android.util.Log;
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactContext;
 import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.google.android.gms.fitness.Fitness;
@@ -19,8 +20,10 @@ import com.google.android.gms.fitness.result.DataReadResult;
 
 import java.text.DateFormat;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
@@ -64,22 +67,54 @@ public class NutritionHistory {
         this.googleFitManager = googleFitManager;
     }
 
-    public ReadableArray aggregateDataByDate(long startTime, long endTime) {
+    public Object aggregateDataByDate(long startTime, long endTime, ReadableMap options) {
 
         DateFormat dateFormat = DateFormat.getDateInstance();
         Log.i(TAG, "Range Start: " + dateFormat.format(startTime));
         Log.i(TAG, "Range End: " + dateFormat.format(endTime));
 
-        DataReadRequest readRequest = new DataReadRequest.Builder()
-                .aggregate(DataType.TYPE_NUTRITION, DataType.AGGREGATE_NUTRITION_SUMMARY)
-                .bucketByTime(1, TimeUnit.DAYS)
-                .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS).build();
+        final long bucketMillis = CalendarRollup.getSourceBucketMillis(options, TimeUnit.DAYS.toMillis(1));
+        return googleFitManager.getAggregateStore().read("nutrition",
+                CalendarRollup.getSourceKey(DataType.AGGREGATE_NUTRITION_SUMMARY.getName(), options), startTime, endTime, options, "nutrition",
+                new DailyAggregateStore.Fetcher() {
+                    @Override
+                    public void fetch(long rangeStart, long rangeEnd, SampleWriter writer) {
+                        readRange(rangeStart, rangeEnd, bucketMillis, writer);
+                    }
+                });
+    }
 
-        DataReadResult dataReadResult = Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest)
-                .await(1, TimeUnit.MINUTES);
+    private void readRange(long startTime, long endTime, final long bucketMillis, SampleWriter map) {
+        // Long ranges are read in shards of at most RangeSharder.MAX_BUCKETS_PER_SHARD buckets
+        List<RangeSharder.Shard> shards = googleFitManager.getRangeSharder().read(startTime, endTime,
+                RangeSharder.shardSizeForBuckets(bucketMillis),
+                new RangeSharder.RequestFactory() {
+                    @Override
+                    public DataReadRequest build(long shardStart, long shardEnd) {
+                        return new DataReadRequest.Builder()
+                                .aggregate(DataType.TYPE_NUTRITION, DataType.AGGREGATE_NUTRITION_SUMMARY)
+                                .bucketByTime((int) bucketMillis, TimeUnit.MILLISECONDS)
+                                .setTimeRange(shardStart, shardEnd, TimeUnit.MILLISECONDS)
+                                .build();
+                    }
+
+                    @Override
+                    public String key(long shardStart, long shardEnd) {
+                        return DataReadCoalescer.key(DataType.TYPE_NUTRITION.getName(), DataType.AGGREGATE_NUTRITION_SUMMARY, bucketMillis + "ms", shardStart, shardEnd);
+                    }
+                });
+
+        for (RangeSharder.Shard shard : shards) {
+            if (shard.result == null) {
+                map.addGap(shard.startTime, shard.endTime);
+            } else {
+                processDataReadResult(shard.result, map);
+            }
+        }
 
-        WritableArray map = Arguments.createArray();
+    }
 
+    private void processDataReadResult(DataReadResult dataReadResult, SampleWriter map) {
         // Used for aggregated data
         if (dataReadResult.getBuckets().size() > 0) {
             Log.i(TAG, "Number of buckets: " + dataReadResult.getBuckets().size());
@@ -97,11 +132,9 @@ public class NutritionHistory {
                 processDataSet(dataSet, map);
             }
         }
-
-        return map;
     }
 
-    private void processDataSet(DataSet dataSet, WritableArray map) {
+    void processDataSet(DataSet dataSet, SampleWriter map) {
         Log.i(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
         DateFormat dateFormat = DateFormat.getDateInstance();
         DateFormat timeFormat = DateFormat.getTimeInstance();
@@ -114,23 +147,22 @@ public class NutritionHistory {
             Log.i(TAG, "\tEnd: " + dateFormat.format(dp.getEndTime(TimeUnit.MILLISECONDS)) + " "
                     + timeFormat.format(dp.getStartTime(TimeUnit.MILLISECONDS)));
 
-            WritableMap nutritionMap = Arguments.createMap();
             Value nutrients = dp.getValue((Field.FIELD_NUTRIENTS));
 
-            nutritionMap.putDouble("date", dp.getStartTime(TimeUnit.MILLISECONDS));
-            nutritionMap.putMap("nutrients", getNutrientsAsMap(nutrients));
-
-            map.pushMap(nutritionMap);
+            map.beginSample();
+            map.putDouble("date", dp.getStartTime(TimeUnit.MILLISECONDS));
+            map.putDoubles("nutrients", getNutrientsAsMap(nutrients));
+            map.endSample();
         }
     }
 
-    private WritableMap getNutrientsAsMap(Value nutrients) {
-        WritableMap nutrientsMap = Arguments.createMap();
+    private Map<String, Double> getNutrientsAsMap(Value nutrients) {
+        Map<String, Double> nutrientsMap = new HashMap<>();
 
         for (String nutrientKey : NUTRIENTS_SET) {
             try {
                 Float nutrientVal = nutrients.getKeyValue(nutrientKey);
-                nutrientsMap.putDouble(nutrientKey, nutrientVal);
+                nutrientsMap.put(nutrientKey, nutrientVal.doubleValue());
             } catch (Exception e) {
             }
         }
@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.fitness.request.DataReadRequest;
+import com.google.android.gms.fitness.result.DataReadResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits a long read into time-ordered shards, runs them in parallel with a concurrency cap
+ * and hands back the results in time order.
+ *
+ * The Google Fit API seems to have a limit of around 3,000 as the maximum number of buckets that
+ * can be returned in an aggregated query - anything more than this and the fitness API takes ages
+ * to respond and/or no response at all. Shards are therefore sized to MAX_BUCKETS_PER_SHARD buckets
+ * and aligned to the bucket size, so the buckets are the same as for a single request.
+ */
+public class RangeSharder {
+
+    private static final String TAG = "RNGoogleFit";
+
+    public static final int MAX_BUCKETS_PER_SHARD = 1000;
+    private static final int MAX_CONCURRENT_SHARDS = 3;
+    private static final long SHARD_TIMEOUT_SECONDS = 65;
+
+    private final DataReadCoalescer coalescer;
+
+    public interface RequestFactory {
+        /**
+         * Builds the request for one shard.
+         */
+        DataReadRequest build(long startTime, long endTime);
+
+        /**
+         * Builds the coalescer key for one shard, see DataReadCoalescer.key.
+         */
+        String key(long startTime, long endTime);
+    }
+
+    public static class Shard {
+        public final long startTime;
+        public final long endTime;
+        // null when the shard failed
+        public DataReadResult result;
+        public String error;
+        private boolean closed = false;
+
+        Shard(long startTime, long endTime) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+    }
+
+    public RangeSharder(DataReadCoalescer coalescer) {
+        this.coalescer = coalescer;
+    }
+
+    /**
+     * Size of a shard holding MAX_BUCKETS_PER_SHARD buckets of the given size.
+     */
+    public static long shardSizeForBuckets(long bucketMillis) {
+        return bucketMillis * MAX_BUCKETS_PER_SHARD;
+    }
+
+    public static List<Shard> split(long startTime, long endTime, long shardMillis) {
+        List<Shard> shards = new ArrayList<>();
+        if (shardMillis <= 0 || endTime <= startTime) {
+            shards.add(new Shard(startTime, endTime));
+            return shards;
+        }
+        for (long shardStart = startTime; shardStart < endTime; shardStart += shardMillis) {
+            shards.add(new Shard(shardStart, Math.min(shardStart + shardMillis, endTime)));
+        }
+        return shards;
+    }
+
+    /**
+     * Reads the range shard by shard and blocks until every shard completed or failed.
+     * Must not be called on the main thread.
+     * @return List of shards in time order, failed shards have a null result
+     * @throws IllegalStateException when every shard failed
+     */
+    public List<Shard> read(long startTime, long endTime, long shardMillis, RequestFactory factory) {
+        final List<Shard> shards = split(startTime, endTime, shardMillis);
+        if (shards.size() > 1) {
+            Log.i(TAG, "Reading range in " + shards.size() + " shards");
+        }
+
+        final Semaphore permits = new Semaphore(MAX_CONCURRENT_SHARDS);
+        final CountDownLatch done = new CountDownLatch(shards.size());
+
+        try {
+            for (int i = 0; i < shards.size(); i++) {
+                final Shard shard = shards.get(i);
+                if (!permits.tryAcquire(SHARD_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    // earlier shards are stuck, don't start more of them
+                    for (Shard skipped : shards.subList(i, shards.size())) {
+                        synchronized (skipped) {
+                            skipped.error = "Timed out";
+                        }
+                        done.countDown();
+                    }
+                    break;
+                }
+                coalescer.read(factory.key(shard.startTime, shard.endTime),
+                        factory.build(shard.startTime, shard.endTime),
+                        new ResultCallback<DataReadResult>() {
+                            @Override
+                            public void onResult(@NonNull DataReadResult dataReadResult) {
+                                synchronized (shard) {
+                                    if (!shard.closed) {
+                                        if (dataReadResult.getStatus().isSuccess()) {
+                                            shard.result = dataReadResult;
+                                        } else {
+                                            shard.error = dataReadResult.getStatus().getStatusMessage();
+                                        }
+                                    }
+                                }
+                                permits.release();
+                                done.countDown();
+                            }
+                        });
+            }
+
+            if (!done.await(SHARD_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Log.w(TAG, "Timed out waiting for shards, returning partial results");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading Google Fit history");
+        }
+
+        int failed = 0;
+        String lastError = null;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                // results arriving after this point are ignored, the caller already moved on
+                shard.closed = true;
+                if (shard.result == null) {
+                    failed++;
+                    if (shard.error == null) {
+                        shard.error = "Timed out";
+                    }
+                    lastError = shard.error;
+                    Log.w(TAG, "Shard " + shard.startTime + "-" + shard.endTime + " failed: " + shard.error);
+                }
+            }
+        }
+        if (failed == shards.size()) {
+            throw new IllegalStateException("Google Fit read failed: " + lastError);
+        }
+        return shards;
+    }
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableMap;
+import com.google.android.gms.fitness.data.DataPoint;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.Field;
+import com.google.android.gms.fitness.data.HealthDataTypes;
+import com.google.android.gms.fitness.data.HealthFields;
+import com.google.android.gms.fitness.request.DataReadRequest;
+import com.google.android.gms.fitness.result.DataReadResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cursors over raw samples, so JS can page through long, dense ranges at its own pace instead
+ * of getting everything in one payload.
+ *
+ * A cursor walks its range forward in time windows. The window adapts to the density of the
+ * data so that one window holds about a page, which keeps native memory to roughly one page per
+ * cursor. Cursors not read for IDLE_MILLIS are closed, and only MAX_CURSORS are kept open.
+ */
+public class ReadCursors {
+
+    private static final String TAG = "RNGoogleFit";
+
+    private static final long IDLE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final int MAX_CURSORS = 16;
+    private static final int MAX_PAGE_SIZE = 5000;
+
+    private static final long FIRST_WINDOW_MILLIS = TimeUnit.HOURS.toMillis(6);
+    private static final long MIN_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long MAX_WINDOW_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    private final GoogleFitManager googleFitManager;
+    // open cursors by id, least recently read first
+    private final LinkedHashMap<Integer, Cursor> cursors = new LinkedHashMap<>(16, 0.75f, true);
+    private int nextId = 1;
+
+    static class Cursor {
+        final int id;
+        final DataType dataType;
+        final String type;
+        final long endTime;
+        final int pageSize;
+        final ReadableMap options;
+        // start of the next window to read
+        long position;
+        long windowMillis = FIRST_WINDOW_MILLIS;
+        // points read but not returned yet, in time order
+        final LinkedList<DataPoint> pending = new LinkedList<>();
+        long lastReadAt = SystemClock.elapsedRealtime();
+
+        Cursor(int id, DataType dataType, String type, long startTime, long endTime, int pageSize, ReadableMap options) {
+            this.id = id;
+            this.dataType = dataType;
+            this.type = type;
+            this.position = startTime;
+            this.endTime = endTime;
+            this.pageSize = pageSize;
+            this.options = options;
+        }
+
+        boolean isDone() {
+            return pending.isEmpty() && position >= endTime;
+        }
+    }
+
+    public ReadCursors(GoogleFitManager googleFitManager) {
+        this.googleFitManager = googleFitManager;
+    }
+
+    /**
+     * @param type String heartRate, bloodPressure, weight, height, steps, distance or calories
+     * @return The data type of raw samples, null for unknown types
+     */
+    public static DataType getDataType(String type) {
+        switch (type) {
+            case "heartRate":
+                return DataType.TYPE_HEART_RATE_BPM;
+            case "bloodPressure":
+                return HealthDataTypes.TYPE_BLOOD_PRESSURE;
+            case "weight":
+                return DataType.TYPE_WEIGHT;
+            case "height":
+                return DataType.TYPE_HEIGHT;
+            case "steps":
+                return DataType.TYPE_STEP_COUNT_DELTA;
+            case "distance":
+                return DataType.TYPE_DISTANCE_DELTA;
+            case "calories":
+                return DataType.TYPE_CALORIES_EXPENDED;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Opens a cursor, nothing is read before the first page is asked for.
+     * @param options ReadableMap Read options from JS, may be null. Only format is used.
+     * @return Id of the cursor
+     */
+    public synchronized int open(String type, long startTime, long endTime, int pageSize, ReadableMap options) {
+        DataType dataType = getDataType(type);
+        if (dataType == null) {
+            throw new IllegalArgumentException("Unknown data type " + type);
+        }
+        if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("pageSize must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        if (endTime < startTime) {
+            throw new IllegalArgumentException("The range ends before it starts");
+        }
+        closeIdle();
+        if (cursors.size() >= MAX_CURSORS) {
+            Integer oldest = cursors.keySet().iterator().next();
+            Log.w(TAG, "Too many cursors, closing cursor " + oldest);
+            cursors.remove(oldest);
+        }
+        int id = nextId++;
+        cursors.put(id, new Cursor(id, dataType, type, startTime, endTime, pageSize, options));
+        return id;
+    }
+
+    /**
+     * @return The open cursor, null when it was closed or expired
+     */
+    public synchronized Cursor get(int id) {
+        closeIdle();
+        Cursor cursor = cursors.get(id);
+        if (cursor != null) {
+            cursor.lastReadAt = SystemClock.elapsedRealtime();
+        }
+        return cursor;
+    }
+
+    public synchronized void close(int id) {
+        cursors.remove(id);
+    }
+
+    public synchronized void clear() {
+        cursors.clear();
+    }
+
+    /**
+     * Reads the next page of the cursor. Blocks on Google Fit, so it must not run on the main thread.
+     * @return { samples, done }, samples as rows or columns depending on the format the cursor was opened with.
+     * The cursor is closed once done.
+     */
+    public WritableMap readNext(Cursor cursor) {
+        SampleWriter writer = SampleWriter.create(cursor.options, cursor.type);
+        boolean done;
+        // pages of one cursor are read one at a time
+        synchronized (cursor) {
+            while (cursor.pending.size() < cursor.pageSize && cursor.position < cursor.endTime) {
+                readWindow(cursor);
+            }
+            for (int i = 0; i < cursor.pageSize && !cursor.pending.isEmpty(); i++) {
+                writePoint(cursor.pending.removeFirst(), cursor.dataType, writer);
+            }
+            done = cursor.isDone();
+        }
+        if (done) {
+            close(cursor.id);
+        }
+
+        WritableMap page = Arguments.createMap();
+        writer.writeTo(page, "samples");
+        page.putBoolean("done", done);
+        return page;
+    }
+
+    private void readWindow(Cursor cursor) {
+        long windowStart = cursor.position;
+        long windowEnd = Math.min(cursor.endTime, windowStart + cursor.windowMillis);
+        DataReadRequest request = new DataReadRequest.Builder()
+                .read(cursor.dataType)
+                .setTimeRange(windowStart, windowEnd, TimeUnit.MILLISECONDS)
+                .build();
+        DataReadResult result = googleFitManager.getReadCoalescer().await(
+                DataReadCoalescer.key(cursor.dataType.getName(), null, "none", windowStart, windowEnd), request);
+        if (!result.getStatus().isSuccess()) {
+            // the cursor stays where it was, so the page can be asked for again
+            throw new IllegalStateException("Failed to read " + cursor.type + ": " + result.getStatus());
+        }
+
+        List<DataPoint> points = new ArrayList<>();
+        for (DataSet dataSet : result.getDataSets()) {
+            for (DataPoint dp : dataSet.getDataPoints()) {
+                // a sample belongs to the window it starts in, so none is returned twice
+                long start = dp.getStartTime(TimeUnit.MILLISECONDS);
+                if (start >= windowStart && (start < windowEnd || windowEnd == cursor.endTime)) {
+                    points.add(dp);
+                }
+            }
+        }
+        Collections.sort(points, new Comparator<DataPoint>() {
+            @Override
+            public int compare(DataPoint a, DataPoint b) {
+                long startA = a.getStartTime(TimeUnit.MILLISECONDS);
+                long startB = b.getStartTime(TimeUnit.MILLISECONDS);
+                return startA < startB ? -1 : (startA == startB ? 0 : 1);
+            }
+        });
+        cursor.pending.addAll(points);
+        cursor.position = windowEnd;
+
+        // aim for about a page per window
+        if (points.size() > cursor.pageSize * 2) {
+            cursor.windowMillis = Math.max(MIN_WINDOW_MILLIS, cursor.windowMillis / 2);
+        } else if (points.size() < cursor.pageSize / 2) {
+            cursor.windowMillis = Math.min(MAX_WINDOW_MILLIS, cursor.windowMillis * 2);
+        }
+    }
+
+    private static void writePoint(DataPoint dp, DataType dataType, SampleWriter writer) {
+        writer.beginSample();
+        writer.putDay(dp.getStartTime(TimeUnit.MILLISECONDS));
+        writer.putDouble("startDate", dp.getStartTime(TimeUnit.MILLISECONDS));
+        writer.putDouble("endDate", dp.getEndTime(TimeUnit.MILLISECONDS));
+        if (dataType == HealthDataTypes.TYPE_BLOOD_PRESSURE) {
+            writer.putDouble("value", dp.getValue(HealthFields.FIELD_BLOOD_PRESSURE_SYSTOLIC).asFloat());
+            writer.putDouble("value2", dp.getValue(HealthFields.FIELD_BLOOD_PRESSURE_DIASTOLIC).asFloat());
+        } else {
+            Field field = dataType.getFields().get(0);
+            writer.putDouble("value", field.getFormat() == Field.FORMAT_INT32
+                    ? dp.getValue(field).asInt()
+                    : dp.getValue(field).asFloat());
+        }
+        writer.putString("source", dp.getOriginalDataSource().getAppPackageName());
+        writer.endSample();
+    }
+
+    private void closeIdle() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Map.Entry<Integer, Cursor>> it = cursors.entrySet().iterator();
+        while (it.hasNext()) {
+            Cursor cursor = it.next().getValue();
+            if (now - cursor.lastReadAt > IDLE_MILLIS) {
+                Log.i(TAG, "Closing idle cursor " + cursor.id);
+                it.remove();
+            }
+        }
+    }
+}
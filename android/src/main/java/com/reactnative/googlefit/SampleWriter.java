@@ -0,0 +1,323 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.text.Format;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects samples produced by the history classes and turns them into a bridge payload.
+ *
+ * The row format is the classic array of maps, one map per sample. The columnar format
+ * keeps one array per field plus a small header, which avoids allocating a map (and
+ * repeating every key) for each sample on large reads:
+ *
+ * { format: "columnar", type: "steps", length: 2, fields: ["startDate", "endDate", "steps"],
+ *   columns: { startDate: [...], endDate: [...], steps: [...] } }
+ *
+ * Cells that were never written for a sample are sent as null. When part of a sharded read
+ * failed, the header also carries gaps: [[start, end], ...] with the ranges that are missing.
+ * A row array has nowhere to put them, so a row read with gaps fails instead of looking complete.
+ */
+public abstract class SampleWriter {
+
+    public static final String FORMAT_ROWS = "rows";
+    public static final String FORMAT_COLUMNAR = "columnar";
+
+    /**
+     * @param options ReadableMap Read options from JS, may be null. {format: "columnar"} selects the columnar format
+     * @param type String Name of the series, reported in the columnar header
+     */
+    public static SampleWriter create(ReadableMap options, String type) {
+        if (isColumnar(options)) {
+            return new Columnar(type);
+        }
+        return new Rows();
+    }
+
+    public static boolean isColumnar(ReadableMap options) {
+        return options != null
+                && options.hasKey("format")
+                && !options.isNull("format")
+                && FORMAT_COLUMNAR.equals(options.getString("format"));
+    }
+
+    public abstract void beginSample();
+
+    public abstract void putDouble(String key, double value);
+
+    public abstract void putString(String key, String value);
+
+    public abstract void putBoolean(String key, boolean value);
+
+    /**
+     * Puts a group of numeric values, sent as a nested map in rows and as "key.name" columns.
+     */
+    public abstract void putDoubles(String key, Map<String, Double> values);
+
+    /**
+     * Puts the short week day name of the sample. Only the row format carries it, since it
+     * can be derived from startDate on the JS side.
+     */
+    public abstract void putDay(long startTime);
+
+    public abstract void endSample();
+
+    /**
+     * Records a time range that could not be read.
+     */
+    public abstract void addGap(long startTime, long endTime);
+
+    public abstract int size();
+
+    /**
+     * @return WritableArray for the row format, WritableMap for the columnar format
+     * @throws IllegalStateException for the row format when a range could not be read
+     */
+    public abstract Object build();
+
+    public void writeTo(WritableMap map, String key) {
+        Object payload = build();
+        if (payload instanceof WritableArray) {
+            map.putArray(key, (WritableArray) payload);
+        } else {
+            map.putMap(key, (WritableMap) payload);
+        }
+    }
+
+    private static class Rows extends SampleWriter {
+
+        private final WritableArray rows = Arguments.createArray();
+        private final Format dayFormatter = new SimpleDateFormat("EEE");
+        private WritableMap current;
+        private int size = 0;
+        private long[] firstGap;
+        private int gapCount = 0;
+
+        @Override
+        public void beginSample() {
+            current = Arguments.createMap();
+        }
+
+        @Override
+        public void putDouble(String key, double value) {
+            current.putDouble(key, value);
+        }
+
+        @Override
+        public void putString(String key, String value) {
+            current.putString(key, value);
+        }
+
+        @Override
+        public void putBoolean(String key, boolean value) {
+            current.putBoolean(key, value);
+        }
+
+        @Override
+        public void putDoubles(String key, Map<String, Double> values) {
+            WritableMap nested = Arguments.createMap();
+            for (Map.Entry<String, Double> entry : values.entrySet()) {
+                nested.putDouble(entry.getKey(), entry.getValue());
+            }
+            current.putMap(key, nested);
+        }
+
+        @Override
+        public void putDay(long startTime) {
+            current.putString("day", dayFormatter.format(new Date(startTime)));
+        }
+
+        @Override
+        public void endSample() {
+            rows.pushMap(current);
+            current = null;
+            size++;
+        }
+
+        @Override
+        public void addGap(long startTime, long endTime) {
+            if (firstGap == null) {
+                firstGap = new long[] {startTime, endTime};
+            }
+            gapCount++;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Object build() {
+            if (gapCount > 0) {
+                throw new IllegalStateException("Failed to read " + gapCount + " part(s) of the range, the first "
+                        + firstGap[0] + "-" + firstGap[1] + ". Read with format: 'columnar' to get the rest with its gaps");
+            }
+            return rows;
+        }
+    }
+
+    private static class Columnar extends SampleWriter {
+
+        private final String type;
+        private final Map<String, Column> columns = new LinkedHashMap<>();
+        private final List<long[]> gaps = new ArrayList<>();
+        private int size = 0;
+
+        Columnar(String type) {
+            this.type = type;
+        }
+
+        @Override
+        public void beginSample() {
+        }
+
+        @Override
+        public void putDouble(String key, double value) {
+            column(key).setDouble(size, value);
+        }
+
+        @Override
+        public void putString(String key, String value) {
+            column(key).setObject(size, value);
+        }
+
+        @Override
+        public void putBoolean(String key, boolean value) {
+            column(key).setObject(size, value);
+        }
+
+        @Override
+        public void putDoubles(String key, Map<String, Double> values) {
+            for (Map.Entry<String, Double> entry : values.entrySet()) {
+                putDouble(key + "." + entry.getKey(), entry.getValue());
+            }
+        }
+
+        @Override
+        public void putDay(long startTime) {
+        }
+
+        @Override
+        public void endSample() {
+            size++;
+        }
+
+        @Override
+        public void addGap(long startTime, long endTime) {
+            gaps.add(new long[] {startTime, endTime});
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Object build() {
+            WritableMap result = Arguments.createMap();
+            WritableArray fields = Arguments.createArray();
+            WritableMap data = Arguments.createMap();
+
+            for (Map.Entry<String, Column> entry : columns.entrySet()) {
+                fields.pushString(entry.getKey());
+                data.putArray(entry.getKey(), entry.getValue().toWritableArray(size));
+            }
+
+            result.putString("format", FORMAT_COLUMNAR);
+            result.putString("type", type);
+            result.putInt("length", size);
+            result.putArray("fields", fields);
+            result.putMap("columns", data);
+            if (!gaps.isEmpty()) {
+                WritableArray gapArray = Arguments.createArray();
+                for (long[] gap : gaps) {
+                    WritableArray range = Arguments.createArray();
+                    range.pushDouble(gap[0]);
+                    range.pushDouble(gap[1]);
+                    gapArray.pushArray(range);
+                }
+                result.putArray("gaps", gapArray);
+            }
+            return result;
+        }
+
+        private Column column(String key) {
+            Column column = columns.get(key);
+            if (column == null) {
+                column = new Column();
+                columns.put(key, column);
+            }
+            return column;
+        }
+    }
+
+    /**
+     * A column holds either numbers (NaN marks a missing cell) or strings and booleans
+     * (null marks a missing cell).
+     */
+    private static class Column {
+
+        private double[] numbers = new double[0];
+        private List<Object> objects;
+
+        void setDouble(int row, double value) {
+            if (row >= numbers.length) {
+                int from = numbers.length;
+                numbers = Arrays.copyOf(numbers, Math.max(row + 1, numbers.length * 2));
+                Arrays.fill(numbers, from, numbers.length, Double.NaN);
+            }
+            numbers[row] = value;
+        }
+
+        void setObject(int row, Object value) {
+            if (objects == null) {
+                objects = new ArrayList<>();
+            }
+            while (objects.size() <= row) {
+                objects.add(null);
+            }
+            objects.set(row, value);
+        }
+
+        WritableArray toWritableArray(int length) {
+            WritableArray array = Arguments.createArray();
+            for (int i = 0; i < length; i++) {
+                if (objects != null) {
+                    Object value = i < objects.size() ? objects.get(i) : null;
+                    if (value instanceof String) {
+                        array.pushString((String) value);
+                    } else if (value instanceof Boolean) {
+                        array.pushBoolean((Boolean) value);
+                    } else {
+                        array.pushNull();
+                    }
+                } else if (i < numbers.length && !Double.isNaN(numbers[i])) {
+                    array.pushDouble(numbers[i]);
+                } else {
+                    array.pushNull();
+                }
+            }
+            return array;
+        }
+    }
+}
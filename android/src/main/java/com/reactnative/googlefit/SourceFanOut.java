@@ -0,0 +1,239 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs one read per data source on the read executor, at most maxConcurrent at a time and
+ * each with its own deadline, counted from the moment it starts running. A source that misses
+ * its deadline is reported as timed out but keeps its slot until its read returns. Outcomes are
+ * collected on a single assembly thread and handed over in the order of the tasks, including
+ * the sources that failed or timed out.
+ */
+public class SourceFanOut {
+
+    private static final String TAG = "RNGoogleFit";
+
+    public static final String STATUS_OK = "ok";
+    public static final String STATUS_ERROR = "error";
+    public static final String STATUS_TIMEOUT = "timeout";
+
+    private final FitExecutor executor;
+    private final int maxConcurrent;
+    private final long deadlineMillis;
+    private final HandlerThread thread;
+    private final Handler handler;
+    // fan-outs that haven't completed yet, only touched on the assembly thread
+    private final List<Run> active = new ArrayList<>();
+    private boolean shutDown = false;
+
+    public static class Outcome {
+        public final String status;
+        public final Object value;
+        public final String error;
+
+        Outcome(String status, Object value, String error) {
+            this.status = status;
+            this.value = value;
+            this.error = error;
+        }
+
+        public boolean isOk() {
+            return STATUS_OK.equals(status);
+        }
+    }
+
+    public interface Completion {
+        /**
+         * Runs on the assembly thread once every task finished, failed or timed out, or on the
+         * calling thread when the fan-out was shut down before.
+         * @param outcomes List of outcomes in the order of the tasks
+         */
+        void onComplete(List<Outcome> outcomes);
+    }
+
+    public SourceFanOut(FitExecutor executor, int maxConcurrent, long deadlineMillis) {
+        this.executor = executor;
+        this.maxConcurrent = maxConcurrent;
+        this.deadlineMillis = deadlineMillis;
+        this.thread = new HandlerThread("RNGoogleFit-fanout", Process.THREAD_PRIORITY_BACKGROUND);
+        this.thread.start();
+        this.handler = new Handler(thread.getLooper());
+    }
+
+    public void run(final String label, final List<Callable<Object>> tasks, final Completion completion) {
+        synchronized (this) {
+            if (!shutDown) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        new Run(label, tasks, completion).start();
+                    }
+                });
+                return;
+            }
+        }
+        List<Outcome> outcomes = new ArrayList<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            outcomes.add(new Outcome(STATUS_ERROR, null, "Google Fit was shut down"));
+        }
+        completion.onComplete(outcomes);
+    }
+
+    /**
+     * Stops the assembly thread. Fan-outs still in progress complete right away, with the sources
+     * that didn't finish reported as failed.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (shutDown) {
+                return;
+            }
+            shutDown = true;
+            // after the fan-outs that were already handed over
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Run run : new ArrayList<>(active)) {
+                        run.cancel();
+                    }
+                    thread.quit();
+                }
+            });
+        }
+    }
+
+    /**
+     * State of one fan-out. Only touched on the assembly thread.
+     */
+    private class Run {
+
+        private final String label;
+        private final List<Callable<Object>> tasks;
+        private final Completion completion;
+        private final Outcome[] outcomes;
+        private final Runnable[] deadlines;
+        private int next = 0;
+        private int running = 0;
+        private int remaining;
+
+        Run(String label, List<Callable<Object>> tasks, Completion completion) {
+            this.label = label;
+            this.tasks = tasks;
+            this.completion = completion;
+            this.outcomes = new Outcome[tasks.size()];
+            this.deadlines = new Runnable[tasks.size()];
+            this.remaining = tasks.size();
+        }
+
+        void start() {
+            if (remaining == 0) {
+                completion.onComplete(new ArrayList<Outcome>());
+                return;
+            }
+            active.add(this);
+            launchMore();
+        }
+
+        /**
+         * Completes the fan-out now, the sources that didn't finish fail.
+         */
+        void cancel() {
+            for (int i = 0; i < outcomes.length; i++) {
+                record(i, new Outcome(STATUS_ERROR, null, "Google Fit was shut down"));
+            }
+        }
+
+        private void launchMore() {
+            while (running < maxConcurrent && next < tasks.size()) {
+                launch(next++);
+            }
+        }
+
+        private void launch(final int index) {
+            running++;
+            final Callable<Object> task = tasks.get(index);
+
+            deadlines[index] = new Runnable() {
+                @Override
+                public void run() {
+                    Log.w(TAG, label + " - source " + index + " missed its deadline");
+                    record(index, new Outcome(STATUS_TIMEOUT, null, "Timed out after " + deadlineMillis + "ms"));
+                }
+            };
+
+            boolean accepted = executor.execute(label + " #" + index, new Runnable() {
+                @Override
+                public void run() {
+                    // the deadline counts from here, not from the time the task was queued
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (outcomes[index] == null) {
+                                handler.postDelayed(deadlines[index], deadlineMillis);
+                            }
+                        }
+                    });
+                    Outcome outcome;
+                    try {
+                        outcome = new Outcome(STATUS_OK, task.call(), null);
+                    } catch (Exception e) {
+                        Log.w(TAG, label + " - source " + index + " failed", e);
+                        outcome = new Outcome(STATUS_ERROR, null, e.getMessage());
+                    }
+                    final Outcome result = outcome;
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            finished(index, result);
+                        }
+                    });
+                }
+            });
+            if (!accepted) {
+                finished(index, new Outcome(STATUS_ERROR, null, "Too many pending Google Fit requests"));
+            }
+        }
+
+        /**
+         * The task returned, so its read thread is free again. A task that missed its deadline keeps
+         * its slot until then, so slow sources can't take more than maxConcurrent read threads.
+         */
+        private void finished(int index, Outcome outcome) {
+            running--;
+            record(index, outcome);
+            launchMore();
+        }
+
+        private void record(int index, Outcome outcome) {
+            if (outcomes[index] != null) {
+                // finished after its deadline
+                return;
+            }
+            outcomes[index] = outcome;
+            handler.removeCallbacks(deadlines[index]);
+            remaining--;
+
+            if (remaining == 0) {
+                active.remove(this);
+                completion.onComplete(Arrays.asList(outcomes));
+            }
+        }
+    }
+}
@@ -12,13 +12,18 @@
 package com.reactnative.googlefit;
 
 import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.ResultCallback;
 import com.google.android.gms.common.api.Status;
 import com.google.android.gms.fitness.Fitness;
@@ -26,14 +31,24 @@ import com.google.android.gms.fitness.data.DataPoint;
 import com.google.android.gms.fitness.data.DataSource;
 import com.google.android.gms.fitness.data.DataType;
 import com.google.android.gms.fitness.data.Field;
-import com.google.android.gms.fitness.data.Value;
-import com.google.android.gms.fitness.request.DataSourcesRequest;
 import com.google.android.gms.fitness.request.OnDataPointListener;
 import com.google.android.gms.fitness.request.SensorRequest;
-import com.google.android.gms.fitness.result.DataSourcesResult;
 
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Live steps from the SensorsApi, sent to JS as StepChangedEvent.
+ *
+ * Observers are counted: the first one registers the sensor listeners, later ones share them,
+ * and the listeners are removed when the last one leaves. Points only update the latest
+ * cumulative count of their source, and an event goes out at most once per interval with the
+ * highest count, so a burst of points from several sources costs one bridge event.
+ */
 public class StepCounter implements OnDataPointListener {
 
     private ReactContext mReactContext;
@@ -42,6 +57,29 @@ public class StepCounter implements OnDataPointListener {
 
     private static final String TAG = "StepCounter";
 
+    private static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private int observers;
+    private long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+    // stream identifiers of the sources with a listener
+    private final Set<String> registered = new HashSet<>();
+    // latest cumulative count by stream identifier
+    private final Map<String, Integer> latest = new LinkedHashMap<>();
+    private boolean changed;
+    private boolean emitScheduled;
+    private long lastEmitAt;
+
+    private final Runnable emitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (StepCounter.this) {
+                emitScheduled = false;
+            }
+            emit();
+        }
+    };
 
     public StepCounter(ReactContext reactContext, GoogleFitManager googleFitManager, Activity activity) {
         this.mReactContext = reactContext;
@@ -49,33 +87,81 @@ public class StepCounter implements OnDataPointListener {
         this.activity = activity;
     }
 
-    public void findFitnessDataSources() {
+    /**
+     * Adds an observer, registering the sensor listeners for the first one.
+     * @param options ReadableMap { interval } in milliseconds, may be null. With several observers the
+     *                shortest interval wins.
+     */
+    public void observe(@Nullable ReadableMap options) {
+        long interval = options != null && options.hasKey("interval") && !options.isNull("interval")
+                ? (long) options.getDouble("interval")
+                : DEFAULT_INTERVAL_MILLIS;
+        synchronized (this) {
+            intervalMillis = observers == 0 ? interval : Math.min(intervalMillis, interval);
+            observers++;
+        }
+        // sources found since the last call are registered too, known ones are skipped
+        findFitnessDataSources();
+    }
 
-        DataSourcesRequest dataSourceRequest = new DataSourcesRequest.Builder()
-                .setDataTypes(DataType.TYPE_STEP_COUNT_DELTA, DataType.TYPE_STEP_COUNT_CUMULATIVE)
-                .setDataSourceTypes( DataSource.TYPE_DERIVED)
-                .build();
+    /**
+     * Removes an observer, and the sensor listeners with the last one.
+     */
+    public void unobserve() {
+        synchronized (this) {
+            if (observers == 0) {
+                return;
+            }
+            if (--observers > 0) {
+                return;
+            }
+        }
+        stop();
+    }
+
+    /**
+     * Removes the sensor listeners whatever the number of observers.
+     */
+    public void stop() {
+        synchronized (this) {
+            observers = 0;
+            registered.clear();
+            latest.clear();
+            changed = false;
+            emitScheduled = false;
+        }
+        handler.removeCallbacks(emitRunnable);
+        GoogleApiClient client = googleFitManager.getGoogleApiClient();
+        if (client != null && client.isConnected()) {
+            Fitness.SensorsApi.remove(client, this);
+        }
+    }
 
-        ResultCallback<DataSourcesResult> dataSourcesResultCallback = new ResultCallback<DataSourcesResult>() {
+    public void findFitnessDataSources() {
+        googleFitManager.getDataSourceCatalogue().getStepSources(new DataSourceCatalogue.Listener() {
             @Override
-            public void onResult(DataSourcesResult dataSourcesResult) {
-                for (DataSource dataSource : dataSourcesResult.getDataSources()) {
+            public void onSources(List<DataSource> sources) {
+                for (DataSource dataSource : sources) {
                     DataType type = dataSource.getDataType();
 
-                    if (DataType.TYPE_STEP_COUNT_DELTA.equals(type)
-                            || DataType.TYPE_STEP_COUNT_CUMULATIVE.equals(type)) {
+                    if (dataSource.getType() == DataSource.TYPE_DERIVED
+                            && (DataType.TYPE_STEP_COUNT_DELTA.equals(type)
+                            || DataType.TYPE_STEP_COUNT_CUMULATIVE.equals(type))) {
+                        synchronized (StepCounter.this) {
+                            // the last observer may have left while the sources were looked up
+                            if (observers == 0 || !registered.add(dataSource.getStreamIdentifier())) {
+                                continue;
+                            }
+                        }
                         Log.i(TAG, "Register Fitness Listener: " + type);
                         registerFitnessDataListener(dataSource, type);//DataType.TYPE_STEP_COUNT_DELTA);
                     }
                 }
             }
-        };
-
-        Fitness.SensorsApi.findDataSources(googleFitManager.getGoogleApiClient(), dataSourceRequest)
-                .setResultCallback(dataSourcesResultCallback);
+        });
     }
 
-    private void registerFitnessDataListener(DataSource dataSource, DataType dataType) {
+    private void registerFitnessDataListener(final DataSource dataSource, DataType dataType) {
 
         SensorRequest request = new SensorRequest.Builder()
                 .setDataSource(dataSource)
@@ -89,6 +175,11 @@ public class StepCounter implements OnDataPointListener {
                     public void onResult(Status status) {
                         if (status.isSuccess()) {
                             Log.i(TAG, "SensorApi successfully added");
+                        } else {
+                            synchronized (StepCounter.this) {
+                                // the next observe call tries again
+                                registered.remove(dataSource.getStreamIdentifier());
+                            }
                         }
                     }
                 });
@@ -97,29 +188,49 @@ public class StepCounter implements OnDataPointListener {
 
     @Override
     public void onDataPoint(DataPoint dataPoint) {
-        DataType type = dataPoint.getDataType();
-        Log.i(TAG, "Detected DataPoint type: " + type);
-
-        for (final Field field : type.getFields()) {
-            final Value value = dataPoint.getValue(field);
-            Log.i(TAG, "Detected DataPoint field: " + field.getName());
-            Log.i(TAG, "Detected DataPoint value: " + value);
-
-
-       /*     activity.runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    Toast.makeText(mReactContext.getApplicationContext(), "Field: " + field.getName() + " Value: " + value, Toast.LENGTH_SHORT).show();
-                }
-            });*/
+        if (!DataType.TYPE_STEP_COUNT_CUMULATIVE.equals(dataPoint.getDataType())) {
+            return;
+        }
+        int steps = dataPoint.getValue(Field.FIELD_STEPS).asInt();
+        String source = dataPoint.getDataSource().getStreamIdentifier();
 
-            if(type.equals(DataType.TYPE_STEP_COUNT_CUMULATIVE)) {
-                WritableMap map = Arguments.createMap();
-                map.putDouble("steps", value.asInt());
-                sendEvent(this.mReactContext, "StepChangedEvent", map);
+        long delay;
+        synchronized (this) {
+            if (observers == 0) {
+                return;
+            }
+            Integer previous = latest.put(source, steps);
+            if (previous != null && previous == steps) {
+                return;
             }
+            changed = true;
+            if (emitScheduled) {
+                return;
+            }
+            emitScheduled = true;
+            delay = Math.max(0, lastEmitAt + intervalMillis - SystemClock.elapsedRealtime());
+        }
+        handler.postDelayed(emitRunnable, delay);
+    }
 
+    private void emit() {
+        WritableMap map = Arguments.createMap();
+        synchronized (this) {
+            if (!changed || latest.isEmpty()) {
+                return;
+            }
+            changed = false;
+            lastEmitAt = SystemClock.elapsedRealtime();
+            int steps = 0;
+            WritableMap sources = Arguments.createMap();
+            for (Map.Entry<String, Integer> entry : latest.entrySet()) {
+                steps = Math.max(steps, entry.getValue());
+                sources.putDouble(entry.getKey(), entry.getValue());
+            }
+            map.putDouble("steps", steps);
+            map.putMap("sources", sources);
         }
+        sendEvent(this.mReactContext, "StepChangedEvent", map);
     }
 
 
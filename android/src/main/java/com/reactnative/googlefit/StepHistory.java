@@ -16,8 +16,9 @@ import android.support.annotation.Nullable;
 import android.util.Log;
 
 import com.facebook.react.bridge.Arguments;
-import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
@@ -41,11 +42,11 @@ import java.text.Format;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 import java.text.SimpleDateFormat;
 import java.util.TimeZone;
 import java.util.ArrayList;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class StepHistory {
 
@@ -59,7 +60,7 @@ public class StepHistory {
         this.googleFitManager = googleFitManager;
     }
 
-    public void aggregateDataByDate(long startTime, long endTime, final Callback successCallback) {
+    public void aggregateDataByDate(long startTime, long endTime, final ReadableMap options, final Promise promise) {
 
         DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
         dateFormat.setTimeZone(TimeZone.getDefault());
@@ -67,163 +68,295 @@ public class StepHistory {
         Log.i(TAG, "Range Start: " + dateFormat.format(startTime));
         Log.i(TAG, "Range End: " + dateFormat.format(endTime));
 
-        final WritableArray results = Arguments.createArray();
-
-        List<DataSource> dataSources = new ArrayList<>();
-
-        // GoogleFit Apps
-        dataSources.add(
-            new DataSource.Builder()
-                .setAppPackageName("com.google.android.gms")
-                .setDataType(DataType.TYPE_STEP_COUNT_DELTA)
-                .setType(DataSource.TYPE_DERIVED)
-                .setStreamName("estimated_steps")
-                .build()
-        );
-
-        // GoogleFit Apps
-        dataSources.add(
-            new DataSource.Builder()
-                .setAppPackageName("com.google.android.gms")
-                .setDataType(DataType.TYPE_STEP_COUNT_DELTA)
-                .setType(DataSource.TYPE_DERIVED)
-                .setStreamName("merge_step_deltas")
-                .build()
-        );
-
-        // Mi Fit
-        dataSources.add(
-            new DataSource.Builder()
-                .setAppPackageName("com.xiaomi.hm.health")
-                .setDataType(DataType.TYPE_STEP_COUNT_DELTA)
-                .setType(DataSource.TYPE_RAW)
-                .setStreamName("")
-                .build()
-        );
-
-        /*
-        DataSourcesRequest sourceRequest = new DataSourcesRequest.Builder()
-                .setDataTypes(DataType.TYPE_STEP_COUNT_DELTA,
-                    DataType.TYPE_STEP_COUNT_CUMULATIVE,
-                    DataType.AGGREGATE_STEP_COUNT_DELTA
-                    )
-                //.setDataSourceTypes(DataSource.TYPE_DERIVED)
-                .build();
-        DataSourcesResult dataSourcesResult =
-           Fitness.SensorsApi.findDataSources(googleFitManager.getGoogleApiClient(), sourceRequest).await(1, TimeUnit.MINUTES);
+        final long rangeStart = startTime;
+        final long rangeEnd = endTime;
 
-        dataSources.addAll( dataSourcesResult.getDataSources() );
-        */
+        // the catalogue is filled in the background after connecting, this only waits on the first call
+        googleFitManager.getDataSourceCatalogue().getStepSources(new DataSourceCatalogue.Listener() {
+            @Override
+            public void onSources(List<DataSource> discovered) {
+                readSources(DataSourceCatalogue.getStepDeltaSources(discovered), rangeStart, rangeEnd, options, promise);
+            }
+        });
+    }
 
-        final AtomicInteger dataSourcesToLoad = new AtomicInteger(dataSources.size());
+    private void readSources(List<DataSource> dataSources, final long rangeStart, final long rangeEnd,
+                             final ReadableMap options, final Promise promise) {
+        final List<WritableMap> sources = new ArrayList<>();
+        List<Callable<Object>> reads = new ArrayList<>();
 
         for (DataSource dataSource : dataSources) {
-            final WritableMap source = Arguments.createMap();
+            final WritableMap source = describeSource(dataSource);
 
-            DataType type = dataSource.getDataType();
-            Device device = dataSource.getDevice();
+            //if (!DataType.TYPE_STEP_COUNT_DELTA.equals(type)) continue;
+            final DataSource stepSource = dataSource;
+            final String streamId = dataSource.getStreamIdentifier();
 
-            Log.i(TAG, "DataSource:");
+            sources.add(source);
+            reads.add(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return googleFitManager.getAggregateStore().read("steps", CalendarRollup.getSourceKey(streamId, options),
+                            rangeStart, rangeEnd, options, "steps",
+                            new DailyAggregateStore.Fetcher() {
+                                @Override
+                                public void fetch(long fetchStart, long fetchEnd, SampleWriter writer) {
+                                    readSource(stepSource, fetchStart, fetchEnd, options, writer);
+                                }
+                            });
+                }
+            });
+        }
 
-            Log.i(TAG, "  + StreamID  : " + dataSource.getStreamIdentifier());
-            source.putString("id", dataSource.getStreamIdentifier());
+        googleFitManager.getSourceFanOut().run("getDailyStepCountSamples", reads, new SourceFanOut.Completion() {
+            @Override
+            public void onComplete(List<SourceFanOut.Outcome> outcomes) {
+                WritableArray results = Arguments.createArray();
+                String error = null;
+                int failed = 0;
 
-            if (dataSource.getAppPackageName() != null) {
-                source.putString("appPackage", dataSource.getAppPackageName());
-            } else {
-                source.putNull("appPackage");
+                for (int i = 0; i < outcomes.size(); i++) {
+                    SourceFanOut.Outcome outcome = outcomes.get(i);
+                    WritableMap map = Arguments.createMap();
+                    map.putMap("source", sources.get(i));
+                    Object steps = outcome.isOk() ? outcome.value : SampleWriter.create(options, "steps").build();
+                    if (steps instanceof WritableArray) {
+                        map.putArray("steps", (WritableArray) steps);
+                    } else {
+                        map.putMap("steps", (WritableMap) steps);
+                    }
+                    map.putString("status", outcome.status);
+                    if (!outcome.isOk()) {
+                        map.putString("error", outcome.error);
+                        error = outcome.error;
+                        failed++;
+                    }
+                    results.pushMap(map);
+                }
+
+                if (failed > 0 && failed == outcomes.size()) {
+                    promise.reject("READ_ERROR", "No step source could be read: " + error);
+                } else {
+                    promise.resolve(results);
+                }
             }
+        });
+    }
 
-            if (dataSource.getName() != null) {
-                source.putString("name", dataSource.getName());
-            } else {
-                source.putNull("name");
+    /**
+     * Reads every step source like aggregateDataByDate, but resolves a single series of daily
+     * totals with the StepMerger policy from the options. The per-source totals are only sent
+     * back with { includeSources: true }.
+     */
+    public void aggregateMergedByDate(final long startTime, final long endTime, final ReadableMap options, final Promise promise) {
+        final StepMerger merger;
+        try {
+            merger = new StepMerger(StepMerger.getPolicy(options));
+            if (CalendarRollup.HOUR.equals(CalendarRollup.getPeriod(options))) {
+                throw new IllegalArgumentException("Merged steps are daily, they can't be rolled up by hour");
             }
+        } catch (RuntimeException e) {
+            promise.reject("INVALID_OPTIONS", e.getMessage(), e);
+            return;
+        }
 
-            if (dataSource.getStreamName() != null) {
-                source.putString("stream", dataSource.getStreamName());
-            } else {
-                source.putNull("stream");
+        googleFitManager.getDataSourceCatalogue().getStepSources(new DataSourceCatalogue.Listener() {
+            @Override
+            public void onSources(List<DataSource> discovered) {
+                mergeSources(DataSourceCatalogue.getStepDeltaSources(discovered), merger, startTime, endTime, options, promise);
             }
+        });
+    }
 
-            Log.i(TAG, "  + Type      : " + type);
-            source.putString("type", type.getName());
+    private void mergeSources(final List<DataSource> dataSources, final StepMerger merger, final long rangeStart,
+                              final long rangeEnd, final ReadableMap options, final Promise promise) {
+        List<Callable<Object>> reads = new ArrayList<>();
 
-            Log.i(TAG, "  + Device    : " + device);
-            if (device != null) {
-                source.putString("deviceManufacturer", device.getManufacturer());
-                source.putString("deviceModel", device.getModel());
-                switch(device.getType()) {
-                    case Device.TYPE_CHEST_STRAP:
-                        source.putString("deviceType", "chestStrap"); break;
+        for (final DataSource dataSource : dataSources) {
+            reads.add(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    StepMerger.DailyTotals totals = new StepMerger.DailyTotals(dataSource);
+                    googleFitManager.getAggregateStore().read("steps", CalendarRollup.getSourceKey(dataSource.getStreamIdentifier(), options),
+                            rangeStart, rangeEnd, options, totals,
+                            new DailyAggregateStore.Fetcher() {
+                                @Override
+                                public void fetch(long fetchStart, long fetchEnd, SampleWriter writer) {
+                                    readSource(dataSource, fetchStart, fetchEnd, options, writer);
+                                }
+                            });
+                    return totals;
                 }
-            } else {
-                source.putNull("deviceManufacturer");
-                source.putNull("deviceModel");
-                source.putNull("deviceType");
-            }
+            });
+        }
 
-            //if (!DataType.TYPE_STEP_COUNT_DELTA.equals(type)) continue;
-            DataReadRequest readRequest;
-
-            List<DataType> aggregateDataTypeList = DataType.getAggregatesForInput(type);
-            if (aggregateDataTypeList.size() > 0) {
-                DataType aggregateType = aggregateDataTypeList.get(0);
-                Log.i(TAG, "  + Aggregate : " + aggregateType);
-
-                //Check how many steps were walked and recorded in specified days
-                readRequest = new DataReadRequest.Builder()
-                        .aggregate(dataSource
-                            //DataType.TYPE_STEP_COUNT_DELTA
-                            ,
-                            //DataType.AGGREGATE_STEP_COUNT_DELTA
-                            aggregateType)
-                        .bucketByTime(12, TimeUnit.HOURS) // Half-day resolution
-                        .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
-                        .build();
-            } else {
-                readRequest = new DataReadRequest.Builder()
-                        .read(dataSource)
-                        //.bucketByTime(12, TimeUnit.HOURS) // Half-day resolution
-                        .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
-                        .build();
-            }
+        googleFitManager.getSourceFanOut().run("getMergedDailyStepCount", reads, new SourceFanOut.Completion() {
+            @Override
+            public void onComplete(List<SourceFanOut.Outcome> outcomes) {
+                List<StepMerger.DailyTotals> totals = new ArrayList<>();
+                WritableArray sources = Arguments.createArray();
+                boolean includeSources = StepMerger.includeSources(options);
+                String error = null;
+                int failed = 0;
+
+                for (int i = 0; i < outcomes.size(); i++) {
+                    SourceFanOut.Outcome outcome = outcomes.get(i);
+                    StepMerger.DailyTotals sourceTotals = outcome.isOk() ? (StepMerger.DailyTotals) outcome.value : null;
+                    totals.add(sourceTotals);
+                    if (!outcome.isOk()) {
+                        error = outcome.error;
+                        failed++;
+                    }
 
-            PendingResult<DataReadResult> readPendingResult = Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest);
-            readPendingResult.setResultCallback(new ResultCallback<DataReadResult>() {
-                @Override
-                public void onResult(@NonNull DataReadResult dataReadResult) {
-                    WritableArray steps = Arguments.createArray();
-
-                    //Used for aggregated data
-                    if (dataReadResult.getBuckets().size() > 0) {
-                        Log.i(TAG, "  +++ Number of buckets: " + dataReadResult.getBuckets().size());
-                        for (Bucket bucket : dataReadResult.getBuckets()) {
-                            List<DataSet> dataSets = bucket.getDataSets();
-                            for (DataSet dataSet : dataSets) {
-                                processDataSet(dataSet, steps);
-                            }
+                    if (includeSources) {
+                        WritableMap map = Arguments.createMap();
+                        map.putMap("source", describeSource(dataSources.get(i)));
+                        Object steps = sourceTotals != null ? sourceTotals.build(options) : SampleWriter.create(options, "steps").build();
+                        if (steps instanceof WritableArray) {
+                            map.putArray("steps", (WritableArray) steps);
+                        } else {
+                            map.putMap("steps", (WritableMap) steps);
+                        }
+                        map.putString("status", outcome.status);
+                        if (!outcome.isOk()) {
+                            map.putString("error", outcome.error);
                         }
+                        sources.pushMap(map);
                     }
+                }
 
-                    //Used for non-aggregated data
-                    if (dataReadResult.getDataSets().size() > 0) {
-                        Log.i(TAG, "  +++ Number of returned DataSets: " + dataReadResult.getDataSets().size());
-                        for (DataSet dataSet : dataReadResult.getDataSets()) {
-                            processDataSet(dataSet, steps);
+                if (failed > 0 && failed == outcomes.size()) {
+                    promise.reject("READ_ERROR", "No step source could be read: " + error);
+                    return;
+                }
+
+                SampleWriter steps = CalendarRollup.wrap(options, SampleWriter.create(options, "steps"), rangeStart, rangeEnd);
+                merger.merge(totals, steps);
+
+                WritableMap result = Arguments.createMap();
+                result.putString("policy", merger.getPolicyName());
+                // partial when a source failed, the merged days may then be missing its steps
+                result.putString("status", failed > 0 ? "partial" : SourceFanOut.STATUS_OK);
+                steps.writeTo(result, "steps");
+                if (includeSources) {
+                    result.putArray("sources", sources);
+                }
+                promise.resolve(result);
+            }
+        });
+    }
+
+    private WritableMap describeSource(DataSource dataSource) {
+        WritableMap source = Arguments.createMap();
+
+        DataType type = dataSource.getDataType();
+        Device device = dataSource.getDevice();
+
+        Log.i(TAG, "DataSource:");
+
+        Log.i(TAG, "  + StreamID  : " + dataSource.getStreamIdentifier());
+        source.putString("id", dataSource.getStreamIdentifier());
+
+        if (dataSource.getAppPackageName() != null) {
+            source.putString("appPackage", dataSource.getAppPackageName());
+        } else {
+            source.putNull("appPackage");
+        }
+
+        if (dataSource.getName() != null) {
+            source.putString("name", dataSource.getName());
+        } else {
+            source.putNull("name");
+        }
+
+        if (dataSource.getStreamName() != null) {
+            source.putString("stream", dataSource.getStreamName());
+        } else {
+            source.putNull("stream");
+        }
+
+        Log.i(TAG, "  + Type      : " + type);
+        source.putString("type", type.getName());
+
+        Log.i(TAG, "  + Device    : " + device);
+        if (device != null) {
+            source.putString("deviceManufacturer", device.getManufacturer());
+            source.putString("deviceModel", device.getModel());
+            switch(device.getType()) {
+                case Device.TYPE_CHEST_STRAP:
+                    source.putString("deviceType", "chestStrap"); break;
+            }
+        } else {
+            source.putNull("deviceManufacturer");
+            source.putNull("deviceModel");
+            source.putNull("deviceType");
+        }
+        return source;
+    }
+
+    /**
+     * Reads the steps of one data source, in 12 hour buckets when the type can be aggregated
+     * (hourly when the read options ask for a calendar rollup).
+     */
+    private void readSource(final DataSource dataSource, long startTime, long endTime, ReadableMap options, SampleWriter steps) {
+        final long bucketMillis = CalendarRollup.getSourceBucketMillis(options, TimeUnit.HOURS.toMillis(12));
+        List<DataType> aggregateDataTypeList = DataType.getAggregatesForInput(dataSource.getDataType());
+        final DataType aggregateType = aggregateDataTypeList.size() > 0 ? aggregateDataTypeList.get(0) : null;
+        if (aggregateType != null) {
+            Log.i(TAG, "  + Aggregate : " + aggregateType);
+        }
+
+        List<RangeSharder.Shard> shards = googleFitManager.getRangeSharder().read(startTime, endTime,
+                aggregateType != null ? RangeSharder.shardSizeForBuckets(bucketMillis) : 0,
+                new RangeSharder.RequestFactory() {
+                    @Override
+                    public DataReadRequest build(long shardStart, long shardEnd) {
+                        if (aggregateType != null) {
+                            //Check how many steps were walked and recorded in specified days
+                            return new DataReadRequest.Builder()
+                                    .aggregate(dataSource, aggregateType)
+                                    .bucketByTime((int) bucketMillis, TimeUnit.MILLISECONDS) // Half-day resolution by default
+                                    .setTimeRange(shardStart, shardEnd, TimeUnit.MILLISECONDS)
+                                    .build();
                         }
+                        return new DataReadRequest.Builder()
+                                .read(dataSource)
+                                .setTimeRange(shardStart, shardEnd, TimeUnit.MILLISECONDS)
+                                .build();
                     }
 
-                    WritableMap map = Arguments.createMap();
-                    map.putMap("source", source);
-                    map.putArray("steps", steps);
-                    results.pushMap(map);
+                    @Override
+                    public String key(long shardStart, long shardEnd) {
+                        return DataReadCoalescer.key(dataSource.getStreamIdentifier(), aggregateType,
+                                aggregateType != null ? bucketMillis + "ms" : "none", shardStart, shardEnd);
+                    }
+                });
 
-                    if (dataSourcesToLoad.decrementAndGet() <= 0) {
-                        successCallback.invoke(results);
+        for (RangeSharder.Shard shard : shards) {
+            if (shard.result == null) {
+                steps.addGap(shard.startTime, shard.endTime);
+                continue;
+            }
+            DataReadResult dataReadResult = shard.result;
+
+            //Used for aggregated data
+            if (dataReadResult.getBuckets().size() > 0) {
+                Log.i(TAG, "  +++ Number of buckets: " + dataReadResult.getBuckets().size());
+                for (Bucket bucket : dataReadResult.getBuckets()) {
+                    List<DataSet> dataSets = bucket.getDataSets();
+                    for (DataSet dataSet : dataSets) {
+                        processDataSet(dataSet, steps);
                     }
                 }
-            }, 1, TimeUnit.MINUTES);
+            }
+
+            //Used for non-aggregated data
+            if (dataReadResult.getDataSets().size() > 0) {
+                Log.i(TAG, "  +++ Number of returned DataSets: " + dataReadResult.getDataSets().size());
+                for (DataSet dataSet : dataReadResult.getDataSets()) {
+                    processDataSet(dataSet, steps);
+                }
+            }
         }
     }
 
@@ -240,9 +373,11 @@ public class StepHistory {
                 .setTimeRange(startTime, endTime, TimeUnit.MILLISECONDS)
                 .build();
 
-        DataReadResult dataReadResult = Fitness.HistoryApi.readData(googleFitManager.getGoogleApiClient(), readRequest).await(1, TimeUnit.MINUTES);
+        DataReadResult dataReadResult = googleFitManager.getReadCoalescer().await(
+                DataReadCoalescer.key(DataType.TYPE_STEP_COUNT_DELTA.getName(), DataType.AGGREGATE_STEP_COUNT_DELTA, "1d", startTime, endTime),
+                readRequest);
 
-        WritableArray map = Arguments.createArray();
+        SampleWriter map = SampleWriter.create(null, "steps");
 
         //Used for aggregated data
         if (dataReadResult.getBuckets().size() > 0) {
@@ -262,17 +397,15 @@ public class StepHistory {
             }
         }
 
-        sendEvent(this.mReactContext, "StepHistoryChangedEvent", map);
+        sendEvent(this.mReactContext, "StepHistoryChangedEvent", (WritableArray) map.build());
     }
 
-    private void processDataSet(DataSet dataSet, WritableArray map) {
+    void processDataSet(DataSet dataSet, SampleWriter map) {
         //Log.i(TAG, "Data returned for Data type: " + dataSet.getDataType().getName());
 
         DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
         dateFormat.setTimeZone(TimeZone.getDefault());
 
-        WritableMap stepMap = Arguments.createMap();
-
         for (DataPoint dp : dataSet.getDataPoints()) {
             Log.i(TAG, "\tData point:");
             Log.i(TAG, "\t\tType : " + dp.getDataType().getName());
@@ -283,10 +416,11 @@ public class StepHistory {
                 Log.i(TAG, "\t\tField: " + field.getName() +
                         " Value: " + dp.getValue(field));
 
-                stepMap.putDouble("startDate", dp.getStartTime(TimeUnit.MILLISECONDS));
-                stepMap.putDouble("endDate", dp.getEndTime(TimeUnit.MILLISECONDS));
-                stepMap.putDouble("steps", dp.getValue(field).asInt());
-                map.pushMap(stepMap);
+                map.beginSample();
+                map.putDouble("startDate", dp.getStartTime(TimeUnit.MILLISECONDS));
+                map.putDouble("endDate", dp.getEndTime(TimeUnit.MILLISECONDS));
+                map.putDouble("steps", dp.getValue(field).asInt());
+                map.endSample();
             }
         }
     }
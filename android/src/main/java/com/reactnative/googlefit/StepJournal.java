@@ -0,0 +1,333 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * On-device journal of the hardware step counter, so today's steps can be computed without
+ * asking Google Fit.
+ *
+ * The journal is a memory-mapped file of (timestamp, cumulative count, boot id, session, checksum)
+ * records, appended to as StepSensor reports counts. A record is written before the header count that
+ * makes it visible. Within one minute of one session the last record is overwritten instead of
+ * appended; a process killed while doing so leaves a record whose checksum doesn't match, and it is
+ * dropped when the journal is opened. The counts are cumulative, so the next reading makes up for it. A session starts every time StepSensor starts, and its
+ * first record is only a baseline, so steps taken while the sensor was stopped are not counted.
+ * The step counter starts again from 0 after a reboot, so within a session a new boot id, or a
+ * count lower than the previous one, re-anchors the baseline.
+ * Records older than KEEP_DAYS are dropped once a day.
+ */
+public class StepJournal {
+
+    private static final String TAG = "RNGoogleFit";
+
+    private static final String FILE_NAME = "RNGoogleFit-steps.journal";
+    private static final int MAGIC = 0x52474653;
+    private static final int VERSION = 3;
+
+    // magic, version, record count, reserved, last compaction
+    private static final int HEADER_SIZE = 24;
+    private static final int COUNT_OFFSET = 8;
+    private static final int COMPACTED_AT_OFFSET = 16;
+    // timestamp, cumulative count, boot id, session, checksum
+    private static final int RECORD_SIZE = 40;
+
+    private static final int INITIAL_CAPACITY = 4096;
+    private static final int KEEP_DAYS = 7;
+    private static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // estimated boot times closer than this are taken as the same boot
+    private static final long BOOT_TOLERANCE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final Context context;
+    private RandomAccessFile file;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int count;
+    // the next record starts a session
+    private boolean sessionStarting = true;
+
+    public StepJournal(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Starts a session, called when StepSensor starts. The next reading is a baseline for the ones after it.
+     */
+    public synchronized void startSession() {
+        sessionStarting = true;
+    }
+
+    /**
+     * Records a reading of the step counter.
+     * @param timestamp long Wall-clock time of the reading in milliseconds
+     * @param steps long Count of the step counter, steps since the last reboot
+     */
+    public synchronized void append(long timestamp, long steps) {
+        try {
+            open();
+            compactIfNeeded(timestamp);
+            long bootId = currentBootId();
+            long session = count > 0 ? getSession(count - 1) : 0;
+            if (sessionStarting) {
+                sessionStarting = false;
+                session++;
+            } else if (count > 0) {
+                int last = count - 1;
+                if (getBootId(last) == bootId
+                        && getTimestamp(last) / MINUTE_MILLIS == timestamp / MINUTE_MILLIS
+                        && steps >= getSteps(last)) {
+                    putRecord(last, timestamp, steps, bootId, session);
+                    return;
+                }
+            }
+            if (count == capacity) {
+                map(capacity * 2);
+            }
+            putRecord(count, timestamp, steps, bootId, session);
+            count++;
+            buffer.putInt(COUNT_OFFSET, count);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write the step journal", e);
+        }
+    }
+
+    /**
+     * Writes the journal out and closes the file, it is opened again on the next use.
+     */
+    public synchronized void close() {
+        if (buffer == null) {
+            return;
+        }
+        buffer.force();
+        try {
+            file.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close the step journal", e);
+        }
+        buffer = null;
+        file = null;
+    }
+
+    /**
+     * Totals of a local day from the journal. Only steps counted while StepSensor was running are known.
+     * @param time long Any time of the day in milliseconds
+     * @return { date, steps, hourly: [24 totals, from local midnight], lastUpdated }, lastUpdated is null
+     * when the journal has nothing for the day
+     */
+    public synchronized WritableMap getDailyTotals(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        long dayStart = calendar.getTimeInMillis();
+        // hour starts follow the local clock, so days with a DST change are right
+        long[] hourStarts = new long[25];
+        for (int hour = 0; hour < 24; hour++) {
+            calendar.setTimeInMillis(dayStart);
+            calendar.set(Calendar.HOUR_OF_DAY, hour);
+            hourStarts[hour] = calendar.getTimeInMillis();
+        }
+        calendar.setTimeInMillis(dayStart);
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        hourStarts[24] = calendar.getTimeInMillis();
+        long dayEnd = hourStarts[24];
+
+        double[] hourly = new double[24];
+        double total = 0;
+        long lastUpdated = -1;
+        try {
+            open();
+            int hour = 0;
+            for (int i = 1; i < count; i++) {
+                long timestamp = getTimestamp(i);
+                if (timestamp < dayStart) {
+                    continue;
+                }
+                if (timestamp >= dayEnd) {
+                    break;
+                }
+                if (getSession(i) != getSession(i - 1)) {
+                    // first reading of a session, the steps before it weren't watched
+                    continue;
+                }
+                long steps = getSteps(i);
+                long previous = getSteps(i - 1);
+                // after a reboot the counter restarts from 0, so the count itself is the delta
+                long delta = getBootId(i) != getBootId(i - 1) || steps < previous ? steps : steps - previous;
+                while (hour < 23 && timestamp >= hourStarts[hour + 1]) {
+                    hour++;
+                }
+                hourly[hour] += delta;
+                total += delta;
+                lastUpdated = timestamp;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the step journal", e);
+        }
+
+        WritableMap result = Arguments.createMap();
+        result.putDouble("date", dayStart);
+        result.putDouble("steps", total);
+        WritableArray hours = Arguments.createArray();
+        for (double steps : hourly) {
+            hours.pushDouble(steps);
+        }
+        result.putArray("hourly", hours);
+        if (lastUpdated >= 0) {
+            result.putDouble("lastUpdated", lastUpdated);
+        } else {
+            result.putNull("lastUpdated");
+        }
+        return result;
+    }
+
+    /**
+     * Drops records older than KEEP_DAYS, at most once per local day. The record just before the
+     * kept ones stays as their baseline.
+     */
+    private void compactIfNeeded(long now) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(now);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        long today = calendar.getTimeInMillis();
+        if (buffer.getLong(COMPACTED_AT_OFFSET) >= today) {
+            return;
+        }
+        calendar.add(Calendar.DAY_OF_MONTH, -KEEP_DAYS);
+        long keepFrom = calendar.getTimeInMillis();
+
+        int first = 0;
+        while (first < count && getTimestamp(first) < keepFrom) {
+            first++;
+        }
+        first = Math.max(0, first - 1);
+        if (first > 0) {
+            int kept = count - first;
+            // the count shrinks first, so a crash while moving can only lose records, not mix them
+            buffer.putInt(COUNT_OFFSET, 0);
+            for (int i = 0; i < kept; i++) {
+                putRecord(i, getTimestamp(first + i), getSteps(first + i), getBootId(first + i), getSession(first + i));
+            }
+            count = kept;
+            buffer.putInt(COUNT_OFFSET, count);
+            Log.i(TAG, "Compacted the step journal, dropped " + first + " records");
+        }
+        buffer.putLong(COMPACTED_AT_OFFSET, today);
+        buffer.force();
+    }
+
+    /**
+     * Identifies the current boot. The boot count is used where the platform has it, otherwise
+     * the estimated boot time, kept stable across small clock adjustments.
+     */
+    private long currentBootId() {
+        if (Build.VERSION.SDK_INT >= 24) {
+            int bootCount = Settings.Global.getInt(context.getContentResolver(), Settings.Global.BOOT_COUNT, -1);
+            if (bootCount >= 0) {
+                return bootCount;
+            }
+        }
+        long bootTime = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        if (count > 0 && Math.abs(getBootId(count - 1) - bootTime) < BOOT_TOLERANCE_MILLIS) {
+            return getBootId(count - 1);
+        }
+        return bootTime;
+    }
+
+    private void open() throws IOException {
+        if (buffer != null) {
+            return;
+        }
+        file = new RandomAccessFile(new File(context.getFilesDir(), FILE_NAME), "rw");
+        boolean valid = file.length() >= HEADER_SIZE;
+        int records = valid ? (int) ((file.length() - HEADER_SIZE) / RECORD_SIZE) : 0;
+        map(Math.max(INITIAL_CAPACITY, records));
+        if (!valid || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(COUNT_OFFSET, 0);
+            buffer.putLong(COMPACTED_AT_OFFSET, 0);
+        }
+        count = Math.max(0, Math.min(buffer.getInt(COUNT_OFFSET), capacity));
+        // only the last record is ever rewritten, so only it can be torn
+        if (count > 0 && getChecksum(count - 1) != checksum(getTimestamp(count - 1), getSteps(count - 1),
+                getBootId(count - 1), getSession(count - 1))) {
+            Log.w(TAG, "Dropping a torn record of the step journal");
+            count--;
+            buffer.putInt(COUNT_OFFSET, count);
+        }
+    }
+
+    private void map(int records) throws IOException {
+        capacity = records;
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) records * RECORD_SIZE);
+    }
+
+    private void putRecord(int index, long timestamp, long steps, long bootId, long session) {
+        int offset = HEADER_SIZE + index * RECORD_SIZE;
+        buffer.putLong(offset, timestamp);
+        buffer.putLong(offset + 8, steps);
+        buffer.putLong(offset + 16, bootId);
+        buffer.putLong(offset + 24, session);
+        buffer.putLong(offset + 32, checksum(timestamp, steps, bootId, session));
+    }
+
+    private static long checksum(long timestamp, long steps, long bootId, long session) {
+        ByteBuffer bytes = ByteBuffer.allocate(32);
+        bytes.putLong(timestamp).putLong(steps).putLong(bootId).putLong(session);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.array());
+        return crc.getValue();
+    }
+
+    private long getTimestamp(int index) {
+        return buffer.getLong(HEADER_SIZE + index * RECORD_SIZE);
+    }
+
+    private long getSteps(int index) {
+        return buffer.getLong(HEADER_SIZE + index * RECORD_SIZE + 8);
+    }
+
+    private long getBootId(int index) {
+        return buffer.getLong(HEADER_SIZE + index * RECORD_SIZE + 16);
+    }
+
+    private long getSession(int index) {
+        return buffer.getLong(HEADER_SIZE + index * RECORD_SIZE + 24);
+    }
+
+    private long getChecksum(int index) {
+        return buffer.getLong(HEADER_SIZE + index * RECORD_SIZE + 32);
+    }
+}
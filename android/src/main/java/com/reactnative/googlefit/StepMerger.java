@@ -0,0 +1,318 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableType;
+import com.google.android.gms.fitness.data.DataSource;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Merges the step counts of several data sources into one daily series. For every local day
+ * a Policy picks the source whose total is reported, so the same steps recorded by two apps
+ * aren't counted twice.
+ *
+ * The policy comes from the merge read option:
+ * "merge_step_deltas" (default) uses Google Fit's own merged stream,
+ * "max" uses the highest total of the day,
+ * an array of app package names uses the first listed package that has steps that day.
+ * Days the policy has no answer for fall back to the highest total.
+ */
+public class StepMerger {
+
+    public static final String POLICY_MERGE_STEP_DELTAS = "merge_step_deltas";
+    public static final String POLICY_MAX = "max";
+    public static final String POLICY_PRIORITY = "priority";
+
+    public interface Policy {
+        String getName();
+
+        /**
+         * @return Index of the source whose total is used for the day, -1 to fall back to the highest total
+         */
+        int choose(List<DailyTotals> sources, long day);
+    }
+
+    private final Policy policy;
+
+    public StepMerger(Policy policy) {
+        this.policy = policy;
+    }
+
+    public String getPolicyName() {
+        return policy.getName();
+    }
+
+    /**
+     * @param options ReadableMap Read options from JS, may be null
+     */
+    public static Policy getPolicy(ReadableMap options) {
+        if (options == null || !options.hasKey("merge") || options.isNull("merge")) {
+            return new MergeStepDeltasPolicy();
+        }
+        if (options.getType("merge") == ReadableType.Array) {
+            ReadableArray packages = options.getArray("merge");
+            List<String> priority = new ArrayList<>();
+            for (int i = 0; i < packages.size(); i++) {
+                priority.add(packages.getString(i));
+            }
+            return new PriorityPolicy(priority);
+        }
+        String name = options.getString("merge");
+        if (POLICY_MAX.equals(name)) {
+            return new MaxPolicy();
+        }
+        if (POLICY_MERGE_STEP_DELTAS.equals(name)) {
+            return new MergeStepDeltasPolicy();
+        }
+        throw new IllegalArgumentException("Unknown merge policy: " + name);
+    }
+
+    public static boolean includeSources(ReadableMap options) {
+        return options != null
+                && options.hasKey("includeSources")
+                && !options.isNull("includeSources")
+                && options.getBoolean("includeSources");
+    }
+
+    /**
+     * @param sources List of daily totals, null for sources that could not be read
+     * @param out SampleWriter Receives one sample per day: startDate, endDate, date, steps and the id of the source used
+     */
+    public void merge(List<DailyTotals> sources, SampleWriter out) {
+        List<DailyTotals> read = new ArrayList<>();
+        TreeSet<Long> days = new TreeSet<>();
+        for (DailyTotals totals : sources) {
+            if (totals == null) {
+                continue;
+            }
+            read.add(totals);
+            days.addAll(totals.days.keySet());
+        }
+
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+        for (long day : days) {
+            int chosen = policy.choose(read, day);
+            if (chosen < 0) {
+                chosen = maxIndex(read, day);
+            }
+            DailyTotals totals = read.get(chosen);
+
+            out.beginSample();
+            out.putDouble("startDate", day);
+            out.putDouble("endDate", nextDay(day));
+            out.putString("date", dateFormat.format(day));
+            out.putDouble("steps", totals.days.get(day));
+            out.putString("source", totals.source.getStreamIdentifier());
+            out.endSample();
+        }
+
+        for (DailyTotals totals : read) {
+            for (long[] gap : totals.gaps) {
+                out.addGap(gap[0], gap[1]);
+            }
+        }
+    }
+
+    private static int maxIndex(List<DailyTotals> sources, long day) {
+        int best = -1;
+        double max = -1;
+        for (int i = 0; i < sources.size(); i++) {
+            Double steps = sources.get(i).days.get(day);
+            if (steps != null && steps > max) {
+                max = steps;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static long startOfDay(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    private static long nextDay(long dayStart) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(dayStart);
+        calendar.add(Calendar.DAY_OF_MONTH, 1);
+        return startOfDay(calendar.getTimeInMillis());
+    }
+
+    private static class MergeStepDeltasPolicy implements Policy {
+        @Override
+        public String getName() {
+            return POLICY_MERGE_STEP_DELTAS;
+        }
+
+        @Override
+        public int choose(List<DailyTotals> sources, long day) {
+            for (int i = 0; i < sources.size(); i++) {
+                DataSource source = sources.get(i).source;
+                if ("com.google.android.gms".equals(source.getAppPackageName())
+                        && POLICY_MERGE_STEP_DELTAS.equals(source.getStreamName())
+                        && sources.get(i).days.containsKey(day)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private static class MaxPolicy implements Policy {
+        @Override
+        public String getName() {
+            return POLICY_MAX;
+        }
+
+        @Override
+        public int choose(List<DailyTotals> sources, long day) {
+            return maxIndex(sources, day);
+        }
+    }
+
+    private static class PriorityPolicy implements Policy {
+        private final List<String> packages;
+
+        PriorityPolicy(List<String> packages) {
+            this.packages = packages;
+        }
+
+        @Override
+        public String getName() {
+            return POLICY_PRIORITY;
+        }
+
+        @Override
+        public int choose(List<DailyTotals> sources, long day) {
+            for (String appPackage : packages) {
+                // a package can have several streams, take its highest total
+                int best = -1;
+                for (int i = 0; i < sources.size(); i++) {
+                    DailyTotals totals = sources.get(i);
+                    if (appPackage.equals(totals.source.getAppPackageName()) && totals.days.containsKey(day)
+                            && (best < 0 || totals.days.get(day) > sources.get(best).days.get(day))) {
+                        best = i;
+                    }
+                }
+                if (best >= 0) {
+                    return best;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Sums the steps of one source per local day of the sample start, the way buildDailySteps
+     * does on the JS side.
+     */
+    public static class DailyTotals extends SampleWriter {
+
+        final DataSource source;
+        // steps by start of the local day
+        final TreeMap<Long, Double> days = new TreeMap<>();
+        final List<long[]> gaps = new ArrayList<>();
+
+        private long startDate;
+        private double steps;
+
+        public DailyTotals(DataSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public void beginSample() {
+            startDate = 0;
+            steps = 0;
+        }
+
+        @Override
+        public void putDouble(String key, double value) {
+            if ("startDate".equals(key)) {
+                startDate = (long) value;
+            } else if ("steps".equals(key)) {
+                steps = value;
+            }
+        }
+
+        @Override
+        public void putString(String key, String value) {
+        }
+
+        @Override
+        public void putBoolean(String key, boolean value) {
+        }
+
+        @Override
+        public void putDoubles(String key, Map<String, Double> values) {
+        }
+
+        @Override
+        public void putDay(long startTime) {
+        }
+
+        @Override
+        public void endSample() {
+            long day = startOfDay(startDate);
+            Double total = days.get(day);
+            days.put(day, total != null ? total + steps : steps);
+        }
+
+        @Override
+        public void addGap(long startTime, long endTime) {
+            gaps.add(new long[] {startTime, endTime});
+        }
+
+        @Override
+        public int size() {
+            return days.size();
+        }
+
+        @Override
+        public Object build() {
+            return build(null);
+        }
+
+        /**
+         * @return The daily totals of this source alone, in the format of the read options
+         */
+        public Object build(ReadableMap options) {
+            SampleWriter out = SampleWriter.create(options, "steps");
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.US);
+            for (Map.Entry<Long, Double> entry : days.entrySet()) {
+                out.beginSample();
+                out.putDouble("startDate", entry.getKey());
+                out.putDouble("endDate", nextDay(entry.getKey()));
+                out.putString("date", dateFormat.format(entry.getKey()));
+                out.putDouble("steps", entry.getValue());
+                out.endSample();
+            }
+            for (long[] gap : gaps) {
+                out.addGap(gap[0], gap[1]);
+            }
+            return out.build();
+        }
+    }
+}
@@ -12,50 +12,71 @@
 package com.reactnative.googlefit;
 
 
-import android.app.Activity;
 import android.content.pm.PackageManager;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
-import android.widget.Toast;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 
-import java.util.List;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Steps from the hardware step counter, without Google Fit, sent to JS as StepSensorChangedEvent.
+ *
+ * The sensor is registered with a max report latency, so the hardware keeps the events in its
+ * FIFO and the CPU only wakes up to take a whole batch. A batch results in one event with the
+ * latest count, and events are at least interval milliseconds apart. Events are handled on a
+ * background thread.
+ */
 public class StepSensor implements SensorEventListener {
 
-    private Activity activity;
     private ReactContext mReactContext;
+    private StepJournal stepJournal;
     private SensorManager mSensorManager;
     private Sensor mStepCounter;
-    private long lastUpdate = 0;
-    private int delay;
+    private HandlerThread sensorThread;
+    private volatile Handler sensorHandler;
 
-    private static final String TAG = "StepCounter";
+    private long intervalMillis;
+    private long lastEmitAt;
+    // latest count not sent yet, -1 when there is none
+    private float pendingSteps = -1;
+    private long pendingTimestamp;
+    private boolean emitScheduled;
 
-    public StepSensor(ReactContext reactContext, Activity activity) {
-        this.mReactContext = reactContext;
-        this.activity = activity;
+    private static final String TAG = "StepCounter";
 
-        boolean stepCounter = hasStepCounter();
-        Log.i(TAG, "hasStepCounter: " + stepCounter);
+    private static final long DEFAULT_SAMPLING_MILLIS = 1000;
+    private static final long DEFAULT_MAX_REPORT_LATENCY_MILLIS = TimeUnit.MINUTES.toMillis(1);
 
-        if(stepCounter) {
-            mSensorManager = (SensorManager) reactContext.getSystemService(reactContext.SENSOR_SERVICE);
+    private final Runnable emitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            emitScheduled = false;
+            emit();
         }
+    };
+
+    public StepSensor(ReactContext reactContext, StepJournal stepJournal) {
+        this.mReactContext = reactContext;
+        this.stepJournal = stepJournal;
     }
 
     public boolean hasStepCounter() {
 
-        PackageManager pm = activity.getPackageManager();
+        PackageManager pm = mReactContext.getPackageManager();
 
         int currentApiVersion = Build.VERSION.SDK_INT;
         // Check that the device supports the step counter and detector sensors
@@ -65,47 +86,90 @@ public class StepSensor implements SensorEventListener {
 
     }
 
-    public int start(int delay) {
-        List<Sensor> l = mSensorManager.getSensorList(Sensor.TYPE_ALL);
+    /**
+     * Registers the step counter, or registers it again with new options.
+     * @param options ReadableMap { samplingPeriod, maxReportLatency, interval } in milliseconds, may be null.
+     *                maxReportLatency 0 delivers every step as it happens.
+     * @return false when the device has no step counter
+     */
+    public synchronized boolean start(@Nullable ReadableMap options) {
+        if (!hasStepCounter()) {
+            Log.i(TAG, "hasStepCounter: false");
+            return false;
+        }
+        if (mSensorManager == null) {
+            mSensorManager = (SensorManager) mReactContext.getSystemService(ReactContext.SENSOR_SERVICE);
+            mStepCounter = mSensorManager.getDefaultSensor(Sensor.TYPE_STEP_COUNTER);
+        }
+        if (mStepCounter == null) {
+            return false;
+        }
+        stop();
+
+        long samplingMillis = getLong(options, "samplingPeriod", DEFAULT_SAMPLING_MILLIS);
+        long maxLatencyMillis = getLong(options, "maxReportLatency", DEFAULT_MAX_REPORT_LATENCY_MILLIS);
+        intervalMillis = getLong(options, "interval", 0);
+
+        sensorThread = new HandlerThread("RNGoogleFit-steps");
+        sensorThread.start();
+        sensorHandler = new Handler(sensorThread.getLooper());
+        // before registering, so the first reading is already a baseline: steps taken while
+        // the sensor was stopped weren't watched
+        stepJournal.startSession();
+        boolean registered = mSensorManager.registerListener(this, mStepCounter,
+                (int) TimeUnit.MILLISECONDS.toMicros(samplingMillis),
+                (int) TimeUnit.MILLISECONDS.toMicros(maxLatencyMillis),
+                sensorHandler);
+        Log.i(TAG, "Step counter registered: " + registered + ", fifo: " + mStepCounter.getFifoMaxEventCount()
+                + ", max report latency: " + maxLatencyMillis + "ms");
+        if (!registered) {
+            stop();
+        }
+        return registered;
+    }
 
-        this.delay = delay;
-        if ((mStepCounter = mSensorManager.getDefaultSensor(Sensor.TYPE_STEP_COUNTER)) != null) {
-            mSensorManager.registerListener(this, mStepCounter, SensorManager.SENSOR_DELAY_FASTEST);
-            return (1);
+    public synchronized void stop() {
+        if (sensorThread == null) {
+            return;
         }
-        return (0);
+        mSensorManager.unregisterListener(this);
+        sensorHandler.removeCallbacks(emitRunnable);
+        sensorThread.quit();
+        sensorThread = null;
+        sensorHandler = null;
+        emitScheduled = false;
+        pendingSteps = -1;
     }
 
+    /**
+     * Asks the hardware to deliver the events in its FIFO now, for example when the app comes to
+     * the foreground and shouldn't wait for the report latency.
+     */
+    public synchronized void flush() {
+        if (sensorThread != null) {
+            mSensorManager.flush(this);
+        }
+    }
 
+    // Runs on the sensor thread, once per event of a batch
     @Override
     public void onSensorChanged(SensorEvent sensorEvent) {
-        Sensor mySensor = sensorEvent.sensor;
-
-        Log.i(TAG, "onSensorChanged");
-
-
-
-        if (mySensor.getType() == Sensor.TYPE_STEP_COUNTER) {
-            WritableMap map = Arguments.createMap();
-
-            long curTime = System.currentTimeMillis();
-            //i++;
-            if ((curTime - lastUpdate) > delay) {
-                final Object o = sensorEvent.values[0];
-                Log.i("History", "Data point:" + sensorEvent.values[0]);
-
-                map.putDouble("steps", sensorEvent.values[0]);
-                sendEvent(this.mReactContext, "StepSensorChangedEvent", map);
-
-                activity.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        Toast.makeText(mReactContext.getApplicationContext(), "" + o, Toast.LENGTH_SHORT).show();
-                    }
-                });
-                lastUpdate = curTime;
-            }
+        if (sensorEvent.sensor.getType() != Sensor.TYPE_STEP_COUNTER) {
+            return;
+        }
+        pendingSteps = sensorEvent.values[0];
+        pendingTimestamp = toWallClock(sensorEvent.timestamp);
+        stepJournal.append(pendingTimestamp, (long) pendingSteps);
+        if (emitScheduled) {
+            return;
+        }
+        Handler handler = sensorHandler;
+        if (handler == null) {
+            return;
         }
+        emitScheduled = true;
+        // posted, so the rest of the batch is handled before the event goes out
+        handler.postDelayed(emitRunnable, Math.max(0, lastEmitAt + intervalMillis - SystemClock.elapsedRealtime()));
     }
 
     @Override
@@ -113,6 +177,27 @@ public class StepSensor implements SensorEventListener {
 
     }
 
+    private void emit() {
+        if (pendingSteps < 0) {
+            return;
+        }
+        lastEmitAt = SystemClock.elapsedRealtime();
+        WritableMap map = Arguments.createMap();
+        map.putDouble("steps", pendingSteps);
+        map.putDouble("timestamp", pendingTimestamp);
+        pendingSteps = -1;
+        sendEvent(this.mReactContext, "StepSensorChangedEvent", map);
+    }
+
+    /**
+     * @param eventTimestamp long Event timestamp, in nanoseconds since boot
+     * @return The wall-clock time of the event in milliseconds
+     */
+    private static long toWallClock(long eventTimestamp) {
+        return System.currentTimeMillis()
+                - TimeUnit.NANOSECONDS.toMillis(SystemClock.elapsedRealtimeNanos() - eventTimestamp);
+    }
+
     private void sendEvent(ReactContext reactContext,
                            String eventName,
                            @Nullable WritableMap params) {
@@ -121,4 +206,10 @@ public class StepSensor implements SensorEventListener {
                 .emit(eventName, params);
     }
 
+    private static long getLong(ReadableMap options, String key, long defaultValue) {
+        if (options == null || !options.hasKey(key) || options.isNull(key)) {
+            return defaultValue;
+        }
+        return (long) options.getDouble(key);
+    }
 }
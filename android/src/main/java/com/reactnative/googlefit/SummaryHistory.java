@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.google.android.gms.fitness.data.Bucket;
+import com.google.android.gms.fitness.data.DataSet;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.request.DataReadRequest;
+
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads several daily metrics (steps, distance, calories, nutrition) with a single
+ * multi-aggregate DataReadRequest and splits the buckets per metric.
+ *
+ * CalendarRollup sums the buckets into local hours, days, ISO weeks or months. Fit is asked for
+ * day buckets when the range starts at local midnight, the periods are days or longer and no
+ * DST change falls in the range, and for hourly buckets otherwise. Day buckets are always 24 hours
+ * long, so across a DST change each one would take an hour from the next or previous day.
+ */
+public class SummaryHistory {
+
+    private ReactContext mReactContext;
+    private GoogleFitManager googleFitManager;
+
+    private static final String TAG = "SummaryHistory";
+
+    public static final String STEPS = "steps";
+    public static final String DISTANCE = "distance";
+    public static final String CALORIES = "calories";
+    public static final String NUTRITION = "nutrition";
+
+    public SummaryHistory(ReactContext reactContext, GoogleFitManager googleFitManager) {
+        this.mReactContext = reactContext;
+        this.googleFitManager = googleFitManager;
+    }
+
+    public ReadableMap getDailySummary(ReadableArray types, long startTime, long endTime, String bucket, ReadableMap options) {
+        DateFormat dateFormat = DateFormat.getDateInstance();
+        Log.i(TAG, "Range Start: " + dateFormat.format(startTime));
+        Log.i(TAG, "Range End: " + dateFormat.format(endTime));
+
+        List<String> metrics = new ArrayList<>();
+        for (int i = 0; i < types.size(); i++) {
+            String metric = types.getString(i);
+            if (getAggregateType(metric) == null) {
+                throw new IllegalArgumentException("Unknown summary type " + metric);
+            }
+            if (!metrics.contains(metric)) {
+                metrics.add(metric);
+            }
+        }
+
+        WritableMap summary = Arguments.createMap();
+        if (metrics.isEmpty()) {
+            return summary;
+        }
+
+        final List<String> requested = metrics;
+        // an hour of a year is 8760 buckets per metric, a day is 365
+        final long bucketMillis = !CalendarRollup.HOUR.equals(bucket) && isLocalMidnight(startTime)
+                && !CalendarRollup.hasOffsetChange(startTime, endTime)
+                ? TimeUnit.DAYS.toMillis(1)
+                : CalendarRollup.SOURCE_BUCKET_MILLIS;
+
+        // fails on unknown buckets before anything is read
+        List<SampleWriter> results = new ArrayList<>();
+        for (String metric : metrics) {
+            results.add(new CalendarRollup(bucket, SampleWriter.create(options, metric)).setRange(startTime, endTime));
+        }
+
+        // Fit anchors the buckets at the start of the request, so it starts on a local hour
+        long readStart = bucketMillis == CalendarRollup.SOURCE_BUCKET_MILLIS ? CalendarRollup.getHourStart(startTime) : startTime;
+        List<RangeSharder.Shard> shards = googleFitManager.getRangeSharder().read(readStart, endTime,
+                RangeSharder.shardSizeForBuckets(bucketMillis),
+                new RangeSharder.RequestFactory() {
+                    @Override
+                    public DataReadRequest build(long shardStart, long shardEnd) {
+                        DataReadRequest.Builder readRequestBuilder = new DataReadRequest.Builder()
+                                .setTimeRange(shardStart, shardEnd, TimeUnit.MILLISECONDS)
+                                .bucketByTime((int) bucketMillis, TimeUnit.MILLISECONDS);
+                        for (String metric : requested) {
+                            readRequestBuilder.aggregate(getInputType(metric), getAggregateType(metric));
+                        }
+                        return readRequestBuilder.build();
+                    }
+
+                    @Override
+                    public String key(long shardStart, long shardEnd) {
+                        return DataReadCoalescer.key("summary:" + requested.toString(), null, bucketMillis + "ms", shardStart, shardEnd);
+                    }
+                });
+
+        for (RangeSharder.Shard shard : shards) {
+            if (shard.result == null) {
+                for (SampleWriter result : results) {
+                    result.addGap(shard.startTime, shard.endTime);
+                }
+                continue;
+            }
+            Log.i(TAG, "Number of buckets: " + shard.result.getBuckets().size());
+            for (Bucket resultBucket : shard.result.getBuckets()) {
+                for (int i = 0; i < metrics.size(); i++) {
+                    String metric = metrics.get(i);
+                    DataSet dataSet = resultBucket.getDataSet(getAggregateType(metric));
+                    if (dataSet != null) {
+                        processDataSet(metric, dataSet, results.get(i));
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < metrics.size(); i++) {
+            results.get(i).writeTo(summary, metrics.get(i));
+        }
+        return summary;
+    }
+
+    private static boolean isLocalMidnight(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        return calendar.get(Calendar.HOUR_OF_DAY) == 0 && calendar.get(Calendar.MINUTE) == 0
+                && calendar.get(Calendar.SECOND) == 0 && calendar.get(Calendar.MILLISECOND) == 0;
+    }
+
+    private void processDataSet(String metric, DataSet dataSet, SampleWriter map) {
+        switch (metric) {
+            case STEPS:
+                googleFitManager.getStepHistory().processDataSet(dataSet, map);
+                break;
+            case DISTANCE:
+                googleFitManager.getDistanceHistory().processDataSet(dataSet, map);
+                break;
+            case CALORIES:
+                googleFitManager.getCalorieHistory().processDataSet(dataSet, map, null);
+                break;
+            case NUTRITION:
+                googleFitManager.getNutritionHistory().processDataSet(dataSet, map);
+                break;
+        }
+    }
+
+    private static DataType getInputType(String metric) {
+        switch (metric) {
+            case STEPS:
+                return DataType.TYPE_STEP_COUNT_DELTA;
+            case DISTANCE:
+                return DataType.TYPE_DISTANCE_DELTA;
+            case CALORIES:
+                return DataType.TYPE_CALORIES_EXPENDED;
+            case NUTRITION:
+                return DataType.TYPE_NUTRITION;
+            default:
+                return null;
+        }
+    }
+
+    private static DataType getAggregateType(String metric) {
+        switch (metric) {
+            case STEPS:
+                return DataType.AGGREGATE_STEP_COUNT_DELTA;
+            case DISTANCE:
+                return DataType.AGGREGATE_DISTANCE_DELTA;
+            case CALORIES:
+                return DataType.AGGREGATE_CALORIES_EXPENDED;
+            case NUTRITION:
+                return DataType.AGGREGATE_NUTRITION_SUMMARY;
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,611 @@
+/**
+ * Copyright (c) 2017-present, Stanislav Doskalenko - doskalenko.s@gmail.com
+ * All rights reserved.
+ *
+ * This source code is licensed under the MIT-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ *
+ **/
+
+package com.reactnative.googlefit;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.common.api.Status;
+import com.google.android.gms.fitness.Fitness;
+import com.google.android.gms.fitness.data.DataType;
+import com.google.android.gms.fitness.data.HealthDataTypes;
+import com.google.android.gms.fitness.request.DataDeleteRequest;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outbound journal of inserts and deletes, kept in SQLite so queued writes survive a
+ * disconnected client, a failed request or a restart of the app.
+ *
+ * Writes are accepted right away and written to Google Fit in batches while the client is
+ * connected. Redundant writes are dropped before they are sent: a save replaces a queued save
+ * of the same type and time (except for food), a delete drops the queued saves it covers and
+ * absorbs queued deletes of the same type it overlaps. Failed requests are retried with
+ * exponential backoff, up to MAX_ATTEMPTS times.
+ *
+ * Outcomes are reported with the GoogleFitWriteResults event: { results, pending }, where every
+ * result is { id, type, op, status } and status is "done", "failed" (with a message) or
+ * "coalesced" (with the id of the write that replaced it).
+ */
+public class WriteJournal extends SQLiteOpenHelper {
+
+    private static final String TAG = "RNGoogleFit";
+
+    private static final String DATABASE_NAME = "RNGoogleFitWrites.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final String TABLE = "pending_writes";
+
+    public static final String EVENT = "GoogleFitWriteResults";
+
+    static final String INSERT = "insert";
+    static final String DELETE = "delete";
+
+    private static final int BATCH_SIZE = 500;
+    private static final int MAX_ATTEMPTS = 8;
+    private static final long FIRST_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.HOURS.toMillis(1);
+    // writes queued in quick succession go out in one batch
+    private static final long FLUSH_DELAY_MILLIS = 1000;
+    private static final long DELETE_TIMEOUT_SECONDS = 60;
+
+    private final ReactContext reactContext;
+    private final GoogleFitManager googleFitManager;
+    private final Handler handler;
+
+    // rows of the batch being written, coalescing leaves them alone
+    private final Set<Long> inFlight = new HashSet<>();
+    private boolean flushing = false;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private static class Row {
+        final long id;
+        final String op;
+        final String type;
+        final long startTime;
+        final long endTime;
+        final String payload;
+        final int attempts;
+
+        Row(Cursor cursor) {
+            this.id = cursor.getLong(0);
+            this.op = cursor.getString(1);
+            this.type = cursor.getString(2);
+            this.startTime = cursor.getLong(3);
+            this.endTime = cursor.getLong(4);
+            this.payload = cursor.getString(5);
+            this.attempts = cursor.getInt(6);
+        }
+    }
+
+    public WriteJournal(ReactContext reactContext, GoogleFitManager googleFitManager) {
+        super(reactContext.getApplicationContext(), DATABASE_NAME, null, DATABASE_VERSION);
+        this.reactContext = reactContext;
+        this.googleFitManager = googleFitManager;
+        HandlerThread thread = new HandlerThread("RNGoogleFit-writes");
+        thread.start();
+        this.handler = new Handler(thread.getLooper());
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + "id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "op TEXT NOT NULL, "
+                + "type TEXT NOT NULL, "
+                + "start_time INTEGER NOT NULL, "
+                + "end_time INTEGER NOT NULL, "
+                + "payload TEXT, "
+                + "attempts INTEGER NOT NULL DEFAULT 0, "
+                + "next_attempt_at INTEGER NOT NULL DEFAULT 0)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+        onCreate(db);
+    }
+
+    /**
+     * @param type String weight, height, heartRate, bloodPressure or food
+     * @return The data type, null for unknown types
+     */
+    public static DataType getDataType(String type) {
+        switch (type) {
+            case "weight":
+                return DataType.TYPE_WEIGHT;
+            case "height":
+                return DataType.TYPE_HEIGHT;
+            case "heartRate":
+                return DataType.TYPE_HEART_RATE_BPM;
+            case "bloodPressure":
+                return HealthDataTypes.TYPE_BLOOD_PRESSURE;
+            case "food":
+                return DataType.TYPE_NUTRITION;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Queues samples of one type, with date in milliseconds, in the shape the bulk saves take.
+     * @return Ids of the queued writes, in the order of the samples
+     */
+    public synchronized List<Long> enqueueInserts(String type, ReadableArray samples) {
+        if (getDataType(type) == null) {
+            throw new IllegalArgumentException("Unknown write type " + type);
+        }
+        List<Long> ids = new ArrayList<>();
+        WritableArray coalesced = Arguments.createArray();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < samples.size(); i++) {
+                ReadableMap sample = samples.getMap(i);
+                long time = (long) sample.getDouble("date");
+                ContentValues values = new ContentValues();
+                values.put("op", INSERT);
+                values.put("type", type);
+                values.put("start_time", time);
+                values.put("end_time", time);
+                values.put("payload", new JSONObject(sample.toHashMap()).toString());
+                long id = db.insert(TABLE, null, values);
+                ids.add(id);
+
+                // a later save of the same measurement wins, two meals at the same time are both kept
+                if (!"food".equals(type)) {
+                    for (Row row : query(db, "op = ? AND type = ? AND start_time = ? AND id < ?",
+                            INSERT, type, String.valueOf(time), String.valueOf(id))) {
+                        drop(db, row, id, coalesced);
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        report(coalesced);
+        scheduleFlush(FLUSH_DELAY_MILLIS);
+        return ids;
+    }
+
+    /**
+     * Queues the deletion of every sample of the type in the range.
+     * @return Id of the queued delete
+     */
+    public synchronized long enqueueDelete(String type, long startTime, long endTime) {
+        if (getDataType(type) == null) {
+            throw new IllegalArgumentException("Unknown write type " + type);
+        }
+        if (startTime <= 0 || endTime <= startTime) {
+            throw new IllegalArgumentException("The range must start after 0 and end after it starts");
+        }
+        WritableArray coalesced = Arguments.createArray();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        long id;
+        try {
+            // queued deletes the range overlaps or touches are merged into one
+            List<Row> overlapping = query(db, "op = ? AND type = ? AND start_time <= ? AND end_time >= ?",
+                    DELETE, type, String.valueOf(endTime), String.valueOf(startTime));
+            for (Row row : overlapping) {
+                if (!inFlight.contains(row.id)) {
+                    startTime = Math.min(startTime, row.startTime);
+                    endTime = Math.max(endTime, row.endTime);
+                }
+            }
+            ContentValues values = new ContentValues();
+            values.put("op", DELETE);
+            values.put("type", type);
+            values.put("start_time", startTime);
+            values.put("end_time", endTime);
+            id = db.insert(TABLE, null, values);
+
+            for (Row row : overlapping) {
+                drop(db, row, id, coalesced);
+            }
+            // saves queued before the delete would only be deleted again
+            for (Row row : query(db, "op = ? AND type = ? AND start_time >= ? AND start_time <= ? AND id < ?",
+                    INSERT, type, String.valueOf(startTime), String.valueOf(endTime), String.valueOf(id))) {
+                drop(db, row, id, coalesced);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        report(coalesced);
+        scheduleFlush(FLUSH_DELAY_MILLIS);
+        return id;
+    }
+
+    /**
+     * Sends every queued write now, including the ones waiting for their next attempt.
+     */
+    public synchronized void flushNow() {
+        ContentValues values = new ContentValues();
+        values.put("next_attempt_at", 0);
+        getWritableDatabase().update(TABLE, values, null, null);
+        scheduleFlush(0);
+    }
+
+    /**
+     * Runs a task on the journal thread, so bridge calls don't hold up the native modules thread
+     * with SQLite work. Tasks run in order with the flushes.
+     * @return false when the journal was shut down and the task won't run
+     */
+    public boolean post(Runnable task) {
+        return handler.post(task);
+    }
+
+    /**
+     * Picks up queued writes once the client (re)connected.
+     */
+    public void onConnected() {
+        scheduleFlush(0);
+    }
+
+    public synchronized int getPendingCount() {
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT COUNT(*) FROM " + TABLE, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Drops every queued write, for example after the user signed out. They are reported as failed.
+     */
+    public synchronized void clear() {
+        handler.removeCallbacks(flushRunnable);
+        SQLiteDatabase db = getWritableDatabase();
+        WritableArray results = Arguments.createArray();
+        for (Row row : query(db, null)) {
+            if (!inFlight.contains(row.id)) {
+                db.delete(TABLE, "id = ?", new String[] {String.valueOf(row.id)});
+                results.pushMap(result(row, "failed", "Signed out"));
+            }
+        }
+        report(results);
+    }
+
+    /**
+     * Stops the journal thread, queued writes stay on disk for the next session.
+     */
+    public void shutdown() {
+        handler.removeCallbacks(flushRunnable);
+        handler.getLooper().quit();
+    }
+
+    private void scheduleFlush(long delayMillis) {
+        handler.removeCallbacks(flushRunnable);
+        handler.postDelayed(flushRunnable, delayMillis);
+    }
+
+    /**
+     * Runs on the journal thread. Deletes of the batch go first, so saves queued after a
+     * delete aren't deleted by it.
+     *
+     * Writes of a type go out in the order they were queued: a save isn't sent while an older
+     * delete of its time is still queued (waiting for a retry or being written), and a delete
+     * isn't sent while an older save in its range is. Otherwise a retried delete could erase a
+     * newer save, or a retried save could bring back deleted data.
+     */
+    private void flush() {
+        final List<Row> deletes = new ArrayList<>();
+        final Map<String, List<Row>> inserts = new LinkedHashMap<>();
+        synchronized (this) {
+            if (flushing) {
+                return;
+            }
+            if (!googleFitManager.isAuthorized()) {
+                // onConnected starts the flush
+                return;
+            }
+            List<Row> batch = query(getReadableDatabase(), "next_attempt_at <= ? AND NOT EXISTS ("
+                            + "SELECT 1 FROM " + TABLE + " older WHERE older.type = " + TABLE + ".type"
+                            + " AND older.op != " + TABLE + ".op AND older.id < " + TABLE + ".id"
+                            + " AND older.start_time <= " + TABLE + ".end_time"
+                            + " AND older.end_time >= " + TABLE + ".start_time)"
+                            + " ORDER BY id LIMIT " + BATCH_SIZE,
+                    String.valueOf(System.currentTimeMillis()));
+            if (batch.isEmpty()) {
+                scheduleRetry();
+                return;
+            }
+            flushing = true;
+            for (Row row : batch) {
+                inFlight.add(row.id);
+                if (DELETE.equals(row.op)) {
+                    deletes.add(row);
+                } else {
+                    List<Row> rows = inserts.get(row.type);
+                    if (rows == null) {
+                        rows = new ArrayList<>();
+                        inserts.put(row.type, rows);
+                    }
+                    rows.add(row);
+                }
+            }
+        }
+        Log.i(TAG, "Writing " + deletes.size() + " deletes and " + inserts.size() + " insert types");
+
+        final WritableArray results = Arguments.createArray();
+        final Runnable finishBatch = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (WriteJournal.this) {
+                    inFlight.clear();
+                    flushing = false;
+                }
+                report(results);
+                scheduleFlush(0);
+            }
+        };
+        final Runnable startInserts = new Runnable() {
+            @Override
+            public void run() {
+                writeInserts(inserts, results, finishBatch);
+            }
+        };
+        writeDeletes(deletes, results, startInserts);
+    }
+
+    private void writeDeletes(List<Row> deletes, final WritableArray results, final Runnable next) {
+        if (deletes.isEmpty()) {
+            next.run();
+            return;
+        }
+        final int[] remaining = {deletes.size()};
+        for (final Row row : deletes) {
+            final DataType dataType = getDataType(row.type);
+            ResultCallback<Status> callback = new ResultCallback<Status>() {
+                @Override
+                public void onResult(@NonNull final Status status) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (status.isSuccess()) {
+                                googleFitManager.getBatchDeleter().onDeleted(dataType, row.startTime, row.endTime);
+                                complete(row, results);
+                            } else {
+                                retryOrFail(row, status.getStatusMessage(), results);
+                            }
+                            if (--remaining[0] == 0) {
+                                next.run();
+                            }
+                        }
+                    });
+                }
+            };
+            DataDeleteRequest request;
+            try {
+                request = new DataDeleteRequest.Builder()
+                        .setTimeInterval(row.startTime, row.endTime, TimeUnit.MILLISECONDS)
+                        .addDataType(dataType)
+                        .build();
+            } catch (RuntimeException e) {
+                // a row no request can be built for would fail the same way on every retry
+                fail(row, e.getMessage(), results);
+                if (--remaining[0] == 0) {
+                    next.run();
+                }
+                continue;
+            }
+            try {
+                Fitness.HistoryApi.deleteData(googleFitManager.getGoogleApiClient(), request)
+                        .setResultCallback(callback, DELETE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (RuntimeException e) {
+                // the client disconnected since the batch started
+                retryOrFail(row, e.getMessage(), results);
+                if (--remaining[0] == 0) {
+                    next.run();
+                }
+            }
+        }
+    }
+
+    private void writeInserts(Map<String, List<Row>> inserts, final WritableArray results, final Runnable next) {
+        if (inserts.isEmpty()) {
+            next.run();
+            return;
+        }
+        final int[] remaining = {inserts.size()};
+        for (Map.Entry<String, List<Row>> entry : inserts.entrySet()) {
+            final List<Row> rows = new ArrayList<>();
+            WritableArray samples = Arguments.createArray();
+            for (Row row : entry.getValue()) {
+                try {
+                    samples.pushMap(Arguments.makeNativeMap(toMap(new JSONObject(row.payload))));
+                    rows.add(row);
+                } catch (JSONException e) {
+                    fail(row, "Unreadable sample: " + e.getMessage(), results);
+                }
+            }
+            BulkInserter.Completion completion = new BulkInserter.Completion() {
+                @Override
+                public void onComplete(final BulkInserter.Result result) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (int i = 0; i < rows.size(); i++) {
+                                if (result.rejectedSamples.containsKey(i)) {
+                                    fail(rows.get(i), result.rejectedSamples.get(i), results);
+                                } else if (result.failedSamples.containsKey(i)) {
+                                    retryOrFail(rows.get(i), result.failedSamples.get(i), results);
+                                } else {
+                                    complete(rows.get(i), results);
+                                }
+                            }
+                            if (--remaining[0] == 0) {
+                                next.run();
+                            }
+                        }
+                    });
+                }
+            };
+            save(entry.getKey(), samples, completion);
+        }
+    }
+
+    /**
+     * Goes through the history classes, so the caches are updated as for direct saves.
+     */
+    private void save(String type, ReadableArray samples, BulkInserter.Completion completion) {
+        DataType dataType = getDataType(type);
+        if (dataType == DataType.TYPE_WEIGHT || dataType == DataType.TYPE_HEIGHT) {
+            googleFitManager.getBodyHistory().saveAll(dataType, samples, completion);
+        } else if (dataType == DataType.TYPE_NUTRITION) {
+            googleFitManager.getCalorieHistory().saveFoods(samples, completion);
+        } else {
+            googleFitManager.getHeartrateHistory().saveAll(dataType, samples, completion);
+        }
+    }
+
+    private synchronized void complete(Row row, WritableArray results) {
+        getWritableDatabase().delete(TABLE, "id = ?", new String[] {String.valueOf(row.id)});
+        results.pushMap(result(row, "done", null));
+    }
+
+    private synchronized void fail(Row row, String message, WritableArray results) {
+        getWritableDatabase().delete(TABLE, "id = ?", new String[] {String.valueOf(row.id)});
+        results.pushMap(result(row, "failed", message));
+    }
+
+    private synchronized void retryOrFail(Row row, String message, WritableArray results) {
+        int attempts = row.attempts + 1;
+        if (attempts >= MAX_ATTEMPTS) {
+            fail(row, message, results);
+            return;
+        }
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, FIRST_BACKOFF_MILLIS << (attempts - 1));
+        ContentValues values = new ContentValues();
+        values.put("attempts", attempts);
+        values.put("next_attempt_at", System.currentTimeMillis() + backoff);
+        getWritableDatabase().update(TABLE, values, "id = ?", new String[] {String.valueOf(row.id)});
+        Log.w(TAG, "Write " + row.id + " failed, attempt " + attempts + " in " + backoff + "ms: " + message);
+    }
+
+    /**
+     * Wakes up for the earliest write that waits for its next attempt. Writes that are due but
+     * wait behind an older one go out once that one is written.
+     */
+    private synchronized void scheduleRetry() {
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT MIN(next_attempt_at) FROM " + TABLE
+                + " WHERE next_attempt_at > ?", new String[] {String.valueOf(System.currentTimeMillis())});
+        try {
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                long delay = Math.max(0, cursor.getLong(0) - System.currentTimeMillis());
+                handler.removeCallbacks(flushRunnable);
+                handler.postDelayed(flushRunnable, delay);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void drop(SQLiteDatabase db, Row row, long replacedBy, WritableArray results) {
+        if (inFlight.contains(row.id)) {
+            return;
+        }
+        db.delete(TABLE, "id = ?", new String[] {String.valueOf(row.id)});
+        WritableMap map = result(row, "coalesced", null);
+        map.putDouble("into", replacedBy);
+        results.pushMap(map);
+    }
+
+    private static WritableMap result(Row row, String status, String message) {
+        WritableMap map = Arguments.createMap();
+        map.putDouble("id", row.id);
+        map.putString("type", row.type);
+        map.putString("op", row.op);
+        map.putString("status", status);
+        if (message != null) {
+            map.putString("message", message);
+        }
+        return map;
+    }
+
+    private void report(WritableArray results) {
+        if (results.size() == 0) {
+            return;
+        }
+        WritableMap event = Arguments.createMap();
+        event.putArray("results", results);
+        event.putInt("pending", getPendingCount());
+        if (reactContext.hasActiveCatalystInstance()) {
+            reactContext
+                    .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                    .emit(EVENT, event);
+        }
+    }
+
+    private static List<Row> query(SQLiteDatabase db, String selection, String... args) {
+        List<Row> rows = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT id, op, type, start_time, end_time, payload, attempts FROM " + TABLE
+                + (selection != null ? " WHERE " + selection : ""), args);
+        try {
+            while (cursor.moveToNext()) {
+                rows.add(new Row(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    private static Map<String, Object> toMap(JSONObject json) throws JSONException {
+        Map<String, Object> map = new HashMap<>();
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = json.get(key);
+            if (value instanceof JSONObject) {
+                value = toMap((JSONObject) value);
+            } else if (value instanceof JSONArray || value == JSONObject.NULL) {
+                // samples carry no arrays
+                continue;
+            }
+            map.put(key, value);
+        }
+        return map;
+    }
+}
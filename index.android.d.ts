@@ -33,6 +33,15 @@ declare module 'react-native-google-fit' {
 
     buildDailySteps(steps: any): { date: any; value: any }[]
 
+    /**
+     * Get one series of daily step totals, merged natively from every step source.
+     * @param {Object} options getMergedDailyStepCount accepts an options object containing required startDate: ISO8601Timestamp and endDate: ISO8601Timestamp,
+     * optional merge policy and optional includeSources.
+     */
+    getMergedDailyStepCount: (
+      options: MergedStepCountOptions
+    ) => Promise<MergedStepCount>
+
     /**
      * Get the total distance per day over a specified date range.
      * @param {Object} options getDailyDistanceSamples accepts an options object containing required startDate: ISO8601Timestamp and endDate: ISO8601Timestamp.
@@ -63,6 +72,14 @@ declare module 'react-native-google-fit' {
       callback: (isError: boolean, result: any) => void
     ): void
 
+    /**
+     * Get several daily metrics with a single Google Fit request.
+     * @param {Object} options getDailySummary accepts an options object containing required startDate: ISO8601Timestamp and endDate: ISO8601Timestamp,
+     * optional types and optional bucket ('day' by default).
+     */
+    getDailySummary: (options: DailySummaryOptions) => Promise<DailySummary>
+
+    saveFood(options: FoodIntake): Promise<WriteStatus>
     saveFood(options: FoodIntake, callback: (isError: boolean) => void): void
 
     getDailyNutritionSamples(
@@ -102,20 +119,76 @@ declare module 'react-native-google-fit' {
       callback: (isError: boolean, result: any) => void
     ) => void
 
-    saveWeight: (
+    /**
+     * Get the latest known weight or height from the on-device index, null when there is none.
+     */
+    getLatestBodySample: (type: 'weight' | 'height') => Promise<LatestBodySample | null>
+
+    /**
+     * Same as getLatestBodySample, but asks Google Fit for the latest value first.
+     */
+    refreshLatestBodySample: (type: 'weight' | 'height') => Promise<LatestBodySample | null>
+
+    /**
+     * Single writes resolve with the status Google Fit answered with when called without a callback.
+     */
+    saveWeight(options: any): Promise<WriteStatus>
+    saveWeight(
       options: any,
       callback: (isError: boolean, result: any) => void
-    ) => void
+    ): void
 
-    saveHeight: (
+    saveHeight(options: any): Promise<WriteStatus>
+    saveHeight(
       options: any,
       callback: (isError: boolean, result: any) => void
-    ) => void
+    ): void
+
+    /**
+     * Bulk saves, resolved once every sample was written or rejected.
+     */
+    saveWeights: (samples: Array<BodySample>, unit?: 'kg' | 'pound') => Promise<BulkSaveResult>
+
+    saveHeights: (samples: Array<BodySample>) => Promise<BulkSaveResult>
+
+    saveHeartRates: (samples: Array<BodySample>) => Promise<BulkSaveResult>
+
+    saveBloodPressures: (samples: Array<BloodPressureSample>) => Promise<BulkSaveResult>
+
+    saveFoods: (samples: Array<FoodIntake>) => Promise<BulkSaveResult>
+
+    queueSamples: (type: WriteType, samples: Array<any>) => Promise<Array<number>>
+
+    queueDelete: (
+      type: WriteType,
+      range: { startDate: string; endDate: string }
+    ) => Promise<number>
 
-    deleteWeight: (
+    flushWrites: () => Promise<number>
+
+    getPendingWriteCount: () => Promise<number>
+
+    onWriteResults: (callback: (event: WriteResults) => void) => void
+
+    deleteData: (options: DeleteDataOptions) => Promise<Array<DeleteRangeResult>>
+
+    openCursor: (type: CursorType, options: CursorOptions) => Promise<number>
+
+    readNext: (cursorId: number) => Promise<CursorPage>
+
+    closeCursor: (cursorId: number) => void
+
+    deleteWeight(options: any): Promise<WriteStatus>
+    deleteWeight(
       options: any,
       callback: (isError: boolean, result: any) => void
-    ) => void
+    ): void
+
+    deleteHeight(options: any): Promise<WriteStatus>
+    deleteHeight(
+      options: any,
+      callback: (isError: boolean, result: any) => void
+    ): void
 
     isAvailable(callback: (isError: boolean, result: boolean) => void): void
 
@@ -123,7 +196,28 @@ declare module 'react-native-google-fit' {
 
     openFit(): void
 
-    observeSteps: (callback: (isError: boolean, result: any) => void) => void
+    observeSteps: (
+      callback: (result: { steps: number; sources: { [streamId: string]: number } }) => void,
+      options?: { interval?: number }
+    ) => { remove: () => void }
+
+    observeHeartRate: (
+      callback: (batch: HeartRateBatch) => void,
+      options?: HeartRateObserverOptions
+    ) => Promise<boolean>
+
+    stopObservingHeartRate: () => void
+
+    startStepSensor: (
+      callback: (event: { steps: number; timestamp: number }) => void,
+      options?: StepSensorOptions
+    ) => Promise<boolean>
+
+    stopStepSensor: () => void
+
+    flushStepSensor: () => void
+
+    getLocalDailySteps: (date?: Date | string) => Promise<LocalDailySteps>
 
     observeHistory: (callback: (isError: boolean, result: any) => void) => void
 
@@ -147,6 +241,63 @@ declare module 'react-native-google-fit' {
     endDate: string
   }
 
+  export type SummaryType = 'steps' | 'distance' | 'calories' | 'nutrition'
+
+  export interface DailySummaryOptions {
+    startDate: string
+    endDate: string
+    types?: SummaryType[]
+    bucket?: 'hour' | 'day' | 'week' | 'month'
+  }
+
+  export interface DailySummary {
+    steps?: any[]
+    distance?: any[]
+    calories?: any[]
+    nutrition?: any[]
+  }
+
+  export interface LatestBodySample {
+    value: number
+    startDate: string
+    endDate: string
+    day: string
+  }
+
+  export interface MergedStepCountOptions {
+    startDate: string
+    endDate: string
+    /**
+     * 'merge_step_deltas' (default), 'max' or app packages in order of preference
+     */
+    merge?: 'merge_step_deltas' | 'max' | string[]
+    includeSources?: boolean
+    format?: 'rows' | 'columnar'
+    cache?: boolean
+    refreshDays?: number
+    rollup?: 'day' | 'week' | 'month'
+  }
+
+  export interface MergedStepCount {
+    policy: 'merge_step_deltas' | 'max' | 'priority'
+    status: 'ok' | 'partial'
+    steps: Array<{ date: string; value: number; source: string }> | ColumnarResult
+    sources?: Array<{ source: any; steps: any; status: string; error?: string }>
+  }
+
+  /**
+   * Returned instead of an array of samples when a read is called with { format: 'columnar' }.
+   * Every column has `length` entries, missing values are null. Dates are epoch milliseconds.
+   */
+  export interface ColumnarResult {
+    format: 'columnar'
+    type: string
+    length: number
+    fields: string[]
+    columns: { [field: string]: Array<number | string | boolean | null> }
+    gaps?: Array<[number, number]>
+  }
+
   export interface FoodIntake {
     mealType: MealType
     foodName: string
@@ -154,6 +305,105 @@ declare module 'react-native-google-fit' {
     date: string
   }
 
+  export interface BodySample {
+    value: number
+    date: string
+  }
+
+  export interface BloodPressureSample {
+    value: number
+    value2: number
+    date: string
+  }
+
+  export interface WriteStatus {
+    success: boolean
+    statusCode: number
+    statusMessage?: string
+  }
+
+  export type CursorType =
+    | 'heartRate'
+    | 'bloodPressure'
+    | 'weight'
+    | 'height'
+    | 'steps'
+    | 'distance'
+    | 'calories'
+
+  export interface CursorOptions {
+    startDate: string
+    endDate: string
+    pageSize?: number
+    format?: 'rows' | 'columnar'
+  }
+
+  export interface CursorPage {
+    samples: any
+    done: boolean
+  }
+
+  export interface StepSensorOptions {
+    samplingPeriod?: number
+    maxReportLatency?: number
+    interval?: number
+  }
+
+  export interface LocalDailySteps {
+    date: string
+    steps: number
+    hourly: Array<number>
+    lastUpdated: string | null
+  }
+
+  export interface HeartRateObserverOptions {
+    samplingRate?: number
+    flushInterval?: number
+    maxBatchSize?: number
+    bufferSize?: number
+    format?: 'rows' | 'columnar'
+  }
+
+  export interface HeartRateBatch {
+    samples: any
+    dropped: number
+  }
+
+  export interface DeleteDataOptions {
+    types: Array<WriteType>
+    ranges: Array<{ startDate: string; endDate: string }>
+  }
+
+  export interface DeleteRangeResult extends WriteStatus {
+    startDate: string
+    endDate: string
+    deletedStartDate: string
+    deletedEndDate: string
+    merged: boolean
+  }
+
+  export interface BulkSaveResult {
+    inserted: number
+    failed: number
+    errors: Array<string>
+  }
+
+  export type WriteType = 'weight' | 'height' | 'heartRate' | 'bloodPressure' | 'food'
+
+  export interface WriteResult {
+    id: number
+    type: WriteType
+    op: 'insert' | 'delete'
+    status: 'done' | 'failed' | 'coalesced'
+    message?: string
+    into?: number
+  }
+
+  export interface WriteResults {
+    results: Array<WriteResult>
+    pending: number
+  }
+
   export interface AuthorizeOptions {
     scopes: Array<Scopes>
   }
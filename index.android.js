@@ -2,7 +2,16 @@
 import { DeviceEventEmitter, NativeModules } from 'react-native';
 
 import PossibleScopes from './src/scopes';
-import { buildDailySteps, isNil, KgToLbs, lbsAndOzToK, prepareDailyResponse, prepareResponse } from './src/utils';
+import {
+  buildDailySteps,
+  isColumnar,
+  isNil,
+  KgToLbs,
+  lbsAndOzToK,
+  prepareDailyResponse,
+  prepareResponse,
+  readOptions,
+} from './src/utils';
 
 const googleFit = NativeModules.RNGoogleFit
 
@@ -93,11 +102,12 @@ class RNGoogleFit {
     googleFit.getWeeklySteps(Date.parse(startDate), Date.now())
   }
 
-  _retrieveDailyStepCountSamples = (startDate, endDate, callback) => {
+  _retrieveDailyStepCountSamples = (startDate, endDate, options, callback) => {
     googleFit.getDailyStepCountSamples(
       startDate,
       endDate,
-      msg => callback(msg, false),
+      readOptions(options)
+    ).then(
       res => {
         if (res.length > 0) {
           callback(
@@ -107,14 +117,26 @@ class RNGoogleFit {
               obj.source =
                 dev.source.appPackage +
                 (dev.source.stream ? ':' + dev.source.stream : '')
-              obj.steps = buildDailySteps(dev.steps)
+              obj.steps = isColumnar(dev.steps)
+                ? dev.steps
+                : !isNil(options.rollup)
+                  ? dev.steps.map(period => ({
+                      date: period.period,
+                      value: period.steps,
+                    }))
+                  : buildDailySteps(dev.steps)
+              obj.status = dev.status
+              if (dev.error) {
+                obj.error = dev.error
+              }
               return obj
             }, this)
           )
         } else {
           callback('There is no any steps data for this period', false)
         }
-      }
+      },
+      error => callback(error.message, false)
     )
   }
 
@@ -136,6 +158,7 @@ class RNGoogleFit {
         this._retrieveDailyStepCountSamples(
           startDate,
           endDate,
+          options,
           (error, result) => {
             if (!error) {
               resolve(result)
@@ -146,7 +169,41 @@ class RNGoogleFit {
         )
       })
     }
-    this._retrieveDailyStepCountSamples(startDate, endDate, callback)
+    this._retrieveDailyStepCountSamples(startDate, endDate, options, callback)
+  }
+
+  /**
+   * Get one series of daily step totals, merged natively from every step source.
+   * @param {Object} options getMergedDailyStepCount accepts an options object containing required startDate: ISO8601Timestamp and endDate: ISO8601Timestamp,
+   * optional merge ('merge_step_deltas' by default, 'max' or an array of app packages in order of preference)
+   * and optional includeSources to also get the daily totals of every source.
+   */
+  getMergedDailyStepCount = options => {
+    const startDate = !isNil(options.startDate)
+      ? Date.parse(options.startDate)
+      : new Date().setHours(0, 0, 0, 0)
+    const endDate = !isNil(options.endDate)
+      ? Date.parse(options.endDate)
+      : new Date().valueOf()
+    const nativeOptions = readOptions(options)
+    if (!isNil(options.merge)) {
+      nativeOptions.merge = options.merge
+    }
+    if (options.includeSources) {
+      nativeOptions.includeSources = true
+    }
+    return googleFit
+      .getMergedDailyStepCount(startDate, endDate, nativeOptions)
+      .then(res => {
+        if (!isColumnar(res.steps)) {
+          res.steps = res.steps.map(day => ({
+            date: !isNil(day.period) ? day.period : day.date,
+            value: day.steps,
+            source: day.source,
+          }))
+        }
+        return res
+      })
   }
 
   /**
@@ -165,16 +222,16 @@ class RNGoogleFit {
     googleFit.getDailyDistanceSamples(
       startDate,
       endDate,
-      msg => {
-        callback(msg, false)
-      },
+      readOptions(options)
+    ).then(
       res => {
         if (res.length > 0) {
           callback(false, prepareResponse(res, 'distance'))
         } else {
           callback('There is no any distance data for this period', false)
         }
-      }
+      },
+      error => callback(error.message, false)
     )
   }
 
@@ -182,16 +239,16 @@ class RNGoogleFit {
     googleFit.getActivitySamples(
       options.startDate,
       options.endDate,
-      error => {
-        callback(error, false)
-      },
+      readOptions(options)
+    ).then(
       res => {
         if (res.length > 0) {
           callback(false, res)
         } else {
           callback('There is no any distance data for this period', false)
         }
-      }
+      },
+      error => callback(error.message, false)
     )
   }
 
@@ -211,16 +268,16 @@ class RNGoogleFit {
       startDate,
       endDate,
       basalCalculation,
-      msg => {
-        callback(msg, false)
-      },
+      readOptions(options)
+    ).then(
       res => {
         if (res.length > 0) {
           callback(false, prepareResponse(res, 'calorie'))
         } else {
           callback('There is no any calorie data for this period', false)
         }
-      }
+      },
+      error => callback(error.message, false)
     )
   }
 
@@ -230,30 +287,57 @@ class RNGoogleFit {
     googleFit.getDailyNutritionSamples(
       startDate,
       endDate,
-      msg => {
-        callback(msg, false)
-      },
+      readOptions(options)
+    ).then(
       res => {
         if (res.length > 0) {
           callback(false, prepareDailyResponse(res))
         } else {
           callback('There is no any nutrition data for this period', false)
         }
-      }
+      },
+      error => callback(error.message, false)
     )
   }
 
+  /**
+   * Get several daily metrics with a single Google Fit request.
+   * @param {Object} options getDailySummary accepts an options object containing required startDate: ISO8601Timestamp and endDate: ISO8601Timestamp,
+   * optional types - any of 'steps', 'distance', 'calories', 'nutrition' (all by default)
+   * and optional bucket - 'hour', 'day', 'week' (ISO, Monday to Sunday) or 'month' ('day' by default).
+   * Buckets follow the local calendar, each sample carries a period label such as '2019-W26'.
+   * @return {Promise} Resolves to an object with one array of samples per requested type.
+   */
+  getDailySummary = async options => {
+    const types = options.types || ['steps', 'distance', 'calories', 'nutrition']
+    const startDate = Date.parse(options.startDate)
+    const endDate = Date.parse(options.endDate)
+    const res = await googleFit.getDailySummary(
+      types,
+      startDate,
+      endDate,
+      options.bucket || 'day',
+      readOptions(options)
+    )
+    const summary = {}
+    if (res.steps) {
+      summary.steps = prepareResponse(res.steps, 'steps')
+    }
+    if (res.distance) {
+      summary.distance = prepareResponse(res.distance, 'distance')
+    }
+    if (res.calories) {
+      summary.calories = prepareResponse(res.calories, 'calorie')
+    }
+    if (res.nutrition) {
+      summary.nutrition = prepareDailyResponse(res.nutrition)
+    }
+    return summary
+  }
+
   saveFood(options, callback) {
     options.date = Date.parse(options.date)
-    googleFit.saveFood(
-      options,
-      msg => {
-        callback(msg, false)
-      },
-      res => {
-        callback(false, res)
-      }
-    )
+    return this._settleWrite(googleFit.saveFood(options), callback)
   }
 
   /**
@@ -270,14 +354,16 @@ class RNGoogleFit {
     const endDate = !isNil(options.endDate)
       ? Date.parse(options.endDate)
       : new Date().valueOf()
-    googleFit.getWeightSamples(
-      startDate,
-      endDate,
-      msg => {
-        callback(msg, false)
-      },
+    googleFit.getWeightSamples(startDate, endDate, readOptions(options)).then(
       res => {
-        if (res.length > 0) {
+        if (isColumnar(res)) {
+          if (options.unit === 'pound' && res.columns.value) {
+            res.columns.value = res.columns.value.map(
+              value => (isNil(value) ? value : KgToLbs(value))
+            )
+          }
+          callback(false, res)
+        } else if (res.length > 0) {
           res = res.map(el => {
             if (el.value) {
               if (options.unit === 'pound') {
@@ -292,40 +378,49 @@ class RNGoogleFit {
         } else {
           callback('There is no any weight data for this period', false)
         }
-      }
+      },
+      error => callback(error.message, false)
     )
   }
 
   getHeightSamples(options, callback) {
     const startDate = Date.parse(options.startDate)
     const endDate = Date.parse(options.endDate)
-    googleFit.getHeightSamples(
-      startDate,
-      endDate,
-      msg => {
-        callback(msg, false)
-      },
+    googleFit.getHeightSamples(startDate, endDate, readOptions(options)).then(
       res => {
         if (res.length > 0) {
           callback(false, prepareResponse(res, 'value'))
         } else {
           callback('There is no any height data for this period', false)
         }
-      }
+      },
+      error => callback(error.message, false)
     )
   }
 
+  /**
+   * Get the latest known weight or height without searching the history.
+   * The value is kept on the device, updated by saveWeight/saveHeight and refreshed in the background.
+   * @param {String} type 'weight' or 'height'
+   * @return {Promise} Resolves to { value, startDate, endDate, day } or null when there is none.
+   */
+  getLatestBodySample = async type => {
+    const res = await googleFit.getLatestBodySample(type)
+    return isNil(res) ? null : prepareResponse([res], 'value')[0]
+  }
+
+  /**
+   * Same as getLatestBodySample, but asks Google Fit for the latest value first.
+   * @param {String} type 'weight' or 'height'
+   */
+  refreshLatestBodySample = async type => {
+    const res = await googleFit.refreshLatestBodySample(type)
+    return isNil(res) ? null : prepareResponse([res], 'value')[0]
+  }
+
   saveHeight(options, callback) {
     options.date = Date.parse(options.date)
-    googleFit.saveHeight(
-      options,
-      msg => {
-        callback(msg, false)
-      },
-      res => {
-        callback(false, res)
-      }
-    )
+    return this._settleWrite(googleFit.saveHeight(options), callback)
   }
 
   saveWeight(options, callback) {
@@ -333,44 +428,161 @@ class RNGoogleFit {
       options.value = lbsAndOzToK({ pounds: options.value, ounces: 0 }) //convert pounds and ounces to kg
     }
     options.date = Date.parse(options.date)
-    googleFit.saveWeight(
-      options,
-      msg => {
-        callback(msg, false)
-      },
-      res => {
-        callback(false, res)
-      }
+    return this._settleWrite(googleFit.saveWeight(options), callback)
+  }
+
+  /**
+   * Bulk versions of saveWeight/saveHeight/saveFood, and of heart rate and blood pressure.
+   * Samples are sent in one bridge call and inserted in as few Google Fit requests as possible.
+   * @param {Array} samples Same objects as the single save methods take, with date as ISO8601Timestamp.
+   *                        Blood pressure samples take value (systolic) and value2 (diastolic).
+   * @return {Promise} Resolves to { inserted, failed, errors } with the number of samples
+   *                   written and rejected, and the first error messages.
+   */
+  saveWeights = (samples, unit) =>
+    googleFit.saveWeights(
+      this._parseSampleDates(samples).map(sample =>
+        unit === 'pound'
+          ? { ...sample, value: lbsAndOzToK({ pounds: sample.value, ounces: 0 }) }
+          : sample
+      )
+    )
+
+  saveHeights = samples => googleFit.saveHeights(this._parseSampleDates(samples))
+
+  saveHeartRates = samples =>
+    googleFit.saveHeartRates(this._parseSampleDates(samples))
+
+  saveBloodPressures = samples =>
+    googleFit.saveBloodPressures(this._parseSampleDates(samples))
+
+  saveFoods = samples => googleFit.saveFoods(this._parseSampleDates(samples))
+
+  /**
+   * Queues samples to be written in the background. Queued writes are kept on the device until
+   * Google Fit accepted them, and retried when the client is disconnected or a request fails.
+   * @param {String} type 'weight', 'height', 'heartRate', 'bloodPressure' or 'food'
+   * @param {Array} samples Same samples as the bulk saves take, weights in kg.
+   * @return {Promise} Resolves to the ids of the queued writes, reported by onWriteResults.
+   */
+  queueSamples = (type, samples) =>
+    googleFit.queueSamples(type, this._parseSampleDates(samples))
+
+  /**
+   * Queues the deletion of every sample of the type between startDate and endDate.
+   * Queued saves inside the range are dropped instead of written and deleted again.
+   * @return {Promise} Resolves to the id of the queued delete.
+   */
+  queueDelete = (type, { startDate, endDate }) =>
+    googleFit.queueDelete(type, Date.parse(startDate), Date.parse(endDate))
+
+  /**
+   * Writes queued samples and deletes now, without waiting for retries.
+   * @return {Promise} Resolves to the number of queued writes.
+   */
+  flushWrites = () => googleFit.flushWrites()
+
+  getPendingWriteCount = () => googleFit.getPendingWriteCount()
+
+  /**
+   * Outcomes of queued writes: callback({ results, pending }) where every result is
+   * { id, type, op, status: 'done' | 'failed' | 'coalesced', message?, into? }.
+   */
+  onWriteResults = callback => {
+    const writeObserver = DeviceEventEmitter.addListener(
+      'GoogleFitWriteResults',
+      event => callback(event)
+    )
+    this.eventListeners.push(writeObserver)
+  }
+
+  /**
+   * Single writes resolve with the status Google Fit answered with: { success, statusCode, statusMessage }.
+   * With a callback, it is called as before: callback(false, true) or callback(message, false).
+   */
+  _settleWrite = (write, callback) => {
+    if (!callback || typeof callback !== 'function') {
+      return write
+    }
+    write.then(
+      status =>
+        status.success
+          ? callback(false, true)
+          : callback(status.statusMessage || 'Write failed', false),
+      error => callback(error.message, false)
     )
   }
 
+  _parseSampleDates = samples =>
+    samples.map(sample => ({ ...sample, date: Date.parse(sample.date) }))
+
+  /**
+   * Opens a cursor over raw samples, to read a long or dense range one page at a time.
+   * @param {String} type 'heartRate', 'bloodPressure', 'weight', 'height', 'steps', 'distance' or 'calories'
+   * @param {Object} options { startDate: ISO8601Timestamp, endDate: ISO8601Timestamp, pageSize: number, format }
+   * @return {Promise} Resolves to the cursor id. Cursors not read for 5 minutes are closed.
+   */
+  openCursor = (type, { startDate, endDate, pageSize = 500, ...options }) =>
+    googleFit.openCursor(
+      type,
+      Date.parse(startDate),
+      Date.parse(endDate),
+      pageSize,
+      readOptions(options)
+    )
+
+  /**
+   * Reads the next page of a cursor, in time order.
+   * @param {Number} cursorId
+   * @return {Promise} Resolves to { samples, done }. The cursor is closed once done,
+   *                   rejects with CURSOR_EXPIRED when it was closed or idle for too long.
+   */
+  readNext = cursorId =>
+    googleFit.readNext(cursorId).then(page => ({
+      samples: prepareResponse(page.samples, 'value'),
+      done: page.done,
+    }))
+
+  closeCursor = cursorId => googleFit.closeCursor(cursorId)
+
+  /**
+   * Deletes samples of several types over several time ranges in as few requests as possible.
+   * Overlapping ranges are merged and every merged range is deleted for all types at once.
+   * @param {Object} options { types: ['weight', 'height', 'heartRate', 'bloodPressure', 'food'],
+   *                         ranges: [{ startDate: ISO8601Timestamp, endDate: ISO8601Timestamp }] }
+   * @return {Promise} Resolves to one { startDate, endDate, success, statusCode, statusMessage, merged }
+   *                   per range, in the same order.
+   */
+  deleteData = ({ types, ranges }) =>
+    googleFit
+      .deleteData({
+        types,
+        ranges: ranges.map(range => ({
+          startDate: Date.parse(range.startDate),
+          endDate: Date.parse(range.endDate),
+        })),
+      })
+      .then(results =>
+        results.map(result => ({
+          ...result,
+          startDate: new Date(result.startDate).toISOString(),
+          endDate: new Date(result.endDate).toISOString(),
+          deletedStartDate: new Date(result.deletedStartDate).toISOString(),
+          deletedEndDate: new Date(result.deletedEndDate).toISOString(),
+        }))
+      )
+
   deleteWeight = (options, callback) => {
     if (options.unit === 'pound') {
       options.value = lbsAndOzToK({ pounds: options.value, ounces: 0 }) //convert pounds and ounces to kg
     }
     options.date = Date.parse(options.date)
-    googleFit.deleteWeight(
-      options,
-      msg => {
-        callback(msg, false)
-      },
-      res => {
-        callback(false, res)
-      }
-    )
+    return this._settleWrite(googleFit.deleteWeight(options), callback)
   }
 
   deleteHeight = (options, callback) => {
     options.date = Date.parse(options.date)
-    googleFit.deleteWeight(
-      options,
-      msg => {
-        callback(msg, false)
-      },
-      res => {
-        callback(false, res)
-      }
-    )
+    return this._settleWrite(googleFit.deleteHeight(options), callback)
   }
 
   isAvailable(callback) {
@@ -401,13 +613,131 @@ class RNGoogleFit {
     googleFit.openFit()
   }
 
-  observeSteps = callback => {
-    const stepsObserver = DeviceEventEmitter.addListener(
+  /**
+   * Live steps. Observers share one set of native sensor listeners.
+   * @param {Function} callback Called with { steps, sources }, at most once per interval
+   * @param {Object} options { interval } in milliseconds, default 1000
+   * @return {Object} Subscription, its remove() stops this observer. unsubscribeListeners() stops all.
+   */
+  observeSteps = (callback, options = {}) => {
+    const listener = DeviceEventEmitter.addListener(
       'StepChangedEvent',
       steps => callback(steps)
     )
-    googleFit.observeSteps()
+    let removed = false
+    const stepsObserver = {
+      remove: () => {
+        if (!removed) {
+          removed = true
+          listener.remove()
+          googleFit.unobserveSteps()
+        }
+      },
+    }
+    googleFit.observeSteps({ interval: options.interval })
     this.eventListeners.push(stepsObserver)
+    return stepsObserver
+  }
+
+  /**
+   * Streams live heart rate. Beats are batched natively and delivered together.
+   * @param {Function} callback Called with { samples: [{ value, startDate, endDate }], dropped }
+   * @param {Object} options { samplingRate, flushInterval, maxBatchSize, bufferSize, format },
+   *                         rate and interval in milliseconds, all optional
+   * @return {Promise} Resolves once the sensor listener is registered.
+   */
+  observeHeartRate = (callback, options = {}) => {
+    this.stopObservingHeartRate()
+    const listener = DeviceEventEmitter.addListener(
+      'HeartRateBatchEvent',
+      ({ samples, dropped }) =>
+        callback({ samples: prepareResponse(samples, 'value'), dropped })
+    )
+    // removing it, also through removeListeners, stops the native listener
+    const heartRateObserver = {
+      remove: () => {
+        if (this.heartRateObserver === heartRateObserver) {
+          listener.remove()
+          this.heartRateObserver = null
+          googleFit.stopObservingHeartRate()
+        }
+      },
+    }
+    this.heartRateObserver = heartRateObserver
+    this.eventListeners.push(heartRateObserver)
+    return googleFit.observeHeartRate({ ...options, ...readOptions(options) })
+  }
+
+  stopObservingHeartRate = () => {
+    const heartRateObserver = this.heartRateObserver
+    if (heartRateObserver) {
+      heartRateObserver.remove()
+      this.eventListeners = this.eventListeners.filter(
+        listener => listener !== heartRateObserver
+      )
+    }
+  }
+
+  /**
+   * Steps from the device's hardware step counter, without Google Fit. The count is the total since
+   * the last reboot. Steps are batched in the sensor's FIFO for up to maxReportLatency, so the
+   * device can sleep in between.
+   * @param {Function} callback Called with { steps, timestamp }
+   * @param {Object} options { samplingPeriod, maxReportLatency, interval } in milliseconds,
+   *                         defaults 1000, 60000 and 0
+   * @return {Promise} Resolves to false when the device has no step counter.
+   */
+  startStepSensor = (callback, options = {}) => {
+    this.stopStepSensor()
+    const listener = DeviceEventEmitter.addListener(
+      'StepSensorChangedEvent',
+      event => callback(event)
+    )
+    // removing it, also through removeListeners, stops the hardware sensor
+    const stepSensorObserver = {
+      remove: () => {
+        if (this.stepSensorObserver === stepSensorObserver) {
+          listener.remove()
+          this.stepSensorObserver = null
+          googleFit.stopStepSensor()
+        }
+      },
+    }
+    this.stepSensorObserver = stepSensorObserver
+    this.eventListeners.push(stepSensorObserver)
+    return googleFit.startStepSensor(options)
+  }
+
+  stopStepSensor = () => {
+    const stepSensorObserver = this.stepSensorObserver
+    if (stepSensorObserver) {
+      stepSensorObserver.remove()
+      this.eventListeners = this.eventListeners.filter(
+        listener => listener !== stepSensorObserver
+      )
+    }
+  }
+
+  /**
+   * Delivers the steps waiting in the sensor's FIFO now instead of after maxReportLatency.
+   */
+  flushStepSensor = () => googleFit.flushStepSensor()
+
+  /**
+   * Steps of a local day from the on-device journal of the hardware step counter, without
+   * asking Google Fit. Only steps counted while startStepSensor was running are included.
+   * @param {Date} date Any time of the day, default now
+   * @return {Promise} Resolves to { date, steps, hourly: [24 totals from midnight], lastUpdated }
+   */
+  getLocalDailySteps = async (date = new Date()) => {
+    const res = await googleFit.getLocalDailySteps(new Date(date).getTime())
+    return {
+      ...res,
+      date: new Date(res.date).toISOString(),
+      lastUpdated: isNil(res.lastUpdated)
+        ? null
+        : new Date(res.lastUpdated).toISOString(),
+    }
   }
 
   observeHistory = callback => {
@@ -438,22 +768,35 @@ class RNGoogleFit {
     this.removeListeners()
   }
 
+  /**
+   * With bucket ('minute', 'hour' or 'day') heart rate and blood pressure are read as summaries:
+   * one sample per bucket with value (average), min and max, and value2, min2 and max2 for
+   * diastolic blood pressure.
+   */
+  _heartRateOptions = options => {
+    const nativeOptions = readOptions(options)
+    if (!isNil(options.bucket)) {
+      nativeOptions.bucket = options.bucket
+    }
+    return nativeOptions
+  }
+
   getHeartRateSamples(options, callback) {
     const startDate = Date.parse(options.startDate)
     const endDate = Date.parse(options.endDate)
     googleFit.getHeartRateSamples(
       startDate,
       endDate,
-      msg => {
-        callback(msg, false)
-      },
+      this._heartRateOptions(options)
+    ).then(
       res => {
         if (res.length > 0) {
           callback(false, prepareResponse(res, 'value'))
         } else {
           callback('There is no any heart rate data for this period', false)
         }
-      }
+      },
+      error => callback(error.message, false)
     )
   }
 
@@ -463,16 +806,16 @@ class RNGoogleFit {
     googleFit.getBloodPressureSamples(
       startDate,
       endDate,
-      msg => {
-        callback(msg, false)
-      },
+      this._heartRateOptions(options)
+    ).then(
       res => {
         if (res.length > 0) {
           callback(false, prepareResponse(res, 'value'))
         } else {
           callback('There is no any heart rate data for this period', false)
         }
-      }
+      },
+      error => callback(error.message, false)
     )
   }
 }
@@ -32,7 +32,50 @@ export function isNil(value) {
   return value == null
 }
 
+/**
+ * Options understood by all native read methods.
+ * format: 'columnar' returns { format, type, length, fields, columns } with one array per field
+ * instead of an array of objects, see SampleWriter.java.
+ * cache: false and refreshDays tune the on-device store of daily aggregates, see
+ * DailyAggregateStore.java.
+ * rollup: 'hour', 'day', 'week' or 'month' sums totals into local calendar periods natively,
+ * see CalendarRollup.java.
+ * maxPoints and downsample ('lttb' or 'minmax') thin out dense series natively, see Downsampler.java.
+ * adaptive: false makes weight reads request every bucket of the range, see BodyHistory.java.
+ */
+export function readOptions(options = {}) {
+  const result = { format: options.format === 'columnar' ? 'columnar' : 'rows' }
+  if (options.cache === false) {
+    result.cache = false
+  }
+  if (typeof options.refreshDays === 'number') {
+    result.refreshDays = options.refreshDays
+  }
+  if (!isNil(options.rollup)) {
+    result.rollup = options.rollup
+  }
+  if (typeof options.maxPoints === 'number') {
+    result.maxPoints = options.maxPoints
+  }
+  if (!isNil(options.downsample)) {
+    result.downsample = options.downsample
+  }
+  if (options.adaptive === false) {
+    result.adaptive = false
+  }
+  return result
+}
+
+export function isColumnar(response) {
+  return !isNil(response) && response.format === 'columnar'
+}
+
 export function prepareResponse(response, byKey = 'value') {
+  if (isColumnar(response)) {
+    // columnar results keep epoch milliseconds, converting them would mean walking every column
+    return response
+  }
+
   return response
     .map(el => {
       if (!isNil(el[byKey])) {
@@ -45,6 +88,9 @@ export function prepareResponse(response, byKey = 'value') {
 }
 
 export function prepareDailyResponse(response) {
+  if (isColumnar(response)) {
+    return response
+  }
   return response.map(el => {
     el.date = getFormattedDate(new Date(el.date))
     return el